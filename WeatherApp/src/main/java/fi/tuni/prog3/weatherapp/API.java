@@ -1,23 +1,142 @@
 
 package fi.tuni.prog3.weatherapp;
 
-import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.Reader;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 import io.github.cdimascio.dotenv.Dotenv;
 
 /**
  *
- * Class for extracting data from the OpenWeatherMap API.
+ * Class for extracting data from the OpenWeatherMap API. Every request can
+ * be made either synchronously (iAPI) or asynchronously (iAsyncAPI).
+ * All instances share one long-lived HttpClient by default, so connections
+ * are kept alive and reused between calls instead of being opened for
+ * every request.
  */
-public class API implements iAPI {   
-    // Load environment variables from the .env file
-    Dotenv dotenv = Dotenv.load();
-    // Get the API key from the environment variables
-    String API_KEY = dotenv.get("API_KEY");  
-    
+public class API implements iAPI, iAsyncAPI {
+    // Default timeouts and size of the executor used by the shared client
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(5);
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(10);
+    private static final int MAX_THREADS = 4;
+    private static final String BASE_URL = "https://api.openweathermap.org";
+    private static final String PRO_BASE_URL = "https://pro.openweathermap.org";
+    // Place names: at least one letter, plus accents, spaces and the
+    // punctuation of names like "St. John's" or "Tampere, FI"
+    private static final Pattern VALID_LOCATION =
+            Pattern.compile("[\\p{L}\\p{M} .,'’-]*\\p{L}[\\p{L}\\p{M} .,'’-]*");
+
+    private static final HttpClient SHARED_CLIENT =
+            newHttpClient(CONNECT_TIMEOUT, MAX_THREADS);
+    // Responses are decoded on their own pool, so that decoding does not
+    // hold up the client's executor.
+    private static final ExecutorService DECODER =
+            newDaemonPool("weatherapp-decoder", MAX_THREADS * 2);
+
+    private final HttpClient client;
+    private final Duration requestTimeout;
+    private final String baseUrl;
+    private final String proBaseUrl;
+    private final String oneCallBaseUrl;
+    private final String API_KEY;
+
+    /**
+     * Constructs an API which reads the API key from the .env file and
+     * uses the shared HttpClient. The base URLs of the endpoints can be
+     * changed in the .env file with API_BASE_URL, PRO_API_BASE_URL and
+     * ONE_CALL_BASE_URL, for example to point the app at a local stub
+     * server.
+     */
+    public API() {
+        // Load environment variables from the .env file
+        this(Dotenv.load());
+    }
+
+    private API(Dotenv env) {
+        // Get the API key and the endpoints from them
+        this(SHARED_CLIENT, REQUEST_TIMEOUT,
+                env.get("API_BASE_URL", BASE_URL),
+                env.get("PRO_API_BASE_URL", PRO_BASE_URL),
+                env.get("ONE_CALL_BASE_URL", env.get("API_BASE_URL", BASE_URL)),
+                env.get("API_KEY"));
+    }
+
+    /**
+     * Constructs an API with the shared HttpClient and the given endpoints.
+     * @param baseUrl Base URL for the geocoding and weather endpoints.
+     * @param proBaseUrl Base URL for the hourly forecast endpoint.
+     * @param oneCallBaseUrl Base URL for the combined one call endpoint.
+     * @param apiKey The OpenWeatherMap API key.
+     */
+    public API(String baseUrl, String proBaseUrl, String oneCallBaseUrl,
+            String apiKey) {
+        this(SHARED_CLIENT, REQUEST_TIMEOUT, baseUrl, proBaseUrl,
+                oneCallBaseUrl, apiKey);
+    }
+
+    /**
+     * Constructs an API with the given client and endpoints.
+     * @param client The HttpClient used for all requests.
+     * @param requestTimeout Time to wait for the whole response, body
+     * included, before giving up.
+     * @param baseUrl Base URL for the geocoding and weather endpoints.
+     * @param proBaseUrl Base URL for the hourly forecast endpoint.
+     * @param oneCallBaseUrl Base URL for the combined one call endpoint.
+     * @param apiKey The OpenWeatherMap API key.
+     */
+    API(HttpClient client, Duration requestTimeout, String baseUrl,
+            String proBaseUrl, String oneCallBaseUrl, String apiKey) {
+        this.client = client;
+        this.requestTimeout = requestTimeout;
+        this.baseUrl = baseUrl;
+        this.proBaseUrl = proBaseUrl;
+        this.oneCallBaseUrl = oneCallBaseUrl;
+        this.API_KEY = apiKey;
+    }
+
+    /**
+     * Builds an HttpClient which prefers HTTP/2, falls back to HTTP/1.1 and
+     * runs its work on a bounded pool of daemon threads.
+     * @param connectTimeout Time to wait for a connection to be established.
+     * @param threads Maximum number of threads used by the client.
+     * @return HttpClient.
+     */
+    public static HttpClient newHttpClient(Duration connectTimeout, int threads) {
+        return HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(connectTimeout)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .executor(newDaemonPool("weatherapp-http", threads))
+                .build();
+    }
+
+    private static ExecutorService newDaemonPool(String name, int threads) {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread th = new Thread(r, name + "-" + count.incrementAndGet());
+            th.setDaemon(true);
+            return th;
+        });
+    }
+
     /**
      * Returns coordinates for a location.
      * @param loc Name of the location for which coordinates should be fetched.
@@ -25,50 +144,16 @@ public class API implements iAPI {
      */
     @Override
     public String lookUpLocation(String loc) {
-        // Check if loc contains only letters, including Scandinavian letters
-        String onlyLetters = "[\\p{L} -]+";
-        // Check also that loc is not empty or containing only spaces
-        if (!loc.matches(onlyLetters) || loc.trim().isEmpty()) {
         // Return empty string if loc is empty or contains non-letter characters
+        if (!isValidLocation(loc)) {
             return "";
         }
-        
-        HttpURLConnection connection = null;
-        try {
-            // Construct the URL for the Geocoding API request
-            String apiUrl = "https://api.openweathermap.org/geo/1.0/direct?q=" 
-                            + loc + "&limit=5&appid=" + API_KEY;
-
-            // Make an HTTP request
-            connection = (HttpURLConnection) new URL(apiUrl).openConnection();
-            connection.setRequestMethod("GET");
-            // Read the response
-            StringBuilder response;
-            try ( BufferedReader reader = new BufferedReader
-                    (new InputStreamReader(connection.getInputStream()))) {
-                response = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    response.append(line);
-                }
-            }    
-            String coordinates = response.toString(); 
-            // If coordinates equals [] city was not found
-            if (coordinates.equals("[]")){
-                return "";
-            }
-            return coordinates;
-            
-        } catch (IOException e) {           
-            //Return an empty string to indicate failure
+        String coordinates = get(locationUrl(loc));
+        // If coordinates equals [] city was not found
+        if (coordinates.equals("[]")){
             return "";
-        
-        } finally {
-        // Close the connection in the finally block
-            if (connection != null) {
-                connection.disconnect();
-            }
         }
+        return coordinates;
     }
 
     /**
@@ -78,37 +163,8 @@ public class API implements iAPI {
      * @return String.
      */
     @Override
-    public String getCurrentWeather(double lat, double lon){ 
-        HttpURLConnection connection = null;
-        try {    
-            String urlStr = "https://api.openweathermap.org/data/2.5/weather?lat=" 
-                       + lat + "&lon=" + lon + "&units=metric&appid=" + API_KEY;
-            URL url = new URL(urlStr);
-            connection =(HttpURLConnection)url.openConnection();
-            connection.setRequestMethod("GET");
-
-            StringBuilder response;
-            try (BufferedReader reader = 
-                    new BufferedReader
-                        (new InputStreamReader(connection.getInputStream()))) {
-                response = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    response.append(line);
-                }
-            }          
-            String currentWeather = response.toString();                      
-            return currentWeather;
-             
-        }catch (IOException e) {
-            // Return an empty string to indicate failure
-            return "";
-        } finally {
-        // Close the connection in the finally block
-            if (connection != null) {
-                connection.disconnect();
-            }
-        }
+    public String getCurrentWeather(double lat, double lon){
+        return get(currentWeatherUrl(lat, lon));
     }
 
     /**
@@ -119,37 +175,7 @@ public class API implements iAPI {
      */
     @Override
     public String getForecast(double lat, double lon) {
-        HttpURLConnection connection = null;
-        try {                  
-            String urlStr = 
-                 "https://api.openweathermap.org/data/2.5/forecast/daily?lat=" 
-                 + lat + "&lon=" + lon + "&cnt=5&units=metric&appid=" + API_KEY;
-            URL url = new URL(urlStr);
-            connection =(HttpURLConnection)url.openConnection();
-            connection.setRequestMethod("GET");
-
-            StringBuilder response;
-            try (BufferedReader reader = 
-                    new BufferedReader
-                        (new InputStreamReader(connection.getInputStream()))) {
-                response = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    response.append(line);
-                }
-            }          
-            String dailyWeather = response.toString();                       
-            return dailyWeather;
-             
-        }catch (IOException e) {
-            // Return an empty string to indicate failure
-            return "";
-        }finally {
-        // Close the connection in the finally block
-            if (connection != null) {
-                connection.disconnect();
-            }
-        }
+        return get(forecastUrl(lat, lon));
     }
 
     /**
@@ -158,41 +184,243 @@ public class API implements iAPI {
      * @param lon The longitude of the location.
      * @return String.
      */
+    @Override
     public String getHourlyWeather(double lat, double lon){
-        HttpURLConnection connection = null;
-        try {                  
-            String urlStr = 
-                    "https://pro.openweathermap.org/data/2.5/forecast/hourly?lat=" 
-                    + lat + "&lon=" + lon + "&units=metric&appid=" + API_KEY 
-                    + "&cnt=10";
-            URL url = new URL(urlStr);
-            connection =(HttpURLConnection)url.openConnection();
-            connection.setRequestMethod("GET");
-
-            StringBuilder response;
-            try (BufferedReader reader = 
-                    new BufferedReader
-                        (new InputStreamReader(connection.getInputStream()))) {
-                response = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    response.append(line);
-                }
-            }          
-            String dailyWeather = response.toString();            
-            
-            return dailyWeather;
-             
-        }catch (IOException e) {
+        return get(hourlyWeatherUrl(lat, lon));
+    }
+
+    /**
+     * Returns coordinates for a location without blocking.
+     * @param loc Name of the location for which coordinates should be fetched.
+     * @return CompletableFuture with the location, or null if not found.
+     */
+    @Override
+    public CompletableFuture<Location> lookUpLocationAsync(String loc) {
+        if (!isValidLocation(loc)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return getAsync(locationUrl(loc), WeatherDecoder::decodeLocation);
+    }
+
+    /**
+     * Returns the current weather for the given coordinates without blocking.
+     * @param lat The latitude of the location.
+     * @param lon The longitude of the location.
+     * @return CompletableFuture with the current weather.
+     */
+    @Override
+    public CompletableFuture<CurrentWeather> getCurrentWeatherAsync(double lat, double lon) {
+        return getAsync(currentWeatherUrl(lat, lon),
+                WeatherDecoder::decodeCurrentWeather);
+    }
+
+    /**
+     * Returns a daily forecast for the given coordinates without blocking.
+     * @param lat The latitude of the location.
+     * @param lon The longitude of the location.
+     * @return CompletableFuture with the daily forecast.
+     */
+    @Override
+    public CompletableFuture<List<DailyWeather>> getForecastAsync(double lat, double lon) {
+        return getAsync(forecastUrl(lat, lon), WeatherDecoder::decodeDailyWeather);
+    }
+
+    /**
+     * Returns a hourly forecast for the given coordinates without blocking.
+     * @param lat The latitude of the location.
+     * @param lon The longitude of the location.
+     * @return CompletableFuture with the hourly forecast.
+     */
+    @Override
+    public CompletableFuture<List<HourlyWeather>> getHourlyWeatherAsync(double lat, double lon) {
+        return getAsync(hourlyWeatherUrl(lat, lon),
+                WeatherDecoder::decodeHourlyWeather);
+    }
+
+    /**
+     * Returns the current weather, daily forecast and hourly forecast for
+     * the given coordinates with one request to the one call endpoint,
+     * without blocking.
+     * @param lat The latitude of the location.
+     * @param lon The longitude of the location.
+     * @return CompletableFuture with all three.
+     */
+    @Override
+    public CompletableFuture<OneCallWeather> getAllWeatherAsync(double lat, double lon) {
+        return getAsync(oneCallUrl(lat, lon), WeatherDecoder::decodeOneCall);
+    }
+
+    /**
+     * Returns the current weather of several cities with one request to
+     * the group endpoint, without blocking.
+     * @param cityIds IDs of the cities, at most MAX_GROUP_SIZE of them.
+     * @return CompletableFuture with the current weather of the cities.
+     */
+    @Override
+    public CompletableFuture<List<CurrentWeather>> getCurrentWeatherGroupAsync(
+            List<Integer> cityIds) {
+        if (cityIds.isEmpty()) {
+            return CompletableFuture.completedFuture(List.of());
+        }
+        if (cityIds.size() > MAX_GROUP_SIZE) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException(
+                    "At most " + MAX_GROUP_SIZE + " cities per group request"));
+        }
+        return getAsync(groupUrl(cityIds), WeatherDecoder::decodeGroup);
+    }
+
+    /**
+     * Checks that a location name can be sent to the Geocoding API.
+     * @param loc Name of the location.
+     * @return True if loc contains a letter and otherwise only letters,
+     * spaces and the punctuation used in place names.
+     */
+    private static boolean isValidLocation(String loc) {
+        return VALID_LOCATION.matcher(loc).matches();
+    }
+
+    private String locationUrl(String loc) {
+        // Construct the URL for the Geocoding API request
+        return baseUrl + "/geo/1.0/direct?q="
+                + URLEncoder.encode(loc, StandardCharsets.UTF_8)
+                + "&limit=5&appid=" + API_KEY;
+    }
+
+    private String currentWeatherUrl(double lat, double lon) {
+        return baseUrl + "/data/2.5/weather?lat="
+                + lat + "&lon=" + lon + "&units=metric&appid=" + API_KEY;
+    }
+
+    private String forecastUrl(double lat, double lon) {
+        return baseUrl + "/data/2.5/forecast/daily?lat="
+                + lat + "&lon=" + lon + "&cnt=5&units=metric&appid=" + API_KEY;
+    }
+
+    private String hourlyWeatherUrl(double lat, double lon) {
+        return proBaseUrl + "/data/2.5/forecast/hourly?lat="
+                + lat + "&lon=" + lon + "&units=metric&appid=" + API_KEY
+                + "&cnt=10";
+    }
+
+    private String groupUrl(List<Integer> cityIds) {
+        StringJoiner ids = new StringJoiner(",");
+        for (Integer id : cityIds) {
+            ids.add(id.toString());
+        }
+        return baseUrl + "/data/2.5/group?id=" + ids
+                + "&units=metric&appid=" + API_KEY;
+    }
+
+    private String oneCallUrl(double lat, double lon) {
+        return oneCallBaseUrl + "/data/3.0/onecall?lat="
+                + lat + "&lon=" + lon + "&exclude=minutely,alerts"
+                + "&units=metric&appid=" + API_KEY;
+    }
+
+    /**
+     * Sends a GET request with the shared client and returns the body.
+     * The whole exchange, body included, must complete within the request
+     * timeout.
+     * @param url The URL to request.
+     * @return The response body, or "" if the request failed.
+     */
+    private String get(String url) {
+        try {
+            HttpResponse<String> response = client.sendAsync(newRequest(url),
+                    HttpResponse.BodyHandlers.ofString())
+                    .orTimeout(requestTimeout.toMillis(), TimeUnit.MILLISECONDS)
+                    .join();
+            if (response.statusCode() != 200) {
+                return "";
+            }
+            return response.body();
+
+        } catch (CompletionException | IllegalArgumentException e) {
             // Return an empty string to indicate failure
             return "";
-        }finally {
-        // Close the connection in the finally block
-            if (connection != null) {
-                connection.disconnect();
-            }
         }
     }
-}
-    
 
+    /**
+     * Sends a GET request with the shared client without blocking and
+     * decodes the response body on the decoder pool while it streams in.
+     * The whole exchange, body included, must complete within the request
+     * timeout: waiting for the headers is bounded by orTimeout, and a body
+     * still being read at the deadline is closed, so a body which stalls
+     * fails the request instead of holding a thread.
+     * @param url The URL to request.
+     * @param decoder Decoder which reads the body.
+     * @return CompletableFuture with the decoded body, which completes
+     * exceptionally with an APIException if the request or decoding failed.
+     */
+    private <T> CompletableFuture<T> getAsync(String url, Decoder<T> decoder) {
+        HttpRequest request;
+        try {
+            request = newRequest(url);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(new APIException(
+                    APIException.Reason.BAD_RESPONSE, "Invalid URL", 0, e));
+        }
+        String path = request.uri().getPath();
+        long deadline = System.nanoTime() + requestTimeout.toNanos();
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream())
+                .orTimeout(requestTimeout.toMillis(), TimeUnit.MILLISECONDS)
+                .exceptionally(e -> {
+                    throw new CompletionException(APIException.from(e));
+                })
+                .thenApplyAsync(response -> {
+                    InputStream body = response.body();
+                    AtomicBoolean timedOut = new AtomicBoolean();
+                    CompletableFuture<Void> watchdog = CompletableFuture.runAsync(() -> {
+                        timedOut.set(true);
+                        closeQuietly(body);
+                    }, CompletableFuture.delayedExecutor(deadline - System.nanoTime(),
+                            TimeUnit.NANOSECONDS));
+                    try (Reader reader = new InputStreamReader(body,
+                            StandardCharsets.UTF_8)) {
+                        if (response.statusCode() != 200) {
+                            throw new APIException(APIException.Reason.HTTP_ERROR,
+                                    "HTTP " + response.statusCode() + " from " + path,
+                                    response.statusCode(), null);
+                        }
+                        return decoder.decode(reader);
+                    } catch (APIException e) {
+                        throw new CompletionException(e);
+                    } catch (IOException | RuntimeException e) {
+                        if (timedOut.get()) {
+                            throw new CompletionException(new APIException(
+                                    APIException.Reason.TIMEOUT,
+                                    "Response from " + path + " timed out", 0, e));
+                        }
+                        // Gson reports unexpected structure as runtime errors
+                        throw new CompletionException(new APIException(
+                                APIException.Reason.BAD_RESPONSE,
+                                "Could not decode response from " + path, 0, e));
+                    } finally {
+                        watchdog.cancel(false);
+                    }
+                }, DECODER);
+    }
+
+    private static void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException e) {
+            // The request has failed already
+        }
+    }
+
+    /**
+     * Reads a value from a response body.
+     */
+    private interface Decoder<T> {
+        T decode(Reader reader) throws IOException;
+    }
+
+    private HttpRequest newRequest(String url) {
+        return HttpRequest.newBuilder(URI.create(url))
+                .timeout(requestTimeout)
+                .GET()
+                .build();
+    }
+}
@@ -0,0 +1,118 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.io.IOException;
+import java.net.http.HttpTimeoutException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Exception with which API requests fail. The reason tells callers why a
+ * request failed and whether trying again can help.
+ */
+public class APIException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Reasons for a failed request.
+     */
+    public enum Reason {
+        /** The server could not be reached or the connection broke. */
+        NETWORK,
+        /** The server did not answer in time. */
+        TIMEOUT,
+        /** The server answered with an error status. */
+        HTTP_ERROR,
+        /** The server answered with something that could not be decoded. */
+        BAD_RESPONSE,
+        /** The daily quota of the API plan has been used up. */
+        QUOTA_EXCEEDED,
+        /** Recent requests to the endpoint failed, so it is not called. */
+        CIRCUIT_OPEN
+    }
+
+    private final Reason reason;
+    private final int statusCode;
+
+    /**
+     * Constructs an APIException.
+     * @param reason The reason of the failure.
+     * @param message A description of the failure.
+     */
+    public APIException(Reason reason, String message) {
+        this(reason, message, 0, null);
+    }
+
+    /**
+     * Constructs an APIException.
+     * @param reason The reason of the failure.
+     * @param message A description of the failure.
+     * @param statusCode The HTTP status code, or 0 if there was no response.
+     * @param cause The exception which caused the failure, or null.
+     */
+    public APIException(Reason reason, String message, int statusCode,
+            Throwable cause) {
+        super(message, cause);
+        this.reason = reason;
+        this.statusCode = statusCode;
+    }
+
+    /**
+     * Converts any exception a request failed with to an APIException.
+     * CompletionException and ExecutionException wrappers are removed.
+     * @param e The exception the request failed with.
+     * @return The exception itself if it is an APIException, otherwise a
+     * new APIException with a matching reason.
+     */
+    public static APIException from(Throwable e) {
+        while ((e instanceof CompletionException || e instanceof ExecutionException)
+                && e.getCause() != null) {
+            e = e.getCause();
+        }
+        if (e instanceof APIException) {
+            return (APIException) e;
+        }
+        if (e instanceof HttpTimeoutException || e instanceof TimeoutException) {
+            return new APIException(Reason.TIMEOUT, e.getMessage(), 0, e);
+        }
+        if (e instanceof IOException) {
+            return new APIException(Reason.NETWORK, e.getMessage(), 0, e);
+        }
+        return new APIException(Reason.BAD_RESPONSE, String.valueOf(e), 0, e);
+    }
+
+    /**
+     * Retrieves the reason of the failure.
+     * @return The reason of the failure.
+     */
+    public Reason getReason() {
+        return reason;
+    }
+
+    /**
+     * Retrieves the HTTP status code of the response.
+     * @return The status code, or 0 if there was no response.
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Tells whether the same request may succeed if it is tried again.
+     * Network problems, timeouts, rate limiting (429) and server errors
+     * (5xx) are temporary. Other client errors, bad responses and an
+     * exceeded quota are not.
+     * @return True if the request can be retried.
+     */
+    public boolean isRetryable() {
+        switch (reason) {
+            case NETWORK:
+            case TIMEOUT:
+                return true;
+            case HTTP_ERROR:
+                return statusCode == 429 || statusCode >= 500;
+            default:
+                return false;
+        }
+    }
+}
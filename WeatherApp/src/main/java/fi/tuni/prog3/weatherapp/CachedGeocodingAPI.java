@@ -0,0 +1,184 @@
+package fi.tuni.prog3.weatherapp;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An iAsyncAPI layer which caches geocoding results. Coordinates of a place
+ * practically never change, so resolved queries are kept in memory and
+ * written to a JSON file, which is read back on the next start. Queries
+ * are cached by their normalized form, see CityNames.normalize.
+ * At most a fixed number of queries is kept, the least recently used one
+ * is dropped first. The file is written on a background thread a moment
+ * after a new query has been cached, so a burst of new queries costs one
+ * write. Queries which did not resolve to a location are not cached.
+ */
+public class CachedGeocodingAPI extends ForwardingAPI {
+    // Default number of cached queries and delay before writing the file
+    private static final int MAX_ENTRIES = 2000;
+    private static final Duration SAVE_DELAY = Duration.ofSeconds(2);
+
+    private final Map<String, Location> locations;
+    private final Path file;
+    private final Duration saveDelay;
+    private final ScheduledExecutorService scheduler;
+    private boolean saveScheduled;
+
+    /**
+     * Constructs a CachedGeocodingAPI and loads earlier results from the
+     * given file if it exists.
+     * @param delegate The iAsyncAPI which resolves queries not in the cache.
+     * @param file The file where resolved queries are stored.
+     */
+    public CachedGeocodingAPI(iAsyncAPI delegate, Path file) {
+        this(delegate, file, MAX_ENTRIES, SAVE_DELAY);
+    }
+
+    /**
+     * Constructs a CachedGeocodingAPI with the given limits.
+     * @param delegate The iAsyncAPI which resolves queries not in the cache.
+     * @param file The file where resolved queries are stored.
+     * @param maxEntries Maximum number of cached queries.
+     * @param saveDelay Delay between caching a new query and writing the file.
+     */
+    CachedGeocodingAPI(iAsyncAPI delegate, Path file, int maxEntries,
+            Duration saveDelay) {
+        super(delegate);
+        this.locations = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Location> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        this.file = file;
+        this.saveDelay = saveDelay;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread th = new Thread(r, "weatherapp-geocache");
+            th.setDaemon(true);
+            return th;
+        });
+        load();
+    }
+
+    /**
+     * Returns the location for a query from the cache, or looks it up and
+     * caches it if it has not been resolved before.
+     * @param loc Name of the location for which coordinates should be fetched.
+     * @return CompletableFuture with the location, or null if not found.
+     */
+    @Override
+    public CompletableFuture<Location> lookUpLocationAsync(String loc) {
+        String key = CityNames.normalize(loc);
+        Location cached;
+        synchronized (locations) {
+            cached = locations.get(key);
+        }
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        return delegate().lookUpLocationAsync(loc).thenApply(location -> {
+            if (location != null) {
+                synchronized (locations) {
+                    if (locations.putIfAbsent(key, location) == null) {
+                        scheduleSave();
+                    }
+                }
+            }
+            return location;
+        });
+    }
+
+    /**
+     * Retrieves the number of cached queries.
+     * @return The number of cached queries.
+     */
+    public int size() {
+        synchronized (locations) {
+            return locations.size();
+        }
+    }
+
+    /**
+     * Writes the cached queries to the file now instead of after the delay.
+     */
+    void flush() {
+        save();
+    }
+
+    /**
+     * Writes the file after the save delay, unless a write is already
+     * waiting. Called while holding the lock of locations.
+     */
+    private void scheduleSave() {
+        if (!saveScheduled) {
+            saveScheduled = true;
+            scheduler.schedule(this::save, saveDelay.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Reads cached queries from the file. A missing or broken file only
+     * means that the cache starts empty.
+     */
+    private void load() {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            JsonObject jsonObject = JsonParser.parseReader(reader).getAsJsonObject();
+            for (Map.Entry<String, JsonElement> entry : jsonObject.entrySet()) {
+                JsonObject place = entry.getValue().getAsJsonObject();
+                locations.put(entry.getKey(), new Location(
+                        place.get("name").getAsString(),
+                        place.get("lat").getAsDouble(),
+                        place.get("lon").getAsDouble(),
+                        place.has("country") ? place.get("country").getAsString() : ""));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes all cached queries to the file.
+     */
+    private synchronized void save() {
+        List<Map.Entry<String, Location>> entries;
+        synchronized (locations) {
+            saveScheduled = false;
+            entries = new ArrayList<>(locations.entrySet());
+        }
+        try {
+            JsonFiles.writeAtomically(file, writer -> {
+                writer.beginObject();
+                for (Map.Entry<String, Location> entry : entries) {
+                    Location location = entry.getValue();
+                    writer.name(entry.getKey()).beginObject()
+                            .name("name").value(location.getName())
+                            .name("lat").value(location.getLatitude())
+                            .name("lon").value(location.getLongitude())
+                            .name("country").value(location.getCountry())
+                            .endObject();
+                }
+                writer.endObject();
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * An iAsyncAPI layer which caches weather responses by endpoint and
+ * coordinates. Every endpoint has its own time to live. When an entry has
+ * expired, the old value is still returned immediately while a fresh one
+ * is fetched in the background (stale-while-revalidate). Entries which
+ * are far too old are fetched again before returning. The cache holds a
+ * bounded number of entries and evicts the least recently used ones.
+ */
+public class CachedWeatherAPI extends ForwardingAPI {
+    // An expired entry is served stale for at most this many times its TTL
+    private static final int MAX_STALE_FACTOR = 6;
+
+    // Set while the current thread runs a call given to fetchingFresh
+    private static final ThreadLocal<Boolean> FETCHING_FRESH =
+            ThreadLocal.withInitial(() -> false);
+
+    private final Map<String, CachedValue> entries;
+    private final long currentTtl;
+    private final long forecastTtl;
+    private final long hourlyTtl;
+    private final LongSupplier clock;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * A cached value and the time it was fetched.
+     */
+    private static class CachedValue {
+        private final Object value;
+        private final long fetchedAt;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private CachedValue(Object value, long fetchedAt) {
+            this.value = value;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    /**
+     * Constructs a CachedWeatherAPI.
+     * @param delegate The iAsyncAPI which fetches values not in the cache.
+     * @param maxEntries Maximum number of cached responses.
+     * @param currentTtl Time to live of current weather responses.
+     * @param forecastTtl Time to live of daily forecast responses.
+     * @param hourlyTtl Time to live of hourly forecast responses.
+     */
+    public CachedWeatherAPI(iAsyncAPI delegate, int maxEntries,
+            Duration currentTtl, Duration forecastTtl, Duration hourlyTtl) {
+        this(delegate, maxEntries, currentTtl, forecastTtl, hourlyTtl,
+                System::nanoTime);
+    }
+
+    /**
+     * Constructs a CachedWeatherAPI with the given clock.
+     * @param clock Source of the current time in nanoseconds.
+     */
+    CachedWeatherAPI(iAsyncAPI delegate, int maxEntries, Duration currentTtl,
+            Duration forecastTtl, Duration hourlyTtl, LongSupplier clock) {
+        super(delegate);
+        this.currentTtl = currentTtl.toNanos();
+        this.forecastTtl = forecastTtl.toNanos();
+        this.hourlyTtl = hourlyTtl.toNanos();
+        this.clock = clock;
+        // Access order makes the eldest entry the least recently used one
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedValue> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    @Override
+    public CompletableFuture<CurrentWeather> getCurrentWeatherAsync(double lat, double lon) {
+        return cached("weather", lat, lon, currentTtl,
+                () -> delegate().getCurrentWeatherAsync(lat, lon));
+    }
+
+    @Override
+    public CompletableFuture<List<DailyWeather>> getForecastAsync(double lat, double lon) {
+        return cached("daily", lat, lon, forecastTtl,
+                () -> delegate().getForecastAsync(lat, lon)
+                        .thenApply(Collections::unmodifiableList));
+    }
+
+    @Override
+    public CompletableFuture<List<HourlyWeather>> getHourlyWeatherAsync(double lat, double lon) {
+        return cached("hourly", lat, lon, hourlyTtl,
+                () -> delegate().getHourlyWeatherAsync(lat, lon)
+                        .thenApply(Collections::unmodifiableList));
+    }
+
+    /**
+     * Returns all three from the cache, each with the time to live of its
+     * endpoint. The layers below make one request of the three calls in
+     * the one call mode.
+     * @param lat The latitude of the location.
+     * @param lon The longitude of the location.
+     * @return CompletableFuture with all three.
+     */
+    @Override
+    public CompletableFuture<OneCallWeather> getAllWeatherAsync(double lat, double lon) {
+        return OneCallWeather.combine(getCurrentWeatherAsync(lat, lon),
+                getForecastAsync(lat, lon), getHourlyWeatherAsync(lat, lon));
+    }
+
+    /**
+     * Runs the given call so that the weather requests it starts skip the
+     * cache: they are fetched from the delegate and the fetched values are
+     * cached. Scheduled refreshes use this, because they would otherwise
+     * get back the cached values they are meant to replace. Only requests
+     * started synchronously by the call skip the cache.
+     * @param call The call to run.
+     * @return The value returned by the call.
+     */
+    public static <T> T fetchingFresh(Supplier<T> call) {
+        boolean previous = FETCHING_FRESH.get();
+        FETCHING_FRESH.set(true);
+        try {
+            return call.get();
+        } finally {
+            FETCHING_FRESH.set(previous);
+        }
+    }
+
+    /**
+     * Retrieves the number of cached responses.
+     * @return The number of cached responses.
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Retrieves the number of calls answered with a fresh cached value.
+     * @return The number of fresh hits.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Retrieves the number of calls answered with an expired cached value
+     * while it was refreshed in the background.
+     * @return The number of stale hits.
+     */
+    public long getStaleHitCount() {
+        return staleHits.get();
+    }
+
+    /**
+     * Retrieves the number of calls which had to wait for the delegate.
+     * @return The number of misses.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Retrieves the share of calls answered from the cache, fresh or stale.
+     * @return The hit rate from 0 to 1, or 0 if there have been no calls.
+     */
+    public double getHitRate() {
+        long hit = hits.get() + staleHits.get();
+        long total = hit + misses.get();
+        return total == 0 ? 0 : hit / (double) total;
+    }
+
+    /**
+     * Returns a value from the cache, fetching or refreshing it if needed.
+     * @param endpoint Name of the endpoint, part of the cache key.
+     * @param ttl Time to live of the endpoint's values in nanoseconds.
+     * @param fetch Fetches a fresh value from the delegate.
+     * @return CompletableFuture with the cached or fetched value.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> cached(String endpoint, double lat,
+            double lon, long ttl, Supplier<CompletableFuture<T>> fetch) {
+        String key = endpoint + ":" + lat + "," + lon;
+        CachedValue entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+
+        if (entry != null && !FETCHING_FRESH.get()) {
+            long age = clock.getAsLong() - entry.fetchedAt;
+            if (age < ttl) {
+                hits.incrementAndGet();
+                return CompletableFuture.completedFuture((T) entry.value);
+            }
+            if (age < ttl * MAX_STALE_FACTOR) {
+                staleHits.incrementAndGet();
+                // Serve the stale value and refresh it once in the background
+                if (entry.refreshing.compareAndSet(false, true)) {
+                    RequestPriority.runInBackground(fetch).whenComplete((value, e) -> {
+                        if (e == null) {
+                            put(key, value);
+                        } else {
+                            entry.refreshing.set(false);
+                        }
+                    });
+                }
+                return CompletableFuture.completedFuture((T) entry.value);
+            }
+        }
+
+        misses.incrementAndGet();
+        return fetch.get().thenApply(value -> {
+            put(key, value);
+            return value;
+        });
+    }
+
+    private void put(String key, Object value) {
+        CachedValue entry = new CachedValue(value, clock.getAsLong());
+        synchronized (entries) {
+            entries.put(key, entry);
+        }
+    }
+}
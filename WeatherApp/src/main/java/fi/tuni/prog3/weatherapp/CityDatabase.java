@@ -1,118 +1,1010 @@
 package fi.tuni.prog3.weatherapp;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-import java.util.TreeMap;
+import io.github.cdimascio.dotenv.Dotenv;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 
 /**
  * A class which keeps currently known cities in the app in a map.
  * This class also builds new cities and updates known cities' weather info.
+ * All methods may be called from several threads at once. Different cities
+ * are built in parallel, while concurrent builds of the same query share
+ * one build. A build either publishes all of a city's new weather or none
+ * of it: a new city enters the map only with its weather, and a known city
+ * keeps its old weather if any request fails.
+ * The number of cities kept is limited. When a new city does not fit, a
+ * city is evicted: of the least recently used quarter of the cities, the
+ * one used the fewest times. Pinned cities, such as favourites, are never
+ * evicted.
+ * Known cities are also indexed by their coordinates, so a new city next
+ * to one whose weather was just fetched gets that weather without any
+ * requests, and coordinates typed by the user are named after the nearest
+ * place of the gazetteer.
+ * Queries which have resolved to a known city are remembered, so building
+ * the city again by the same query needs no lookup, and queries which
+ * resolved to no city are answered without a lookup for a while.
  */
 public class CityDatabase {
-    private static TreeMap<String, CityWeatherStatistics> cities;
+    //Time to wait for the lookup, and then for all weather requests,
+    //of one city to complete.
+    private static final long FETCH_TIMEOUT_SECONDS = 15;
+    //File where geocoding results are kept between runs.
+    private static final String GEOCODING_CACHE_FILE = "geocache.json";
+    //Gazetteer made with GazetteerBuilder, used before the bundled city
+    //index if it exists. The path can be changed with GAZETTEER_FILE.
+    private static final String GAZETTEER_FILE = "cities.gaz";
+    //Size and per endpoint time to live of the weather response cache.
+    private static final int WEATHER_CACHE_ENTRIES = 300;
+    private static final Duration CURRENT_WEATHER_TTL = Duration.ofMinutes(10);
+    private static final Duration FORECAST_TTL = Duration.ofHours(3);
+    private static final Duration HOURLY_WEATHER_TTL = Duration.ofMinutes(30);
+    //Weather can be fetched for coordinates snapped to a grid of
+    //COORDINATE_GRID degrees, so nearby places share cached responses.
+    //Off (0) by default, see coordinateGrid.
+    private static final String COORDINATE_GRID = "0";
+    //Limits of the API plan and the file where the daily usage is kept.
+    private static final int CALLS_PER_MINUTE = 60;
+    private static final long CALLS_PER_DAY = 30000;
+    private static final String USAGE_FILE = "apiusage.json";
+    //Retry, circuit breaker and hedging settings. Hedging is off (null),
+    //because every hedged request also costs quota.
+    private static final int MAX_ATTEMPTS = 3;
+    private static final Duration BASE_BACKOFF = Duration.ofMillis(250);
+    private static final Duration MAX_BACKOFF = Duration.ofSeconds(2);
+    private static final int FAILURES_TO_OPEN_CIRCUIT = 5;
+    private static final Duration CIRCUIT_OPEN_TIME = Duration.ofSeconds(30);
+    private static final Duration HEDGE_DELAY = null;
+    //Maximum number of cities kept in memory. Every city holds a fixed
+    //amount of weather data, so this also bounds the memory used.
+    private static final int MAX_CITIES = 100;
+    //Eviction candidates are the least recently used 1/n of the cities.
+    private static final int EVICTION_WINDOW_DIVISOR = 4;
+    //A new city this near a city whose weather was fetched less than
+    //CURRENT_WEATHER_TTL ago takes that weather instead of fetching it.
+    private static final double REUSE_RADIUS_KM = 3;
+    //Coordinates typed by the user are named after the nearest place
+    //within this distance.
+    private static final double REVERSE_GEOCODE_KM = 25;
+    //Queries which resolved to no city are not looked up again for this
+    //long. At most MAX_NOT_FOUND of them are remembered.
+    private static final Duration NOT_FOUND_TTL = Duration.ofMinutes(30);
+    private static final int MAX_NOT_FOUND = 1000;
+    //Most queries remembered as aliases of known cities.
+    private static final int MAX_ALIASES = 2000;
 
-    private static API api = new API();
+    private final ConcurrentSkipListMap<String, Entry> cities;
+    //Builds in progress by normalized query, and by the city they
+    //resolved to.
+    private final ConcurrentHashMap<String, CompletableFuture<String>> builds;
+    private final ConcurrentHashMap<String, CompletableFuture<String>> fetches;
+    //Names of known cities by the normalized queries which resolved to them.
+    private final ConcurrentHashMap<String, String> aliases;
+    //Expiry times of queries which resolved to no city, by normalized query.
+    private final ConcurrentHashMap<String, Long> notFound;
+    //System.nanoTime, or a fake clock in tests.
+    private final LongSupplier clock;
+    private final iAsyncAPI api;
+    //The response cache and rate limit layers of api, or null.
+    private final CachedWeatherAPI weatherCache;
+    private final RateLimitedAPI rateLimiter;
+    private final int capacity;
+    //Places of the gazetteer, for naming coordinates. Indexed on the
+    //first reverse geocoding, so that startup does not wait for it.
+    private final Supplier<SpatialIndex<Location>> placeSource;
+    private volatile SpatialIndex<Location> places;
+    //Known cities by coordinates, rebuilt when cities have changed.
+    private final AtomicLong changes = new AtomicLong();
+    private volatile Located located = new Located(-1, null);
+    private final Object evictionLock = new Object();
+    //Logical clock of city uses, for recency.
+    private final AtomicLong useClock = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong reuses = new AtomicLong();
+    private final AtomicLong aliasHits = new AtomicLong();
+    private final AtomicLong notFoundHits = new AtomicLong();
+    private volatile Supplier<? extends Collection<String>> pinnedCities = List::of;
+
+    /**
+     * A city in the map together with how recently and how often it has
+     * been used.
+     */
+    private static final class Entry {
+        private final CityWeatherStatistics city;
+        private final AtomicInteger uses = new AtomicInteger();
+        private volatile long lastUsed;
+        //Clock time of the last fetch of all weather, if fetched.
+        private volatile long fetchedAt;
+        private volatile boolean fetched;
+
+        private Entry(CityWeatherStatistics city) {
+            this.city = city;
+        }
+    }
+
+    /**
+     * The spatial index of the known cities as they were after the given
+     * number of changes.
+     */
+    private static final class Located {
+        private final long version;
+        private final SpatialIndex<Entry> index;
+
+        private Located(long version, SpatialIndex<Entry> index) {
+            this.version = version;
+            this.index = index;
+        }
+    }
+
+    /**
+     * The places of the bundled city index, loaded when first needed.
+     */
+    private static final class BundledPlaces {
+        private static final SpatialIndex<Location> INDEX =
+                SpatialIndex.of(CityIndex.getDefault().locations());
+    }
+
+    /**
+     * Builds the layers the app talks to the weather service through.
+     * From the outermost: coordinate snapping, response cache, request
+     * coalescing, optionally the one call mode, the gazetteer file if it
+     * exists, the bundled city index, geocoding cache, retries,
+     * rate limiting and finally the HTTP API. The one call mode is turned on with
+     * USE_ONE_CALL=true and the coordinate snapping with COORDINATE_GRID in
+     * the .env file.
+     * @param env The settings of the .env file.
+     * @param gazetteer The gazetteer, or null if there is none.
+     * @return The outermost layer.
+     */
+    private static iAsyncAPI newApi(Dotenv env, Gazetteer gazetteer) {
+        iAsyncAPI chain = new LocalGeocodingAPI(new CachedGeocodingAPI(
+                new ResilientAPI(new RateLimitedAPI(new API(), CALLS_PER_MINUTE,
+                        CALLS_PER_DAY, Path.of(USAGE_FILE)),
+                MAX_ATTEMPTS, BASE_BACKOFF, MAX_BACKOFF,
+                FAILURES_TO_OPEN_CIRCUIT, CIRCUIT_OPEN_TIME, HEDGE_DELAY),
+                Path.of(GEOCODING_CACHE_FILE)), CityIndex.getDefault());
+        if (gazetteer != null) {
+            chain = new LocalGeocodingAPI(chain, gazetteer);
+        }
+        if (Boolean.parseBoolean(env.get("USE_ONE_CALL", "false"))) {
+            chain = new OneCallAPI(chain);
+        }
+        chain = new CachedWeatherAPI(new SingleFlightAPI(chain),
+                WEATHER_CACHE_ENTRIES, CURRENT_WEATHER_TTL, FORECAST_TTL,
+                HOURLY_WEATHER_TTL);
+        double grid = coordinateGrid(env);
+        if (grid > 0) {
+            chain = new QuantizedAPI(chain, grid);
+        }
+        return chain;
+    }
+
+    /**
+     * Reads the coordinate grid step from COORDINATE_GRID in the .env file.
+     * Snapping trades accuracy for fewer calls: with a step of 0.05 degrees
+     * the weather shown may be that of a point about 3 km away, and places
+     * in the same grid cell share one set of API calls. Near coasts and
+     * mountains that distance can matter, so snapping is off unless set.
+     * @param env The settings of the .env file.
+     * @return The grid step in degrees, or 0 if snapping is off.
+     */
+    private static double coordinateGrid(Dotenv env) {
+        String value = env.get("COORDINATE_GRID", COORDINATE_GRID);
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    /**
+     * Finds a layer of the given type among the layers of an api.
+     * @param api The outermost layer.
+     * @param type The type of the layer.
+     * @return The outermost layer of the type, or null if there is none.
+     */
+    private static <T extends iAsyncAPI> T findLayer(iAsyncAPI api, Class<T> type) {
+        while (api != null) {
+            if (type.isInstance(api)) {
+                return type.cast(api);
+            }
+            api = api instanceof ForwardingAPI ? ((ForwardingAPI) api).delegate() : null;
+        }
+        return null;
+    }
+
+    /**
+     * Opens the gazetteer file, if it exists. The path can be changed with
+     * GAZETTEER_FILE in the .env file.
+     * @param env The settings of the .env file.
+     * @return The gazetteer, or null if there is none.
+     */
+    private static Gazetteer openGazetteer(Dotenv env) {
+        Path file = Path.of(env.get("GAZETTEER_FILE", GAZETTEER_FILE));
+        if (Files.exists(file)) {
+            try {
+                return Gazetteer.open(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return null;
+    }
 
     /**
      * A constructor for CityDatabase.
      */
     public CityDatabase() {
-        cities = new TreeMap<>();
+        this(Dotenv.load());
+    }
+
+    private CityDatabase(Dotenv env) {
+        this(env, openGazetteer(env));
+    }
+
+    private CityDatabase(Dotenv env, Gazetteer gazetteer) {
+        this(newApi(env, gazetteer), MAX_CITIES, gazetteer != null
+                ? gazetteer::spatialIndex : () -> BundledPlaces.INDEX,
+                System::nanoTime);
+    }
+
+    /**
+     * A constructor for CityDatabase which fetches weather through the
+     * given api, for example one pointed at a stub server.
+     * @param api The api used for all requests.
+     */
+    CityDatabase(iAsyncAPI api) {
+        this(api, MAX_CITIES);
+    }
+
+    /**
+     * A constructor for CityDatabase which keeps at most the given number
+     * of cities, not counting pinned cities over the limit.
+     * @param api The api used for all requests.
+     * @param capacity Maximum number of cities kept.
+     */
+    CityDatabase(iAsyncAPI api, int capacity) {
+        this(api, capacity, () -> BundledPlaces.INDEX, System::nanoTime);
+    }
+
+    /**
+     * A constructor for CityDatabase which names coordinates after the
+     * given places.
+     * @param api The api used for all requests.
+     * @param capacity Maximum number of cities kept.
+     * @param places The places coordinates are named after.
+     */
+    CityDatabase(iAsyncAPI api, int capacity, SpatialIndex<Location> places) {
+        this(api, capacity, places, System::nanoTime);
+    }
+
+    /**
+     * A constructor for CityDatabase with a clock, for tests.
+     * @param api The api used for all requests.
+     * @param capacity Maximum number of cities kept.
+     * @param places The places coordinates are named after.
+     * @param clock Returns the time in nanoseconds, like System.nanoTime.
+     */
+    CityDatabase(iAsyncAPI api, int capacity, SpatialIndex<Location> places,
+            LongSupplier clock) {
+        this(api, capacity, () -> places, clock);
+    }
+
+    private CityDatabase(iAsyncAPI api, int capacity,
+            Supplier<SpatialIndex<Location>> places, LongSupplier clock) {
+        this.cities = new ConcurrentSkipListMap<>();
+        this.builds = new ConcurrentHashMap<>();
+        this.fetches = new ConcurrentHashMap<>();
+        this.aliases = new ConcurrentHashMap<>();
+        this.notFound = new ConcurrentHashMap<>();
+        this.api = api;
+        this.weatherCache = findLayer(api, CachedWeatherAPI.class);
+        this.rateLimiter = findLayer(api, RateLimitedAPI.class);
+        this.capacity = capacity;
+        this.placeSource = places;
+        this.clock = clock;
+    }
+
+    /**
+     * Sets the cities which are never evicted. The supplier is asked for
+     * the names every time a city has to be evicted, so it should return
+     * the current names, for example the current favourites.
+     * @param pinned Supplier of the names of the pinned cities.
+     */
+    public void setPinnedCities(Supplier<? extends Collection<String>> pinned) {
+        this.pinnedCities = pinned;
     }
 
     /**
      * A getter which returns a specific city from cities-map.
      * @param name A String value of city name.
-     * @return A reference to a CityWeatherStatistics city object.
+     * @return A reference to a CityWeatherStatistics city object, or null
+     * if the city is not known.
+     */
+    public CityWeatherStatistics getCity(String name) {
+        Entry entry = cities.get(name);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        touch(entry);
+        return entry.city;
+    }
+
+    /**
+     * Tells whether a city is known, without counting it as a use.
+     * @param name A String value of city name.
+     * @return True if the city is in the cities-map.
+     */
+    public boolean contains(String name) {
+        return cities.containsKey(name);
+    }
+
+    /**
+     * Retrieves the number of cities kept.
+     * @return The number of cities kept.
+     */
+    public int size() {
+        return cities.size();
+    }
+
+    /**
+     * Retrieves the number of getCity calls which found the city.
+     * @return The number of hits.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Retrieves the number of getCity calls which did not find the city.
+     * @return The number of misses.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Retrieves the number of cities evicted to stay within the capacity.
+     * @return The number of evictions.
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Retrieves the number of new cities which took the weather of a
+     * nearby city instead of fetching it.
+     * @return The number of reused weathers.
+     */
+    public long getReuseCount() {
+        return reuses.get();
+    }
+
+    /**
+     * Retrieves the number of builds of a known city which needed no
+     * lookup, because the query had resolved to the city before.
+     * @return The number of alias hits.
+     */
+    public long getAliasHitCount() {
+        return aliasHits.get();
+    }
+
+    /**
+     * Retrieves the number of builds answered "" without a lookup, because
+     * the query had recently resolved to no city.
+     * @return The number of negative cache hits.
+     */
+    public long getNotFoundHitCount() {
+        return notFoundHits.get();
+    }
+
+    /**
+     * Retrieves the response cache the weather is fetched through, whose
+     * hit, stale hit and miss counts tell how many requests it saved.
+     * @return The response cache, or null if the api has none.
+     */
+    public CachedWeatherAPI getWeatherCache() {
+        return weatherCache;
+    }
+
+    /**
+     * Retrieves the rate limiter the requests go through, which tells how
+     * many calls are left in todays quota.
+     * @return The rate limiter, or null if the api has none.
+     */
+    public RateLimitedAPI getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Finds the known cities nearest to a point, without counting them as
+     * used.
+     * @param latitude Latitude of the point.
+     * @param longitude Longitude of the point.
+     * @param k The maximum number of cities to return.
+     * @return Up to k cities, the nearest first.
+     */
+    public List<CityWeatherStatistics> nearestCities(double latitude,
+            double longitude, int k) {
+        return citiesOf(located().nearest(latitude, longitude, k));
+    }
+
+    /**
+     * Finds the known cities within a distance of a point, without
+     * counting them as used.
+     * @param latitude Latitude of the point.
+     * @param longitude Longitude of the point.
+     * @param radiusKm The distance in kilometres.
+     * @return The cities within the distance, the nearest first.
+     */
+    public List<CityWeatherStatistics> citiesWithin(double latitude,
+            double longitude, double radiusKm) {
+        return citiesOf(located().within(latitude, longitude, radiusKm));
+    }
+
+    /**
+     * Retrieves the index of the places coordinates are named after,
+     * building it when first needed.
+     */
+    private SpatialIndex<Location> places() {
+        SpatialIndex<Location> index = places;
+        if (index == null) {
+            synchronized (placeSource) {
+                index = places;
+                if (index == null) {
+                    index = placeSource.get();
+                    places = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Finds the place of the gazetteer nearest to a point.
+     * @param latitude Latitude of the point.
+     * @param longitude Longitude of the point.
+     * @return The nearest place, or null if there is none within
+     * REVERSE_GEOCODE_KM.
      */
-    public static CityWeatherStatistics getCity(String name) {
-        return cities.get(name);
+    public Location reverseGeocode(double latitude, double longitude) {
+        List<Location> nearest = places().nearest(latitude, longitude, 1);
+        if (nearest.isEmpty()) {
+            return null;
+        }
+        Location place = nearest.get(0);
+        if (SpatialIndex.distanceKm(latitude, longitude, place.getLatitude(),
+                place.getLongitude()) > REVERSE_GEOCODE_KM) {
+            return null;
+        }
+        return place;
     }
 
     /**
      * A method that tries to build a city, if the city can be found from the api.
      * If city is already in cities-map, this method updates its data, but doesn't
      * build it from scratch. The data comes from the api through getters.
-     * @param name A String value of the city name to be searched.
+     * @param name A String value of the city name to be searched, or
+     * coordinates like "61.5, 23.8".
      * @return A String value of "" if the operation was not successful,
      * else value of city name.
      */
     public String cityBuilder(String name) {
+        try {
+            return buildCity(name);
+        } catch (APIException e) {
+            return "";
+        }
+    }
+
+    /**
+     * Builds or updates a city like cityBuilder, but tells why the
+     * operation failed. If the same query is already being built by
+     * another thread, waits for that build and returns its result.
+     * @param name A String value of the city name to be searched.
+     * @return A String value of the city name, or "" if no city with the
+     * name was found.
+     * @throws APIException if the api could not be used, the reason tells why.
+     */
+    public String buildCity(String name) throws APIException {
+        String key = CityNames.normalize(name);
+        return coalesced(builds, key, () -> build(name, key));
+    }
+
+    /**
+     * A step of a build which may fail with an APIException.
+     */
+    private interface BuildStep {
+        String run() throws APIException;
+    }
+
+    /**
+     * Runs a build step, unless a step with the same key is already
+     * running, in which case waits for that step and returns its result.
+     * @param running The steps running, by key.
+     * @param key Identifies identical steps.
+     * @param step The step.
+     * @return The result of the step.
+     * @throws APIException if the step failed.
+     */
+    private static String coalesced(Map<String, CompletableFuture<String>> running,
+            String key, BuildStep step) throws APIException {
+        CompletableFuture<String> build = new CompletableFuture<>();
+        CompletableFuture<String> existing = running.putIfAbsent(key, build);
+        if (existing != null) {
+            return awaitBuild(existing);
+        }
+        try {
+            String cityName = step.run();
+            build.complete(cityName);
+            return cityName;
+        } catch (APIException | RuntimeException e) {
+            build.completeExceptionally(e);
+            throw e;
+        } finally {
+            running.remove(key, build);
+        }
+    }
+
+    /**
+     * Looks up a city and fetches its weather. The city is added to the map
+     * if it is not known yet, but only once all of its weather has been
+     * fetched. A new city next to a freshly fetched one takes its weather
+     * instead. Queries which resolved to a known city,
+     * or to no city recently, are not looked up again. Queries which
+     * resolve to the same city at the same time share one fetch.
+     * @param name A String value of the city name to be searched, or
+     * coordinates.
+     * @param query The normalized query.
+     * @return A String value of the city name, or "" if no city with the
+     * name was found.
+     * @throws APIException if the api could not be used.
+     */
+    private String build(String name, String query) throws APIException {
+
+        Entry known = knownCity(query);
+        if (known != null) {
+            aliasHits.incrementAndGet();
+            touch(known);
+            String cityName = known.city.getName();
+            return coalesced(fetches, cityName, () -> {
+                fetchWeather(known);
+                return cityName;
+            });
+        }
+        if (recentlyNotFound(query)) {
+            notFoundHits.incrementAndGet();
+            return "";
+        }
 
         //Look up the city, if it cannot be found, return "".
-        String coords = api.lookUpLocation(name);
-        if (coords.isEmpty()) {
+        Location location = resolve(name);
+        if (location == null) {
+            rememberNotFound(query);
             return "";
         }
-        
-        // Parse name of city from coords
-        JsonArray jsonArray = JsonParser.parseString(coords).getAsJsonArray();
-        JsonObject cityjson = jsonArray.get(0).getAsJsonObject();
-        String cityName = cityjson.get("name").getAsString();       
+        String cityName = coalesced(fetches, location.getName(),
+                () -> fetchCity(location));
+        //The fetch may have been started by another query.
+        rememberAlias(query, cityName);
+        return cityName;
+    }
+
+    /**
+     * Fetches the weather of a city, adding the city to the map if it is
+     * not known yet.
+     * @param location The location of the city.
+     * @return A String value of the city name.
+     * @throws APIException if the api could not be used.
+     */
+    private String fetchCity(Location location) throws APIException {
+        String cityName = location.getName();
 
-        //If city is already known, don't make a new one, only
-        //replace old data with current data.
-        if (cities.containsKey(cityName)) {
-            CityWeatherStatistics city = cities.get(cityName);
+        //If city is already known, don't make a new one, only replace old
+        //data with current data. The old data is kept if any of it fails.
+        Entry entry = cities.get(cityName);
+        if (entry != null) {
+            touch(entry);
+            fetchWeather(entry);
+            return cityName;
+        }
 
-            double lat = city.getLatitude();
-            double lon = city.getLongtitude();
+        //A new city is built off the map and published only once all of
+        //its weather has arrived, so no one ever sees it half built, and a
+        //failed build leaves nothing behind.
+        CityWeatherStatistics city = new CityWeatherStatistics(cityName);
+        city.setCoordinates(location.getLatitude(), location.getLongitude());
+        Entry staged = new Entry(city);
+        if (!reuseNearby(staged)) {
+            fetchWeather(staged);
+        }
+
+        //Fetches of a city do not overlap, but should a city still be
+        //published meanwhile, the one published first is kept.
+        Entry published = cities.putIfAbsent(cityName, staged);
+        touch(published != null ? published : staged);
+        if (published == null) {
+            changes.incrementAndGet();
+            evictIfFull(cityName);
+        }
+        return cityName;
+    }
+
+    /**
+     * Finds the known city a query has resolved to before. An alias of a
+     * city which is no longer known is forgotten.
+     * @param query The normalized query.
+     * @return The city, or null if the query is not an alias of a known city.
+     */
+    private Entry knownCity(String query) {
+        String cityName = aliases.get(query);
+        if (cityName == null) {
+            return null;
+        }
+        Entry entry = cities.get(cityName);
+        if (entry == null) {
+            aliases.remove(query, cityName);
+        }
+        return entry;
+    }
 
-            String currentWeather = api.getCurrentWeather(lat, lon);
-            if (currentWeather.isEmpty()) {
-                return "";
+    /**
+     * Remembers that a query resolved to a known city. If too many queries
+     * are remembered, the aliases of cities no longer known are forgotten,
+     * and if that is not enough, the query is not remembered.
+     * @param query The normalized query.
+     * @param cityName The name of the city.
+     */
+    private void rememberAlias(String query, String cityName) {
+        if (aliases.size() >= MAX_ALIASES && !aliases.containsKey(query)) {
+            aliases.values().removeIf(name -> !cities.containsKey(name));
+            if (aliases.size() >= MAX_ALIASES) {
+                return;
             }
-            city.readCurrentWeather(currentWeather);
+        }
+        aliases.put(query, cityName);
+    }
 
+    /**
+     * Tells whether a query resolved to no city less than NOT_FOUND_TTL ago.
+     * @param query The normalized query.
+     * @return True if the query need not be looked up.
+     */
+    private boolean recentlyNotFound(String query) {
+        Long expires = notFound.get(query);
+        if (expires == null) {
+            return false;
+        }
+        if (clock.getAsLong() - expires < 0) {
+            return true;
+        }
+        notFound.remove(query, expires);
+        return false;
+    }
 
-            String forecast = api.getForecast(lat, lon);
-            if (forecast.isEmpty()) {
-                return "";
+    /**
+     * Remembers that a query resolved to no city. If too many queries are
+     * remembered, the expired ones are forgotten, and if that is not
+     * enough, the query is not remembered.
+     * @param query The normalized query.
+     */
+    private void rememberNotFound(String query) {
+        long now = clock.getAsLong();
+        if (notFound.size() >= MAX_NOT_FOUND) {
+            notFound.values().removeIf(expires -> now - expires >= 0);
+            if (notFound.size() >= MAX_NOT_FOUND) {
+                return;
             }
-            city.readDailyWeather(forecast);
+        }
+        notFound.put(query, now + NOT_FOUND_TTL.toNanos());
+    }
 
-            String hourlyWeather = api.getHourlyWeather(lat, lon);
-            if (hourlyWeather.isEmpty()) {
-                return "";
+    /**
+     * Finds the location of a query. Coordinates are named after the
+     * nearest place, or themselves if there is none, without a lookup.
+     * @param name A String value of the city name or coordinates.
+     * @return The location, or null if no city with the name was found.
+     * @throws APIException if the api could not be used.
+     */
+    private Location resolve(String name) throws APIException {
+        double[] point = CityNames.parseCoordinates(name);
+        if (point == null) {
+            return await(api.lookUpLocationAsync(name));
+        }
+        Location place = reverseGeocode(point[0], point[1]);
+        if (place != null) {
+            return place;
+        }
+        return new Location(String.format(Locale.ROOT, "%.2f, %.2f",
+                point[0], point[1]), point[0], point[1], "");
+    }
+
+    /**
+     * Gives a new city the weather of a known city near it, if that
+     * weather is fresh.
+     * @param entry The new city, not in the map yet.
+     * @return True if the weather was reused.
+     */
+    private boolean reuseNearby(Entry entry) {
+        long now = clock.getAsLong();
+        WeatherSnapshot place = entry.city.getSnapshot();
+        for (Entry near : located().within(place.getLatitude(),
+                place.getLongitude(), REUSE_RADIUS_KM)) {
+            long fetchedAt = near.fetchedAt;
+            if (near.fetched
+                    && now - fetchedAt < CURRENT_WEATHER_TTL.toNanos()) {
+                entry.city.copyWeatherFrom(near.city);
+                entry.fetchedAt = fetchedAt;
+                entry.fetched = true;
+                reuses.incrementAndGet();
+                return true;
             }
-            city.readHourlyWeather(hourlyWeather);
+        }
+        return false;
+    }
 
-            return city.getName();
+    /**
+     * Retrieves the spatial index of the known cities, building it again
+     * if cities have been added or evicted since it was built.
+     */
+    private SpatialIndex<Entry> located() {
+        long version = changes.get();
+        Located current = located;
+        if (current.version == version) {
+            return current.index;
+        }
+        SpatialIndex<Entry> index = SpatialIndex.build(cities.values(),
+                entry -> entry.city.getLatitude(), entry -> entry.city.getLongtitude());
+        located = new Located(version, index);
+        return index;
+    }
 
+    private static List<CityWeatherStatistics> citiesOf(List<Entry> entries) {
+        List<CityWeatherStatistics> result = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            result.add(entry.city);
         }
+        return result;
+    }
 
-        //City is not known, so make a new one and add it to the list.
-        CityWeatherStatistics newCity = new CityWeatherStatistics(cityName);
-        cities.put(cityName,newCity);
+    /**
+     * Refreshes the current weather of known cities with as few requests as
+     * possible. Cities whose OpenWeatherMap ID is known are fetched in
+     * group requests of up to MAX_GROUP_SIZE cities. The rest, such as all
+     * cities in the one call mode whose responses have no ID, and the
+     * cities of a group request which failed, are fetched one by one.
+     * Forecasts are not refreshed and names of unknown cities are ignored.
+     * Group results are not in the response cache, but a city ignores
+     * current weather older than what it has, so a cached response read
+     * later does not replace them.
+     * @param names Names of the cities to refresh.
+     * @return The number of cities whose weather was refreshed.
+     */
+    public int refreshCurrentWeather(Collection<String> names) {
+        List<CityWeatherStatistics> withId = new ArrayList<>();
+        List<CityWeatherStatistics> single = new ArrayList<>();
+        for (String name : names) {
+            Entry entry = cities.get(name);
+            if (entry == null) {
+                continue;
+            }
+            CityWeatherStatistics city = entry.city;
+            if (city.getCityId() != 0) {
+                withId.add(city);
+            } else {
+                single.add(city);
+            }
+        }
 
-        newCity.setCoordinates(coords);
+        //Start every group request before waiting for any of them.
+        List<List<CityWeatherStatistics>> groups = new ArrayList<>();
+        List<CompletableFuture<List<CurrentWeather>>> requests = new ArrayList<>();
+        for (int i = 0; i < withId.size(); i += iAsyncAPI.MAX_GROUP_SIZE) {
+            List<CityWeatherStatistics> group = withId.subList(i,
+                    Math.min(i + iAsyncAPI.MAX_GROUP_SIZE, withId.size()));
+            List<Integer> ids = new ArrayList<>();
+            for (CityWeatherStatistics city : group) {
+                ids.add(city.getCityId());
+            }
+            groups.add(group);
+            requests.add(api.getCurrentWeatherGroupAsync(ids));
+        }
 
-        double lat = newCity.getLatitude();
-        double lon = newCity.getLongtitude();
+        int refreshed = 0;
+        for (int i = 0; i < groups.size(); i++) {
+            Map<Integer, CurrentWeather> byId = new HashMap<>();
+            try {
+                for (CurrentWeather weather : await(requests.get(i))) {
+                    byId.put(weather.getCityId(), weather);
+                }
+            } catch (APIException e) {
+                //The whole group is fetched one by one instead.
+            }
+            for (CityWeatherStatistics city : groups.get(i)) {
+                CurrentWeather weather = byId.get(city.getCityId());
+                if (weather != null && city.readCurrentWeather(weather)) {
+                    refreshed++;
+                } else {
+                    single.add(city);
+                }
+            }
+        }
 
-        String currentWeather = api.getCurrentWeather(lat, lon);
-        if (currentWeather.isEmpty()) {
-            return "";
+        List<CompletableFuture<CurrentWeather>> singleRequests = new ArrayList<>();
+        for (CityWeatherStatistics city : single) {
+            WeatherSnapshot place = city.getSnapshot();
+            singleRequests.add(api.getCurrentWeatherAsync(place.getLatitude(),
+                    place.getLongitude()));
         }
-        newCity.readCurrentWeather(currentWeather);
-        String forecast = api.getForecast(lat, lon);
-        
-        if (forecast.isEmpty()) {
-            return "";
+        for (int i = 0; i < single.size(); i++) {
+            try {
+                if (single.get(i).readCurrentWeather(await(singleRequests.get(i)))) {
+                    refreshed++;
+                }
+            } catch (APIException e) {
+                //Keep the old weather of this city.
+            }
         }
-        newCity.readDailyWeather(forecast);
+        return refreshed;
+    }
 
-        String hourlyWeather = api.getHourlyWeather(lat, lon);
-        
-        if (hourlyWeather.isEmpty()) {
-            return "";
+    /**
+     * Marks a city used now.
+     */
+    private void touch(Entry entry) {
+        entry.uses.incrementAndGet();
+        entry.lastUsed = useClock.incrementAndGet();
+    }
+
+    /**
+     * Evicts cities until the map is within its capacity. Only unpinned
+     * cities are evicted, and never the city just added.
+     * @param added Name of the city just added.
+     */
+    private void evictIfFull(String added) {
+        if (cities.size() <= capacity) {
+            return;
+        }
+        synchronized (evictionLock) {
+            Set<String> pinned = new HashSet<>(pinnedCities.get());
+            pinned.add(added);
+            while (cities.size() > capacity) {
+                String victim = chooseVictim(pinned);
+                if (victim == null) {
+                    //Everything left is pinned.
+                    return;
+                }
+                if (cities.remove(victim) != null) {
+                    changes.incrementAndGet();
+                    evictions.incrementAndGet();
+                    aliases.values().removeIf(victim::equals);
+                }
+            }
+        }
+    }
+
+    /**
+     * Chooses the city to evict: the least used one among the least
+     * recently used quarter of the unpinned cities. Recency keeps a city
+     * which was used a lot long ago from staying forever, and frequency
+     * keeps a popular city from being evicted by a burst of one-off
+     * searches.
+     * @param pinned Names of the cities which may not be evicted.
+     * @return Name of the city to evict, or null if there is none.
+     */
+    private String chooseVictim(Set<String> pinned) {
+        List<Map.Entry<String, Entry>> candidates = new ArrayList<>();
+        for (Map.Entry<String, Entry> entry : cities.entrySet()) {
+            if (!pinned.contains(entry.getKey())) {
+                candidates.add(entry);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return null;
         }
-        newCity.readHourlyWeather(hourlyWeather);
+        candidates.sort(Comparator.comparingLong(entry -> entry.getValue().lastUsed));
+        int window = Math.max(1, candidates.size() / EVICTION_WINDOW_DIVISOR);
+        Map.Entry<String, Entry> victim = candidates.get(0);
+        for (int i = 1; i < window; i++) {
+            if (candidates.get(i).getValue().uses.get() < victim.getValue().uses.get()) {
+                victim = candidates.get(i);
+            }
+        }
+        return victim.getKey();
+    }
+
+    /**
+     * Fetches current weather, daily forecast and hourly forecast for a city
+     * concurrently and publishes them to the city once all three have arrived.
+     * @param entry The city whose weather is fetched.
+     * @throws APIException if any of the requests failed or did not complete
+     * within the timeout.
+     */
+    private void fetchWeather(Entry entry) throws APIException {
+        CityWeatherStatistics city = entry.city;
+        WeatherSnapshot place = city.getSnapshot();
+        double lat = place.getLatitude();
+        double lon = place.getLongitude();
 
-        return newCity.getName();
+        //Start all three requests before waiting for any of them.
+        CompletableFuture<CurrentWeather> currentWeather =
+                api.getCurrentWeatherAsync(lat, lon);
+        CompletableFuture<List<DailyWeather>> forecast =
+                api.getForecastAsync(lat, lon);
+        CompletableFuture<List<HourlyWeather>> hourlyWeather =
+                api.getHourlyWeatherAsync(lat, lon);
 
+        await(CompletableFuture.allOf(currentWeather, forecast, hourlyWeather));
+
+        //Publish all three at once, so readers never see them mixed.
+        city.update(currentWeather.join(), forecast.join(), hourlyWeather.join());
+        entry.fetchedAt = clock.getAsLong();
+        entry.fetched = true;
     }
 
+    /**
+     * Waits for a build started by another thread. The build has its own
+     * timeouts, so it is waited for without one.
+     * @param build The build.
+     * @return The result of the build.
+     * @throws APIException if the build failed.
+     */
+    private static String awaitBuild(CompletableFuture<String> build)
+            throws APIException {
+        try {
+            return build.get();
+        } catch (ExecutionException e) {
+            throw APIException.from(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new APIException(APIException.Reason.TIMEOUT,
+                    "Interrupted while waiting for an answer");
+        }
+    }
 
+    /**
+     * Waits for a request to complete.
+     * @param future The request.
+     * @return The result of the request.
+     * @throws APIException if the request failed or did not complete in time.
+     */
+    private static <T> T await(CompletableFuture<T> future) throws APIException {
+        try {
+            return future.get(FETCH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            throw APIException.from(e);
+        } catch (TimeoutException e) {
+            throw new APIException(APIException.Reason.TIMEOUT,
+                    "No answer in " + FETCH_TIMEOUT_SECONDS + " seconds");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new APIException(APIException.Reason.TIMEOUT,
+                    "Interrupted while waiting for an answer");
+        }
+    }
 }
@@ -0,0 +1,409 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * An in-memory index of city names for searching cities without the
+ * network. Names are matched folded, see CityNames.fold, so diacritics,
+ * case and punctuation do not matter.
+ * The index is a trie stored in a few flat arrays. The children of a node
+ * are stored next to each other and sorted by their letter, and the cities
+ * are sorted by their folded name, so the cities under a node are one
+ * range of the city arrays.
+ * Suggestions are cities whose name starts with the query, and, for
+ * queries of at least MIN_FUZZY_LENGTH letters, cities whose name starts
+ * with something one typo away from the query: one letter added, removed,
+ * replaced, or two neighbouring letters swapped. Exact matches come first
+ * and bigger cities before smaller ones.
+ */
+public final class CityIndex {
+    //Classpath resource of the bundled gazetteer.
+    public static final String RESOURCE = "/cities.txt";
+    //Shortest query which is also matched with one typo.
+    private static final int MIN_FUZZY_LENGTH = 3;
+
+    private static final CityIndex EMPTY = new CityIndex(new ArrayList<>());
+
+    //Cities, sorted by folded name and then by population, largest first.
+    private final String[] names;
+    private final String[] countries;
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private final int[] populations;
+
+    //Trie nodes, the root is node 0.
+    private final char[] labels;
+    private final int[] firstChild;
+    private final int[] childCount;
+    //Cities under a node are [entryFrom, entryTo), the ones whose name ends
+    //at the node come first and end at terminalEnd.
+    private final int[] entryFrom;
+    private final int[] entryTo;
+    private final int[] terminalEnd;
+    private final int maxDepth;
+
+    /**
+     * A city read from the gazetteer.
+     */
+    private static final class City {
+        private final String key;
+        private final String name;
+        private final String country;
+        private final double latitude;
+        private final double longitude;
+        private final int population;
+
+        private City(String name, String country, double latitude,
+                double longitude, int population) {
+            this.key = CityNames.fold(name);
+            this.name = name;
+            this.country = country;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.population = population;
+        }
+    }
+
+    /**
+     * Holder of the bundled index, loaded when first used.
+     */
+    private static final class Bundled {
+        private static final CityIndex INDEX = loadBundled();
+    }
+
+    private CityIndex(List<City> cities) {
+        cities.removeIf(city -> city.key.isEmpty());
+        cities.sort(Comparator.comparing((City city) -> city.key)
+                .thenComparing(city -> -city.population));
+        int n = cities.size();
+        names = new String[n];
+        countries = new String[n];
+        latitudes = new double[n];
+        longitudes = new double[n];
+        populations = new int[n];
+        String[] keys = new String[n];
+        int maxNodes = 1;
+        int deepest = 0;
+        for (int i = 0; i < n; i++) {
+            City city = cities.get(i);
+            keys[i] = city.key;
+            names[i] = city.name;
+            countries[i] = city.country;
+            latitudes[i] = city.latitude;
+            longitudes[i] = city.longitude;
+            populations[i] = city.population;
+            maxNodes += city.key.length();
+            deepest = Math.max(deepest, city.key.length());
+        }
+        maxDepth = deepest;
+
+        //Build breadth first, so the children of every node are allocated
+        //together when the node is processed.
+        char[] label = new char[maxNodes];
+        int[] first = new int[maxNodes];
+        int[] count = new int[maxNodes];
+        int[] from = new int[maxNodes];
+        int[] to = new int[maxNodes];
+        int[] terminal = new int[maxNodes];
+        int[] depth = new int[maxNodes];
+        from[0] = 0;
+        to[0] = n;
+        int nodes = 1;
+        for (int node = 0; node < nodes; node++) {
+            int d = depth[node];
+            int i = from[node];
+            while (i < to[node] && keys[i].length() == d) {
+                i++;
+            }
+            terminal[node] = i;
+            first[node] = nodes;
+            while (i < to[node]) {
+                char c = keys[i].charAt(d);
+                int j = i;
+                while (j < to[node] && keys[j].charAt(d) == c) {
+                    j++;
+                }
+                label[nodes] = c;
+                from[nodes] = i;
+                to[nodes] = j;
+                depth[nodes] = d + 1;
+                nodes++;
+                i = j;
+            }
+            count[node] = nodes - first[node];
+        }
+        labels = Arrays.copyOf(label, nodes);
+        firstChild = Arrays.copyOf(first, nodes);
+        childCount = Arrays.copyOf(count, nodes);
+        entryFrom = Arrays.copyOf(from, nodes);
+        entryTo = Arrays.copyOf(to, nodes);
+        terminalEnd = Arrays.copyOf(terminal, nodes);
+    }
+
+    /**
+     * Retrieves the index of the bundled gazetteer, loading it when first
+     * called. If it cannot be read, the index is empty.
+     * @return The bundled index.
+     */
+    public static CityIndex getDefault() {
+        return Bundled.INDEX;
+    }
+
+    /**
+     * Reads an index from a gazetteer: one city per line with name, country
+     * code, latitude, longitude and population separated by tabs. Empty
+     * lines and lines starting with # are skipped.
+     * @param reader The gazetteer.
+     * @return The index.
+     * @throws IOException if the gazetteer cannot be read or a line is
+     * broken.
+     */
+    public static CityIndex read(Reader reader) throws IOException {
+        List<City> cities = new ArrayList<>();
+        BufferedReader lines = new BufferedReader(reader);
+        String line;
+        int lineNumber = 0;
+        while ((line = lines.readLine()) != null) {
+            lineNumber++;
+            if (line.isBlank() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\t");
+            try {
+                cities.add(new City(fields[0], fields[1],
+                        Double.parseDouble(fields[2]), Double.parseDouble(fields[3]),
+                        Integer.parseInt(fields[4])));
+            } catch (RuntimeException e) {
+                throw new IOException("Broken gazetteer line " + lineNumber, e);
+            }
+        }
+        return new CityIndex(cities);
+    }
+
+    private static CityIndex loadBundled() {
+        try (InputStream in = CityIndex.class.getResourceAsStream(RESOURCE)) {
+            if (in == null) {
+                return EMPTY;
+            }
+            return read(new InputStreamReader(in, StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return EMPTY;
+        }
+    }
+
+    /**
+     * Retrieves the number of cities in the index.
+     * @return The number of cities.
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * Retrieves every city of the index, for example to index them by
+     * their coordinates.
+     * @return The locations of the cities.
+     */
+    public List<Location> locations() {
+        List<Location> locations = new ArrayList<>(names.length);
+        for (int i = 0; i < names.length; i++) {
+            locations.add(location(i));
+        }
+        return locations;
+    }
+
+    /**
+     * Finds the city with exactly the given name. The query may end with a
+     * comma and a country code, like "Paris, US". If several cities have
+     * the name, the biggest one is returned.
+     * @param query The name of the city, optionally with a country code.
+     * @return The location of the city, or null if it is not in the index.
+     */
+    public Location find(String query) {
+        String country = "";
+        int comma = query.lastIndexOf(',');
+        if (comma >= 0) {
+            country = query.substring(comma + 1).trim().toUpperCase(Locale.ROOT);
+            query = query.substring(0, comma);
+        }
+        int node = walk(CityNames.fold(query));
+        if (node < 0) {
+            return null;
+        }
+        for (int i = entryFrom[node]; i < terminalEnd[node]; i++) {
+            if (country.isEmpty() || country.equals(countries[i])) {
+                return location(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Suggests cities for a partially typed name. Cities whose name starts
+     * with the query come first, then cities whose name starts with
+     * something one typo away from it. Within both, a city whose whole name
+     * matches comes before longer names, and bigger cities before smaller.
+     * @param query The text typed so far. A country code after a comma is
+     * ignored.
+     * @param limit Maximum number of suggestions.
+     * @return The suggested cities, best first.
+     */
+    public List<Location> suggest(String query, int limit) {
+        int comma = query.indexOf(',');
+        String key = CityNames.fold(comma >= 0 ? query.substring(0, comma) : query);
+        if (key.isEmpty() || limit <= 0) {
+            return List.of();
+        }
+        Ranking ranking = new Ranking(limit);
+        int exact = walk(key);
+        if (exact >= 0) {
+            ranking.addRange(exact, 0);
+        }
+        if (key.length() >= MIN_FUZZY_LENGTH && ranking.size < limit) {
+            int[][] rows = new int[maxDepth + 1][key.length() + 1];
+            for (int j = 0; j <= key.length(); j++) {
+                rows[0][j] = j;
+            }
+            fuzzy(0, 0, key, rows, exact, ranking);
+        }
+        List<Location> found = new ArrayList<>(ranking.size);
+        for (int i = 0; i < ranking.size; i++) {
+            found.add(location(ranking.entries[i]));
+        }
+        return found;
+    }
+
+    /**
+     * Follows the trie along a folded key.
+     * @return The node at the end of the key, or -1 if there is none.
+     */
+    private int walk(String key) {
+        int node = 0;
+        for (int i = 0; i < key.length() && node >= 0; i++) {
+            node = child(node, key.charAt(i));
+        }
+        return node;
+    }
+
+    /**
+     * Finds the child of a node with the given letter by binary search.
+     * @return The child, or -1 if there is none.
+     */
+    private int child(int node, char c) {
+        int lo = firstChild[node];
+        int hi = lo + childCount[node] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (labels[mid] < c) {
+                lo = mid + 1;
+            } else if (labels[mid] > c) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Walks the trie below a node computing the edit distance (with
+     * swaps of neighbouring letters) between the query and the path to
+     * every node. A node where the whole query is within one edit is a
+     * match, and its cities are ranked without going deeper. Branches
+     * where every prefix of the query is already two edits away are
+     * skipped.
+     * @param node The node whose row has been computed.
+     * @param depth Depth of the node, also its row in rows.
+     * @param exact The node matching the query exactly, already ranked.
+     */
+    private void fuzzy(int node, int depth, String key, int[][] rows, int exact,
+            Ranking ranking) {
+        int q = key.length();
+        int end = firstChild[node] + childCount[node];
+        for (int child = firstChild[node]; child < end; child++) {
+            char c = labels[child];
+            int[] prev = rows[depth];
+            int[] row = rows[depth + 1];
+            row[0] = depth + 1;
+            int best = row[0];
+            for (int j = 1; j <= q; j++) {
+                int cost = key.charAt(j - 1) == c ? 0 : 1;
+                int d = Math.min(Math.min(prev[j] + 1, row[j - 1] + 1), prev[j - 1] + cost);
+                if (depth > 0 && j > 1 && c == key.charAt(j - 2)
+                        && labels[node] == key.charAt(j - 1)) {
+                    d = Math.min(d, rows[depth - 1][j - 2] + 1);
+                }
+                row[j] = d;
+                best = Math.min(best, d);
+            }
+            if (row[q] <= 1) {
+                if (child != exact && row[q] == 1) {
+                    ranking.addRange(child, 1);
+                }
+            } else if (best <= 1) {
+                fuzzy(child, depth + 1, key, rows, exact, ranking);
+            }
+        }
+    }
+
+    private Location location(int i) {
+        return new Location(names[i], latitudes[i], longitudes[i], countries[i]);
+    }
+
+    /**
+     * The best cities found so far, kept sorted. Rank is by edit distance,
+     * then whole name matches first, then by population.
+     */
+    private final class Ranking {
+        private final int[] entries;
+        private final long[] scores;
+        private int size;
+
+        private Ranking(int limit) {
+            entries = new int[limit];
+            scores = new long[limit];
+        }
+
+        /**
+         * Ranks the cities under a node, all at the same edit distance.
+         */
+        private void addRange(int node, int distance) {
+            for (int i = entryFrom[node]; i < entryTo[node]; i++) {
+                boolean whole = i < terminalEnd[node];
+                add(i, ((long) distance << 40) | ((whole ? 0L : 1L) << 32)
+                        | (Integer.MAX_VALUE - populations[i]));
+            }
+        }
+
+        private void add(int entry, long score) {
+            if (size == entries.length && score >= scores[size - 1]) {
+                return;
+            }
+            for (int i = 0; i < size; i++) {
+                if (entries[i] == entry) {
+                    return;
+                }
+            }
+            int i = Math.min(size, entries.length - 1);
+            while (i > 0 && scores[i - 1] > score) {
+                entries[i] = entries[i - 1];
+                scores[i] = scores[i - 1];
+                i--;
+            }
+            entries[i] = entry;
+            scores[i] = score;
+            size = Math.min(size + 1, entries.length);
+        }
+    }
+}
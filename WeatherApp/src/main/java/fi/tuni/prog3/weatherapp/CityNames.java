@@ -0,0 +1,86 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.text.Normalizer;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Helper methods for comparing city names typed by the user.
+ */
+public final class CityNames {
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+    private static final Pattern SEPARATORS = Pattern.compile("[\\s\\-]+");
+    private static final Pattern COORDINATES = Pattern.compile(
+            "\\s*([+-]?\\d{1,3}(?:\\.\\d+)?)\\s*(?:[,;]\\s*|\\s+)([+-]?\\d{1,3}(?:\\.\\d+)?)\\s*");
+
+    private CityNames() {
+    }
+
+    /**
+     * Normalizes a location query so that differently typed versions of the
+     * same query map to the same key. Surrounding whitespace is removed,
+     * inner whitespace is collapsed and the text is lower-cased.
+     * @param query The query typed by the user.
+     * @return The normalized query.
+     */
+    public static String normalize(String query) {
+        return query.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Folds a city name for matching regardless of diacritics and
+     * punctuation: letters are lower-cased and their accents removed, a few
+     * letters without a decomposition are spelled out (ø as o, æ as ae, ß as
+     * ss and so on), hyphens count as spaces and other punctuation is
+     * dropped. For example "Jyväskylä" and "jyvaskyla" fold the same, as do
+     * "Cluj-Napoca" and "cluj napoca".
+     * @param name A city name or a query.
+     * @return The folded name.
+     */
+    public static String fold(String name) {
+        String decomposed = Normalizer.normalize(name, Normalizer.Form.NFD);
+        String lower = MARKS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT);
+        StringBuilder folded = new StringBuilder(lower.length());
+        for (int i = 0; i < lower.length(); i++) {
+            char c = lower.charAt(i);
+            switch (c) {
+                case 'ø': folded.append('o'); break;
+                case 'æ': folded.append("ae"); break;
+                case 'œ': folded.append("oe"); break;
+                case 'ß': folded.append("ss"); break;
+                case 'ł': folded.append('l'); break;
+                case 'đ': folded.append('d'); break;
+                case 'ð': folded.append('d'); break;
+                case 'þ': folded.append("th"); break;
+                case 'ı': folded.append('i'); break;
+                default:
+                    if (Character.isLetterOrDigit(c) || Character.isWhitespace(c)
+                            || c == '-') {
+                        folded.append(c);
+                    }
+            }
+        }
+        return SEPARATORS.matcher(folded).replaceAll(" ").trim();
+    }
+
+    /**
+     * Reads a query which is a pair of coordinates in decimal degrees,
+     * latitude first, like "61.4981, 23.7608" or "61.5 23.8".
+     * @param query The query typed by the user.
+     * @return The latitude and the longitude, or null if the query is not
+     * a pair of valid coordinates.
+     */
+    public static double[] parseCoordinates(String query) {
+        Matcher matcher = COORDINATES.matcher(query);
+        if (!matcher.matches()) {
+            return null;
+        }
+        double latitude = Double.parseDouble(matcher.group(1));
+        double longitude = Double.parseDouble(matcher.group(2));
+        if (Math.abs(latitude) > 90 || Math.abs(longitude) > 180) {
+            return null;
+        }
+        return new double[] {latitude, longitude};
+    }
+}
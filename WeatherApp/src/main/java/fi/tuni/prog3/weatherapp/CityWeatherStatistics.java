@@ -1,14 +1,12 @@
 
 package fi.tuni.prog3.weatherapp;
 
-import com.google.gson.Gson;
 import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Date;
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  *
@@ -16,16 +14,10 @@ import java.util.Date;
  */
 public class CityWeatherStatistics {
     private final String name;
-    private double latitude;
-    private double longtitude;
-    private int currentTemperature;
-    private int minTemperature;
-    private int maxTemperature;
-    private int currentWeatherId;
-    private double currentWindspeed;
-    private double currentHumidity;
-    private final ArrayList<DailyWeather> dailyWeatherList;
-    private final ArrayList<HourlyWeather> houryWeatherList;
+    // Every refresh publishes a new snapshot, readers never see a half
+    // updated one. The coordinates are in the snapshot too, so they always
+    // match the weather read with them.
+    private final AtomicReference<WeatherSnapshot> snapshot;
     
     /**
      * Constructs a CityWeatherStatistics object with the given city name.
@@ -33,8 +25,7 @@ public class CityWeatherStatistics {
      */
     public CityWeatherStatistics(String name){
         this.name = name;
-        this.dailyWeatherList = new ArrayList<>();
-        this.houryWeatherList = new ArrayList<>();
+        this.snapshot = new AtomicReference<>(WeatherSnapshot.empty(name));
     }
 
     /**
@@ -51,52 +42,49 @@ public class CityWeatherStatistics {
             // Extract latitude and longitude values
             double lat = city.get("lat").getAsDouble();
             double lon = city.get("lon").getAsDouble();
-            this.latitude = lat;
-            this.longtitude = lon;         
+            setCoordinates(lat, lon);
         }
     }
 
-    
+
+    /**
+     * Sets the latitude and longitude coordinates of the city.
+     * @param lat The latitude of the city.
+     * @param lon The longitude of the city.
+     */
+    public void setCoordinates(double lat, double lon) {
+        snapshot.updateAndGet(weather -> weather.withCoordinates(lat, lon));
+    }
+
     /**
      * Reads and parses the current weather data for the city.
      * @param currentWeather The JSON string containing the current weather data.
      * @return True if reading the data was successful, false otherwise.
      */
     public boolean readCurrentWeather(String currentWeather) {
-        // Parse the JSON string
         // If currentWeather is "", reading currentWeather failed
         if (currentWeather.equals("")){
             return false;
         }
         else{
-            JsonObject jsonObject = JsonParser.parseString(currentWeather).
-                                                        getAsJsonObject();
-            double temperature = jsonObject.getAsJsonObject("main").
-                                                get("temp").getAsDouble();
-            double tempMinDouble = jsonObject.getAsJsonObject("main").
-                                                get("temp_min").getAsDouble();         
-            double tempMaxDouble = jsonObject.getAsJsonObject("main").
-                                                get("temp_max").getAsDouble();
-            int tempMin = (int) Math.round(tempMinDouble);
-            int tempMax = (int) Math.round(tempMaxDouble);
-            double humidity = jsonObject.getAsJsonObject("main").
-                                            get("humidity").getAsDouble();
-            double windSpeed = jsonObject.getAsJsonObject("wind").get("speed")
-                                                            .getAsDouble();
-            int weatherId = jsonObject.getAsJsonArray("weather").get(0).
-                                    getAsJsonObject().get("id").getAsInt();
-            int temperatureRounded = (int) Math.round(temperature);
-
-            this.currentHumidity = humidity;
-            this.currentTemperature = temperatureRounded;
-            this.currentWindspeed = windSpeed;
-            this.currentWeatherId = weatherId; 
-            this.maxTemperature = tempMax;
-            this.minTemperature = tempMin;
-
-            return true;
+            try {
+                return readCurrentWeather(WeatherDecoder.decodeCurrentWeather(
+                                            new StringReader(currentWeather)));
+            } catch (Exception e) {
+                return false;
+            }
         }
     }
+
+    /**
+     * Reads already decoded current weather data for the city.
+     * @param currentWeather The current weather data.
+     * @return True if reading the data was successful, false otherwise.
+     */
+    public boolean readCurrentWeather(CurrentWeather currentWeather) {
+        snapshot.updateAndGet(weather -> weather.withCurrentWeather(currentWeather));
+        return true;
+    }
     
     /**
      * Reads and parses the daily weather data for the city.
@@ -109,54 +97,26 @@ public class CityWeatherStatistics {
         }
         else{
             try {
-                Gson gson = new Gson();
-                JsonObject jsonObject = gson.fromJson(dailyWeatherData, 
-                                                        JsonObject.class);
-                JsonArray listArray = jsonObject.getAsJsonArray("list");
-                
-                // Ignore todays Weather and get only forecast information
-                boolean todaysWeather = true;
-                        
-                for (JsonElement element : listArray) {
-                    if (todaysWeather){
-                        todaysWeather = false;
-                    }
-                    else{
-                        JsonObject listItem = element.getAsJsonObject();
-                        double minDouble = listItem.getAsJsonObject("temp").
-                                                    get("min").getAsDouble();
-                        double maxDouble = listItem.getAsJsonObject("temp").
-                                                    get("max").getAsDouble();
-                        long dt = listItem.get("dt").getAsLong();
-
-                        int minTemp = (int) Math.round(minDouble);
-                        int maxTemp = (int) Math.round(maxDouble);
-
-
-                        Date date = new Date(dt * 1000L);
-
-                        // Extract weatherId information
-                        JsonArray weatherArray = listItem.getAsJsonArray("weather");
-                        // Default value if weather ID is not found
-                        int weatherId = -1; 
-                        for (JsonElement weatherElement : weatherArray) {
-                            weatherId = weatherElement.getAsJsonObject().
-                                                        get("id").getAsInt();
-                            break;
-                        }
-                        // create new DailyWeather object
-                        DailyWeather dailyWeather = new DailyWeather(date, minTemp, 
-                                                                maxTemp, weatherId);
-                        dailyWeatherList.add(dailyWeather);
-                    }
-                       
-                }
-                return true;
+                return readDailyWeather(WeatherDecoder.decodeDailyWeather(
+                                            new StringReader(dailyWeatherData)));
             } catch (Exception e) {
                 return false;
             }
         }            
     }
+
+    /**
+     * Reads already decoded daily weather data for the city. The days are
+     * merged into the days already known by their time: known days are
+     * updated, new days are added and days before the new forecast are
+     * dropped.
+     * @param days The days of the forecast, the first of them being today.
+     * @return True if reading the data was successful, false otherwise.
+     */
+    public boolean readDailyWeather(List<DailyWeather> days) {
+        snapshot.updateAndGet(weather -> weather.withDailyWeather(days));
+        return true;
+    }
     
     /**
      * Reads and parses the hourly weather forecast data for the city.
@@ -170,47 +130,70 @@ public class CityWeatherStatistics {
         }
         else{
             try {
-                Gson gson = new Gson();
-                JsonObject jsonObject = gson.fromJson(hourlyWeatherData, 
-                                                        JsonObject.class);
-                JsonArray list = jsonObject.getAsJsonArray("list");
-
-                for (JsonElement element : list) {
-                    JsonObject item = element.getAsJsonObject();
-                    long dt = item.get("dt").getAsLong();
-                    Date date = new Date(dt * 1000L);
-                    
-                    SimpleDateFormat sdf = new SimpleDateFormat("HH");
-                    // Format the date to extract only the hour
-                    String hour = sdf.format(date);
-                    
-                    double tempDouble = item.getAsJsonObject("main").
-                                            get("temp").getAsDouble();
-                    int temperature = (int) Math.round(tempDouble);
-                    double windSpeed = item.getAsJsonObject("wind").
-                                            get("speed").getAsDouble();
-
-                    // Extract weatherId information
-                    JsonArray weatherArray = item.getAsJsonArray("weather");
-                    // Default value if weather ID is not found
-                    int weatherId = -1; 
-                    for (JsonElement weatherElement : weatherArray) {
-                        weatherId = weatherElement.getAsJsonObject().
-                                                get("id").getAsInt();
-                        break;
-                    }
-                    HourlyWeather hourlyWeather = new HourlyWeather(hour, 
-                                        temperature, windSpeed, weatherId);
-                    houryWeatherList.add(hourlyWeather);
-                }                
-                return true;
-            
+                return readHourlyWeather(WeatherDecoder.decodeHourlyWeather(
+                                            new StringReader(hourlyWeatherData)));
             } catch (Exception e) {
                 return false;
             }
         }            
     }
 
+    /**
+     * Reads already decoded hourly weather forecast data for the city. The
+     * hours are merged into the hours already known by their time: known
+     * hours are updated, new hours are added and hours before the new
+     * forecast are dropped.
+     * @param hours The hours of the forecast.
+     * @return True if reading the data was successful, false otherwise.
+     */
+    public boolean readHourlyWeather(List<HourlyWeather> hours) {
+        snapshot.updateAndGet(weather -> weather.withHourlyWeather(hours));
+        return true;
+    }
+
+    /**
+     * Reads the current weather and both forecasts of a refresh and
+     * publishes them together, so readers see either all of the old data
+     * or all of the new data.
+     * @param currentWeather The current weather.
+     * @param days The days of the forecast, the first of them being today.
+     * @param hours The hours of the forecast.
+     */
+    public void update(CurrentWeather currentWeather, List<DailyWeather> days,
+            List<HourlyWeather> hours) {
+        snapshot.updateAndGet(weather -> weather.withCurrentWeather(currentWeather)
+                .withDailyWeather(days).withHourlyWeather(hours));
+    }
+
+    /**
+     * Takes the weather of another city, for example of a city so near that
+     * its weather is the same. The OpenWeatherMap ID of the other city is
+     * taken too, until the next full refresh of this city replaces it.
+     * @param other The city whose weather is taken.
+     */
+    void copyWeatherFrom(CityWeatherStatistics other) {
+        WeatherSnapshot weather = other.getSnapshot();
+        snapshot.updateAndGet(own -> weather.renamed(getName(),
+                own.getLatitude(), own.getLongitude()));
+    }
+
+    /**
+     * Retrieves the latest weather of the city. Readers which show several
+     * values should take one snapshot and read them all from it.
+     * @return The latest snapshot.
+     */
+    public WeatherSnapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    /**
+     * Retrieves the OpenWeatherMap ID of the city.
+     * @return The city ID, or 0 if it is not known yet.
+     */
+    public int getCityId() {
+        return snapshot.get().getCityId();
+    }
+
     /**
      * Retrieves the name of the city.
      * @return The name of the city.
@@ -224,7 +207,7 @@ public class CityWeatherStatistics {
      * @return The latitude of the city.
      */
     public double getLatitude() {
-        return latitude;
+        return snapshot.get().getLatitude();
     }
 
     /**
@@ -232,7 +215,7 @@ public class CityWeatherStatistics {
      * @return The longitude of the city.
      */
     public double getLongtitude() {
-        return longtitude;
+        return snapshot.get().getLongitude();
     }
 
     /**
@@ -240,7 +223,7 @@ public class CityWeatherStatistics {
      * @return The current temperature of the city.
      */
     public int getCurrentTemperature() {
-        return currentTemperature;
+        return snapshot.get().getCurrentTemperature();
     }
 
     /**
@@ -248,7 +231,7 @@ public class CityWeatherStatistics {
      * @return Todays minimal temperature of the city.
      */
     public int getMinTemperature() {
-        return minTemperature;
+        return snapshot.get().getMinTemperature();
     }
 
     /**
@@ -256,7 +239,7 @@ public class CityWeatherStatistics {
      * @return Todays maximal temperature of the city.
      */
     public int getMaxTemperature() {
-        return maxTemperature;
+        return snapshot.get().getMaxTemperature();
     }   
 
     /**
@@ -264,7 +247,7 @@ public class CityWeatherStatistics {
      * @return The current weather ID of the city.
      */
     public int getCurrentWeatherId() {
-        return currentWeatherId;
+        return snapshot.get().getCurrentWeatherId();
     }
 
     /**
@@ -272,7 +255,7 @@ public class CityWeatherStatistics {
      * @return The current wind speed of the city.
      */
     public double getCurrentWindspeed() {
-        return currentWindspeed;
+        return snapshot.get().getCurrentWindspeed();
     }  
 
     /**
@@ -280,22 +263,38 @@ public class CityWeatherStatistics {
      * @return The current humidity of the city.
      */
     public double getCurrentHumidity() {
-        return currentHumidity;
+        return snapshot.get().getCurrentHumidity();
     }
     
     /**
      * Retrieves the list of daily weather forecasts for the city.
-     * @return The list of daily weather forecasts for the city.
+     * @return A read-only view of the daily weather forecasts for the city.
      */
-    public ArrayList<DailyWeather> getDailyWeatherList() {
-        return dailyWeatherList;
+    public List<DailyWeather> getDailyWeatherList() {
+        return snapshot.get().getDailyWeatherList();
     }
 
     /**
      * Retrieves the list of hourly weather forecasts for the city.
-     * @return The list of hourly weather forecasts for the city.
+     * @return A read-only view of the hourly weather forecasts for the city.
      */
-    public ArrayList<HourlyWeather> getHouryWeatherList() {
-        return houryWeatherList;
-    }   
+    public List<HourlyWeather> getHouryWeatherList() {
+        return snapshot.get().getHourlyWeatherList();
+    }
+
+    /**
+     * Retrieves the daily weather forecasts for the city as a series.
+     * @return A copy of the daily series of the latest snapshot.
+     */
+    public ForecastSeries getDailySeries() {
+        return snapshot.get().getDailySeries();
+    }
+
+    /**
+     * Retrieves the hourly weather forecasts for the city as a series.
+     * @return A copy of the hourly series of the latest snapshot.
+     */
+    public ForecastSeries getHourlySeries() {
+        return snapshot.get().getHourlySeries();
+    }
 }
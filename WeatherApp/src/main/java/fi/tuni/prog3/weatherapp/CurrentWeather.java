@@ -0,0 +1,131 @@
+package fi.tuni.prog3.weatherapp;
+
+/**
+ *
+ * Represents the current weather conditions of a city.
+ */
+public class CurrentWeather {
+    private final int temperature;
+    private final int minTemperature;
+    private final int maxTemperature;
+    private final double humidity;
+    private final double windSpeed;
+    private final int weatherId;
+    private final int cityId;
+    private final long observedAt;
+
+    /**
+     * Constructs a CurrentWeather object with the specified values.
+     * @param temperature The current temperature.
+     * @param minTemperature Todays minimal temperature.
+     * @param maxTemperature Todays maximal temperature.
+     * @param humidity The current humidity.
+     * @param windSpeed The current wind speed.
+     * @param weatherId The weather ID representing the current weather
+     * condition.
+     */
+    public CurrentWeather(int temperature, int minTemperature,
+            int maxTemperature, double humidity, double windSpeed,
+            int weatherId) {
+        this(temperature, minTemperature, maxTemperature, humidity,
+                windSpeed, weatherId, 0);
+    }
+
+    /**
+     * Constructs a CurrentWeather object with the specified values and the
+     * provider's id of the city they were measured for.
+     * @param cityId The OpenWeatherMap city ID, or 0 if not known.
+     */
+    public CurrentWeather(int temperature, int minTemperature,
+            int maxTemperature, double humidity, double windSpeed,
+            int weatherId, int cityId) {
+        this(temperature, minTemperature, maxTemperature, humidity,
+                windSpeed, weatherId, cityId, 0);
+    }
+
+    /**
+     * Constructs a CurrentWeather object with the specified values, the
+     * provider's id of the city and the time the values were measured.
+     * @param cityId The OpenWeatherMap city ID, or 0 if not known.
+     * @param observedAt The time of the measurement in epoch seconds, or 0
+     * if not known.
+     */
+    public CurrentWeather(int temperature, int minTemperature,
+            int maxTemperature, double humidity, double windSpeed,
+            int weatherId, int cityId, long observedAt) {
+        this.temperature = temperature;
+        this.minTemperature = minTemperature;
+        this.maxTemperature = maxTemperature;
+        this.humidity = humidity;
+        this.windSpeed = windSpeed;
+        this.weatherId = weatherId;
+        this.cityId = cityId;
+        this.observedAt = observedAt;
+    }
+
+    /**
+     * Retrieves the current temperature.
+     * @return The current temperature.
+     */
+    public int getTemperature() {
+        return temperature;
+    }
+
+    /**
+     * Retrieves todays minimal temperature.
+     * @return Todays minimal temperature.
+     */
+    public int getMinTemperature() {
+        return minTemperature;
+    }
+
+    /**
+     * Retrieves todays maximal temperature.
+     * @return Todays maximal temperature.
+     */
+    public int getMaxTemperature() {
+        return maxTemperature;
+    }
+
+    /**
+     * Retrieves the current humidity.
+     * @return The current humidity.
+     */
+    public double getHumidity() {
+        return humidity;
+    }
+
+    /**
+     * Retrieves the current wind speed.
+     * @return The current wind speed.
+     */
+    public double getWindSpeed() {
+        return windSpeed;
+    }
+
+    /**
+     * Retrieves the weather ID of the current weather condition.
+     * @return The weather ID of the current weather condition.
+     */
+    public int getWeatherId() {
+        return weatherId;
+    }
+
+    /**
+     * Retrieves the OpenWeatherMap ID of the city the weather is for. The
+     * ID is needed for fetching the weather of many cities with one call.
+     * @return The city ID, or 0 if not known.
+     */
+    public int getCityId() {
+        return cityId;
+    }
+
+    /**
+     * Retrieves the time the weather was measured. Responses from caches
+     * can be older than ones already shown, this tells them apart.
+     * @return The time in epoch seconds, or 0 if not known.
+     */
+    public long getObservedAt() {
+        return observedAt;
+    }
+}
@@ -1,7 +1,9 @@
 
 package fi.tuni.prog3.weatherapp;
 
-import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.Date;
 import java.util.Locale;
 
@@ -10,6 +12,12 @@ import java.util.Locale;
  * Represents daily weather data for a city.
  */
 public class DailyWeather {
+    // Weekday, month and date, e.g. "Tue Apr 20". Formatters are immutable
+    // and thread-safe, so one is shared by all days.
+    private static final DateTimeFormatter DATE_FORMAT =
+            DateTimeFormatter.ofPattern("EEE MMM d", Locale.ENGLISH);
+
+    private final long epochSecond;
     private String date;
     private int minTemp;
     private int maxTemp;
@@ -25,15 +33,24 @@ public class DailyWeather {
      * for the day.
      */
     public DailyWeather(Date date, int minTemp, int maxTemp, int weatherId){
-        // Format the date to extract weekday, month, and date
-        SimpleDateFormat weekdayFormat = new SimpleDateFormat("EEE", Locale.ENGLISH); 
-        SimpleDateFormat monthFormat = new SimpleDateFormat("MMM", Locale.ENGLISH); 
-        SimpleDateFormat dayOfMonthFormat = new SimpleDateFormat("d");
-        String weekday = weekdayFormat.format(date);
-        String month = monthFormat.format(date);
-        String dayOfMonth = dayOfMonthFormat.format(date);
-        
-        this.date = weekday + " " + month + " " + dayOfMonth;
+        this(Math.floorDiv(date.getTime(), 1000L), ZoneId.systemDefault(),
+                minTemp, maxTemp, weatherId);
+    }
+
+    /**
+     * Constructs a DailyWeather object for a day given as seconds since the
+     * epoch, formatted in the given time zone.
+     * @param epochSecond The time of the day in seconds since the epoch.
+     * @param zone The time zone the date is shown in.
+     * @param minTemp The minimum temperature for the day.
+     * @param maxTemp The maximum temperature for the day.
+     * @param weatherId The weather ID representing the weather condition
+     * for the day.
+     */
+    public DailyWeather(long epochSecond, ZoneId zone, int minTemp,
+            int maxTemp, int weatherId) {
+        this.epochSecond = epochSecond;
+        this.date = DATE_FORMAT.format(Instant.ofEpochSecond(epochSecond).atZone(zone));
         this.minTemp = minTemp;
         this.maxTemp = maxTemp;
         this.weatherId = weatherId;
@@ -47,6 +64,14 @@ public class DailyWeather {
         return date;
     }
 
+    /**
+     * Retrieves the time of the day in seconds since the epoch.
+     * @return The time of the day in seconds since the epoch.
+     */
+    public long getEpochSecond() {
+        return epochSecond;
+    }
+
     /**
      * Retrieves the weather ID representing the weather condition for the day.
      * @return The weather ID representing the weather condition for the day.
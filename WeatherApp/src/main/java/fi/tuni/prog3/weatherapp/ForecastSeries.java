@@ -0,0 +1,295 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.time.ZoneId;
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * A compact time series of forecast points, stored column by column in
+ * primitive arrays instead of one object per point. Hourly points use the
+ * temperature, wind speed and weather ID columns. Daily points use the
+ * temperature column for the maximum and the minimum temperature column.
+ * The DailyWeather and HourlyWeather objects the UI works with are made
+ * on demand by the list views.
+ * Points are kept in time order and keyed by their time: putting a point
+ * for a time already in the series replaces it. The series has a fixed
+ * capacity and works as a ring buffer, so when it is full the oldest
+ * point makes room for a newer one. Refreshing a series with a forecast
+ * which mostly overlaps it only touches the points which changed.
+ */
+public class ForecastSeries {
+    private final long[] epoch;
+    private final short[] temp;
+    private final short[] tempMin;
+    private final float[] wind;
+    private final short[] weatherId;
+    // Array index of the oldest point
+    private int head;
+    private int size;
+
+    /**
+     * Constructs an empty ForecastSeries which holds at most the given
+     * number of points.
+     * @param capacity The maximum number of points.
+     */
+    public ForecastSeries(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        epoch = new long[capacity];
+        temp = new short[capacity];
+        tempMin = new short[capacity];
+        wind = new float[capacity];
+        weatherId = new short[capacity];
+    }
+
+    /**
+     * Adds a point, or replaces the point with the same time. If the series
+     * is full, the oldest point is dropped to make room; a point older than
+     * every point of a full series is ignored.
+     * @param epochSecond Time of the point in seconds since the epoch.
+     * @param temperature Temperature of an hour, or maximum of a day.
+     * @param minTemperature Minimum temperature of a day.
+     * @param windSpeed Wind speed of an hour.
+     * @param id Weather ID of the point.
+     */
+    public void put(long epochSecond, int temperature, int minTemperature,
+            double windSpeed, int id) {
+        int pos;
+        if (size == 0 || epochSecond > epoch[slot(size - 1)]) {
+            // The usual case: a new point after all others
+            pos = size;
+        } else {
+            pos = search(epochSecond);
+            if (pos >= 0) {
+                set(slot(pos), epochSecond, temperature, minTemperature,
+                        windSpeed, id);
+                return;
+            }
+            pos = -pos - 1;
+            if (pos == 0 && size == capacity()) {
+                return;
+            }
+        }
+
+        if (size == capacity()) {
+            dropOldest(1);
+            pos--;
+        }
+        // Make room by moving the later points one step towards the tail
+        for (int i = size; i > pos; i--) {
+            int to = slot(i);
+            int from = slot(i - 1);
+            epoch[to] = epoch[from];
+            temp[to] = temp[from];
+            tempMin[to] = tempMin[from];
+            wind[to] = wind[from];
+            weatherId[to] = weatherId[from];
+        }
+        size++;
+        set(slot(pos), epochSecond, temperature, minTemperature, windSpeed, id);
+    }
+
+    /**
+     * Adds a day, or replaces the day with the same time.
+     * @param day The day.
+     */
+    public void put(DailyWeather day) {
+        put(day.getEpochSecond(), day.getMaxTemp(), day.getMinTemp(), 0,
+                day.getWeatherId());
+    }
+
+    /**
+     * Adds an hour, or replaces the hour with the same time.
+     * @param hour The hour.
+     */
+    public void put(HourlyWeather hour) {
+        put(hour.getEpochSecond(), hour.getTemperature(), 0,
+                hour.getWindSpeed(), hour.getWeatherId());
+    }
+
+    /**
+     * Drops the points older than the given time.
+     * @param epochSecond Time of the oldest point to keep.
+     */
+    public void dropBefore(long epochSecond) {
+        int keepFrom = search(epochSecond);
+        dropOldest(keepFrom >= 0 ? keepFrom : -keepFrom - 1);
+    }
+
+    /**
+     * Returns a copy of the series with the same capacity.
+     * @return An independent copy.
+     */
+    public ForecastSeries copy() {
+        ForecastSeries copy = new ForecastSeries(capacity());
+        for (int i = 0; i < size; i++) {
+            copy.set(i, getEpochSecond(i), getTemperature(i),
+                    getMinTemperature(i), getWindSpeed(i), getWeatherId(i));
+        }
+        copy.size = size;
+        return copy;
+    }
+
+    /**
+     * Removes all points.
+     */
+    public void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    /**
+     * Retrieves the maximum number of points.
+     * @return The capacity.
+     */
+    public int capacity() {
+        return epoch.length;
+    }
+
+    /**
+     * Retrieves the number of points.
+     * @return The number of points.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Retrieves the time of a point.
+     * @param i Index of the point.
+     * @return The time in seconds since the epoch.
+     */
+    public long getEpochSecond(int i) {
+        return epoch[slot(checkIndex(i))];
+    }
+
+    /**
+     * Retrieves the temperature of an hour, or the maximum of a day.
+     * @param i Index of the point.
+     * @return The temperature.
+     */
+    public int getTemperature(int i) {
+        return temp[slot(checkIndex(i))];
+    }
+
+    /**
+     * Retrieves the minimum temperature of a day.
+     * @param i Index of the point.
+     * @return The minimum temperature.
+     */
+    public int getMinTemperature(int i) {
+        return tempMin[slot(checkIndex(i))];
+    }
+
+    /**
+     * Retrieves the wind speed of an hour.
+     * @param i Index of the point.
+     * @return The wind speed.
+     */
+    public double getWindSpeed(int i) {
+        return wind[slot(checkIndex(i))];
+    }
+
+    /**
+     * Retrieves the weather ID of a point.
+     * @param i Index of the point.
+     * @return The weather ID.
+     */
+    public int getWeatherId(int i) {
+        return weatherId[slot(checkIndex(i))];
+    }
+
+    /**
+     * Returns a read-only view of the series as days. The view follows
+     * later changes to the series.
+     * @return The days, with dates shown in the system time zone.
+     */
+    public List<DailyWeather> asDailyWeather() {
+        ZoneId zone = ZoneId.systemDefault();
+        return new AbstractList<DailyWeather>() {
+            @Override
+            public DailyWeather get(int i) {
+                return new DailyWeather(getEpochSecond(i), zone,
+                        getMinTemperature(i), getTemperature(i), getWeatherId(i));
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Returns a read-only view of the series as hours. The view follows
+     * later changes to the series.
+     * @return The hours, shown in the system time zone.
+     */
+    public List<HourlyWeather> asHourlyWeather() {
+        ZoneId zone = ZoneId.systemDefault();
+        return new AbstractList<HourlyWeather>() {
+            @Override
+            public HourlyWeather get(int i) {
+                return new HourlyWeather(getEpochSecond(i), zone,
+                        getTemperature(i), getWindSpeed(i), getWeatherId(i));
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private int checkIndex(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Index " + i + ", size " + size);
+        }
+        return i;
+    }
+
+    /**
+     * Returns the array index of the point at the given position.
+     */
+    private int slot(int i) {
+        int slot = head + i;
+        return slot < epoch.length ? slot : slot - epoch.length;
+    }
+
+    /**
+     * Binary search by time.
+     * @return The position of the point with the time, or if there is none,
+     * (-(insertion position) - 1).
+     */
+    private int search(long epochSecond) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long value = epoch[slot(mid)];
+            if (value < epochSecond) {
+                low = mid + 1;
+            } else if (value > epochSecond) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private void dropOldest(int count) {
+        head = slot(count);
+        size -= count;
+    }
+
+    private void set(int slot, long epochSecond, int temperature,
+            int minTemperature, double windSpeed, int id) {
+        epoch[slot] = epochSecond;
+        temp[slot] = (short) temperature;
+        tempMin[slot] = (short) minTemperature;
+        wind[slot] = (float) windSpeed;
+        weatherId[slot] = (short) id;
+    }
+}
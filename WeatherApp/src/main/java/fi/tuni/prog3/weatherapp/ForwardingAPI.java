@@ -0,0 +1,60 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Base class for iAsyncAPI layers which add behaviour on top of another
+ * iAsyncAPI. Every call is passed to the delegate unchanged, so a subclass
+ * only overrides the calls it is interested in.
+ */
+public abstract class ForwardingAPI implements iAsyncAPI {
+    private final iAsyncAPI delegate;
+
+    /**
+     * Constructs a ForwardingAPI which passes calls to the given delegate.
+     * @param delegate The iAsyncAPI which handles the calls.
+     */
+    protected ForwardingAPI(iAsyncAPI delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Retrieves the iAsyncAPI this layer passes calls to.
+     * @return The delegate.
+     */
+    protected iAsyncAPI delegate() {
+        return delegate;
+    }
+
+    @Override
+    public CompletableFuture<Location> lookUpLocationAsync(String loc) {
+        return delegate.lookUpLocationAsync(loc);
+    }
+
+    @Override
+    public CompletableFuture<CurrentWeather> getCurrentWeatherAsync(double lat, double lon) {
+        return delegate.getCurrentWeatherAsync(lat, lon);
+    }
+
+    @Override
+    public CompletableFuture<List<DailyWeather>> getForecastAsync(double lat, double lon) {
+        return delegate.getForecastAsync(lat, lon);
+    }
+
+    @Override
+    public CompletableFuture<List<HourlyWeather>> getHourlyWeatherAsync(double lat, double lon) {
+        return delegate.getHourlyWeatherAsync(lat, lon);
+    }
+
+    @Override
+    public CompletableFuture<OneCallWeather> getAllWeatherAsync(double lat, double lon) {
+        return delegate.getAllWeatherAsync(lat, lon);
+    }
+
+    @Override
+    public CompletableFuture<List<CurrentWeather>> getCurrentWeatherGroupAsync(
+            List<Integer> cityIds) {
+        return delegate.getCurrentWeatherGroupAsync(cityIds);
+    }
+}
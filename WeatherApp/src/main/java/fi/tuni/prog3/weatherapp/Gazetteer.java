@@ -0,0 +1,174 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * A read-only city gazetteer in a binary file, see GazetteerBuilder. The
+ * file is memory-mapped and searched in place, so it is not loaded onto
+ * the heap and may be much bigger than the bundled CityIndex.
+ * The file starts with a header of four ints: magic, version, number of
+ * cities and record size. Then come the cities as fixed size records,
+ * sorted by folded name (see CityNames.fold) compared as unsigned bytes,
+ * and by population, largest first. A record holds the folded name and the
+ * display name as zero padded UTF-8, latitude and longitude as doubles,
+ * the country code as two ASCII bytes, two bytes of padding and the
+ * population as an int.
+ */
+public final class Gazetteer {
+    static final int MAGIC = 0x5747415A;
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 16;
+    static final int KEY_BYTES = 40;
+    static final int NAME_BYTES = 56;
+    static final int LATITUDE_OFFSET = KEY_BYTES + NAME_BYTES;
+    static final int LONGITUDE_OFFSET = LATITUDE_OFFSET + 8;
+    static final int COUNTRY_OFFSET = LONGITUDE_OFFSET + 8;
+    static final int POPULATION_OFFSET = COUNTRY_OFFSET + 4;
+    static final int RECORD_BYTES = POPULATION_OFFSET + 4;
+
+    private final ByteBuffer records;
+    private final int size;
+
+    private Gazetteer(ByteBuffer records, int size) {
+        this.records = records;
+        this.size = size;
+    }
+
+    /**
+     * Opens a gazetteer file by mapping it into memory.
+     * @param file The gazetteer file.
+     * @return The gazetteer.
+     * @throws IOException if the file cannot be read or is not a gazetteer.
+     */
+    public static Gazetteer open(Path file) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC
+                || buffer.getInt(4) != VERSION || buffer.getInt(12) != RECORD_BYTES) {
+            throw new IOException(file + " is not a gazetteer file");
+        }
+        int size = buffer.getInt(8);
+        if (size < 0 || buffer.capacity() < HEADER_BYTES + (long) size * RECORD_BYTES) {
+            throw new IOException(file + " is truncated");
+        }
+        return new Gazetteer(buffer, size);
+    }
+
+    /**
+     * Retrieves the number of cities in the gazetteer.
+     * @return The number of cities.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Finds the city with exactly the given name. The query may end with a
+     * comma and a country code, like "Paris, US". If several cities have
+     * the name, the biggest one is returned.
+     * @param query The name of the city, optionally with a country code.
+     * @return The location of the city, or null if it is not in the
+     * gazetteer.
+     */
+    public Location find(String query) {
+        String country = "";
+        int comma = query.lastIndexOf(',');
+        if (comma >= 0) {
+            country = query.substring(comma + 1).trim().toUpperCase(Locale.ROOT);
+            query = query.substring(0, comma);
+        }
+        byte[] key = CityNames.fold(query).getBytes(StandardCharsets.UTF_8);
+        if (key.length == 0 || key.length > KEY_BYTES) {
+            return null;
+        }
+        for (int i = lowerBound(key); i < size && compareKey(i, key) == 0; i++) {
+            if (country.isEmpty() || country.equals(country(i))) {
+                return location(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Builds an index of the cities by their coordinates. The index keeps
+     * only the order of the record numbers, the coordinates are read from
+     * the mapped file when a query needs them.
+     * @return The index.
+     */
+    public SpatialIndex<Location> spatialIndex() {
+        return SpatialIndex.ofRecords(size,
+                record -> records.getDouble(offset(record) + LATITUDE_OFFSET),
+                record -> records.getDouble(offset(record) + LONGITUDE_OFFSET),
+                this::location);
+    }
+
+    /**
+     * Finds the first record whose key is not smaller than the given key.
+     */
+    private int lowerBound(byte[] key) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareKey(mid, key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Compares the key of a record with a key padded with zeros, as
+     * unsigned bytes.
+     */
+    private int compareKey(int record, byte[] key) {
+        int base = offset(record);
+        for (int i = 0; i < KEY_BYTES; i++) {
+            int a = records.get(base + i) & 0xff;
+            int b = i < key.length ? key[i] & 0xff : 0;
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return 0;
+    }
+
+    private Location location(int record) {
+        int base = offset(record);
+        return new Location(string(base + KEY_BYTES, NAME_BYTES),
+                records.getDouble(base + LATITUDE_OFFSET),
+                records.getDouble(base + LONGITUDE_OFFSET), country(record));
+    }
+
+    private String country(int record) {
+        return string(offset(record) + COUNTRY_OFFSET, 2);
+    }
+
+    /**
+     * Reads a zero padded UTF-8 string.
+     */
+    private String string(int from, int length) {
+        byte[] bytes = new byte[length];
+        int n = 0;
+        while (n < length && records.get(from + n) != 0) {
+            bytes[n] = records.get(from + n);
+            n++;
+        }
+        return new String(bytes, 0, n, StandardCharsets.UTF_8);
+    }
+
+    private static int offset(int record) {
+        return HEADER_BYTES + record * RECORD_BYTES;
+    }
+}
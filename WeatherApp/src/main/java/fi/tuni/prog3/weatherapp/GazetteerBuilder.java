@@ -0,0 +1,143 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compiles a text city list into the binary format read by Gazetteer.
+ * The text has one city per line with name, country code, latitude,
+ * longitude and population separated by tabs, like the bundled
+ * cities.txt. Empty lines and lines starting with # are skipped, and so
+ * are cities whose name does not fit a record.
+ * Usage: run the main method with arguments [input text file]
+ * [output gazetteer file].
+ */
+public final class GazetteerBuilder {
+
+    /**
+     * A city to write.
+     */
+    private static final class Record {
+        private final byte[] key;
+        private final byte[] name;
+        private final byte[] country;
+        private final double latitude;
+        private final double longitude;
+        private final int population;
+
+        private Record(byte[] key, byte[] name, byte[] country, double latitude,
+                double longitude, int population) {
+            this.key = key;
+            this.name = name;
+            this.country = country;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.population = population;
+        }
+    }
+
+    private GazetteerBuilder() {
+    }
+
+    /**
+     * Compiles a city list given on the command line.
+     * @param args The input text file and the output gazetteer file.
+     * @throws IOException if the files cannot be read or written.
+     */
+    public static void main(String[] args) throws IOException {
+        Path in = Path.of(args.length > 0 ? args[0] : "src/main/resources/cities.txt");
+        Path out = Path.of(args.length > 1 ? args[1] : "cities.gaz");
+        try (Reader reader = Files.newBufferedReader(in, StandardCharsets.UTF_8)) {
+            int written = build(reader, out);
+            System.out.printf("Wrote %d cities to %s (%d bytes)%n",
+                    written, out, Files.size(out));
+        }
+    }
+
+    /**
+     * Compiles a city list into a gazetteer file. The file is written
+     * under a temporary name and then moved in place, so a reader never
+     * sees a half written file.
+     * @param reader The city list.
+     * @param out The gazetteer file to write.
+     * @return The number of cities written.
+     * @throws IOException if the list cannot be read, a line is broken or
+     * the file cannot be written.
+     */
+    public static int build(Reader reader, Path out) throws IOException {
+        List<Record> records = read(reader);
+        records.sort((a, b) -> {
+            int byKey = Arrays.compareUnsigned(a.key, b.key);
+            return byKey != 0 ? byKey : Integer.compare(b.population, a.population);
+        });
+
+        ByteBuffer buffer = ByteBuffer.allocate(Gazetteer.HEADER_BYTES
+                + records.size() * Gazetteer.RECORD_BYTES);
+        buffer.putInt(Gazetteer.MAGIC).putInt(Gazetteer.VERSION)
+                .putInt(records.size()).putInt(Gazetteer.RECORD_BYTES);
+        for (Record record : records) {
+            int base = buffer.position();
+            buffer.put(record.key);
+            buffer.position(base + Gazetteer.KEY_BYTES).put(record.name);
+            buffer.position(base + Gazetteer.LATITUDE_OFFSET)
+                    .putDouble(record.latitude).putDouble(record.longitude)
+                    .put(record.country);
+            buffer.position(base + Gazetteer.POPULATION_OFFSET).putInt(record.population);
+        }
+        buffer.flip();
+
+        Path temp = out.resolveSibling(out.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Files.move(temp, out, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return records.size();
+    }
+
+    private static List<Record> read(Reader reader) throws IOException {
+        List<Record> records = new ArrayList<>();
+        BufferedReader lines = new BufferedReader(reader);
+        String line;
+        int lineNumber = 0;
+        while ((line = lines.readLine()) != null) {
+            lineNumber++;
+            if (line.isBlank() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\t");
+            Record record;
+            try {
+                record = new Record(
+                        CityNames.fold(fields[0]).getBytes(StandardCharsets.UTF_8),
+                        fields[0].getBytes(StandardCharsets.UTF_8),
+                        fields[1].getBytes(StandardCharsets.US_ASCII),
+                        Double.parseDouble(fields[2]), Double.parseDouble(fields[3]),
+                        Integer.parseInt(fields[4]));
+            } catch (RuntimeException e) {
+                throw new IOException("Broken city list line " + lineNumber, e);
+            }
+            if (record.key.length == 0 || record.key.length > Gazetteer.KEY_BYTES
+                    || record.name.length > Gazetteer.NAME_BYTES
+                    || record.country.length != 2) {
+                continue;
+            }
+            records.add(record);
+        }
+        return records;
+    }
+}
@@ -1,12 +1,23 @@
 
 package fi.tuni.prog3.weatherapp;
 
+import java.time.Instant;
+import java.time.ZoneId;
 
 /**
  *
  * Represents hourly weather data for a city.
  */
 public class HourlyWeather {
+    // Hours are shown as "00" to "23", shared instead of formatted per hour
+    private static final String[] HOURS = new String[24];
+    static {
+        for (int h = 0; h < HOURS.length; h++) {
+            HOURS[h] = (h < 10 ? "0" : "") + h;
+        }
+    }
+
+    private final long epochSecond;
     private String hour;
     private int temperature;
     private double windSpeed;
@@ -23,6 +34,28 @@ public class HourlyWeather {
      */
     public HourlyWeather(String hour, int temperature, double windSpeed, 
                                      int weatherId){
+        this(0, hour, temperature, windSpeed, weatherId);
+    }
+
+    /**
+     * Constructs an HourlyWeather object for an hour given as seconds since
+     * the epoch, shown in the given time zone.
+     * @param epochSecond The start of the hour in seconds since the epoch.
+     * @param zone The time zone the hour is shown in.
+     * @param temperature The temperature for the hour.
+     * @param windSpeed The wind speed for the hour.
+     * @param weatherId The weather ID representing the weather condition
+     * for the hour.
+     */
+    public HourlyWeather(long epochSecond, ZoneId zone, int temperature,
+            double windSpeed, int weatherId) {
+        this(epochSecond, hourOf(epochSecond, zone), temperature, windSpeed,
+                weatherId);
+    }
+
+    private HourlyWeather(long epochSecond, String hour, int temperature,
+            double windSpeed, int weatherId) {
+        this.epochSecond = epochSecond;
         this.hour = hour;
         this.temperature = temperature;
         this.windSpeed = windSpeed;
@@ -37,6 +70,15 @@ public class HourlyWeather {
         return hour;
     }
 
+    /**
+     * Retrieves the start of the hour in seconds since the epoch.
+     * @return The start of the hour in seconds since the epoch, or 0 if the
+     * hour was given only as text.
+     */
+    public long getEpochSecond() {
+        return epochSecond;
+    }
+
     /**
      * Retrieves the weather ID representing the weather condition for the hour.
      * @return The weather ID representing the weather condition for the hour.
@@ -60,4 +102,13 @@ public class HourlyWeather {
     public double getWindSpeed() {
         return windSpeed;
     }
+
+    /**
+     * Returns the hour of the day of a moment in a time zone, as text.
+     */
+    private static String hourOf(long epochSecond, ZoneId zone) {
+        int offset = zone.getRules().getOffset(Instant.ofEpochSecond(epochSecond))
+                .getTotalSeconds();
+        return HOURS[(int) Math.floorMod(epochSecond + offset, 86400L) / 3600];
+    }
 }
@@ -0,0 +1,42 @@
+package fi.tuni.prog3.weatherapp;
+
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Helper for writing the JSON files the app keeps between runs.
+ */
+final class JsonFiles {
+
+    /**
+     * Writes JSON content to a file.
+     */
+    interface Content {
+        void write(JsonWriter writer) throws IOException;
+    }
+
+    private JsonFiles() {
+    }
+
+    /**
+     * Writes a file first under a temporary name and then moves it over the
+     * old one, so a crash never leaves a half-written file behind.
+     * @param file The file to write.
+     * @param content Writes the JSON content.
+     * @throws IOException if the file cannot be written.
+     */
+    static void writeAtomically(Path file, Content content) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8);
+                JsonWriter writer = new JsonWriter(out)) {
+            content.write(writer);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,72 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * An iAsyncAPI layer which resolves location queries from a local city
+ * list, either the bundled CityIndex or a memory-mapped Gazetteer. Only
+ * queries which are not the exact name of a city in the list, optionally
+ * followed by a comma and a country code, are passed to the delegate.
+ */
+public class LocalGeocodingAPI extends ForwardingAPI {
+    private final Function<String, Location> resolver;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Constructs a LocalGeocodingAPI.
+     * @param delegate The iAsyncAPI which resolves queries not in the index.
+     * @param index The index of known cities.
+     */
+    public LocalGeocodingAPI(iAsyncAPI delegate, CityIndex index) {
+        super(delegate);
+        this.resolver = index::find;
+    }
+
+    /**
+     * Constructs a LocalGeocodingAPI which resolves queries from a
+     * gazetteer file.
+     * @param delegate The iAsyncAPI which resolves queries not in the
+     * gazetteer.
+     * @param gazetteer The gazetteer of known cities.
+     */
+    public LocalGeocodingAPI(iAsyncAPI delegate, Gazetteer gazetteer) {
+        super(delegate);
+        this.resolver = gazetteer::find;
+    }
+
+    /**
+     * Returns the location for a query from the local list, or looks it up
+     * if the list does not have it.
+     * @param loc Name of the location for which coordinates should be fetched.
+     * @return CompletableFuture with the location, or null if not found.
+     */
+    @Override
+    public CompletableFuture<Location> lookUpLocationAsync(String loc) {
+        Location location = resolver.apply(loc);
+        if (location != null) {
+            hits.incrementAndGet();
+            return CompletableFuture.completedFuture(location);
+        }
+        misses.incrementAndGet();
+        return delegate().lookUpLocationAsync(loc);
+    }
+
+    /**
+     * Retrieves the number of queries resolved locally.
+     * @return The number of hits.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Retrieves the number of queries passed to the delegate.
+     * @return The number of misses.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,60 @@
+package fi.tuni.prog3.weatherapp;
+
+/**
+ *
+ * Represents a geocoded location: the canonical name of a place and its
+ * coordinates.
+ */
+public class Location {
+    private final String name;
+    private final double latitude;
+    private final double longitude;
+    private final String country;
+
+    /**
+     * Constructs a Location object with the specified values.
+     * @param name The canonical name of the location.
+     * @param latitude The latitude of the location.
+     * @param longitude The longitude of the location.
+     * @param country The country code of the location, or "" if unknown.
+     */
+    public Location(String name, double latitude, double longitude,
+            String country) {
+        this.name = name;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.country = country;
+    }
+
+    /**
+     * Retrieves the canonical name of the location.
+     * @return The name of the location.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Retrieves the latitude of the location.
+     * @return The latitude of the location.
+     */
+    public double getLatitude() {
+        return latitude;
+    }
+
+    /**
+     * Retrieves the longitude of the location.
+     * @return The longitude of the location.
+     */
+    public double getLongitude() {
+        return longitude;
+    }
+
+    /**
+     * Retrieves the country code of the location.
+     * @return The country code, or "" if unknown.
+     */
+    public String getCountry() {
+        return country;
+    }
+}
@@ -0,0 +1,52 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * An iAsyncAPI layer which answers the current weather, daily forecast and
+ * hourly forecast calls from the combined one call endpoint. The three
+ * calls a city makes for the same coordinates share one request, so a
+ * city costs one weather request instead of three. Geocoding is passed
+ * to the delegate unchanged.
+ */
+public class OneCallAPI extends ForwardingAPI {
+    //Coalesces the one call requests of the three calls.
+    private final SingleFlightAPI oneCalls;
+
+    /**
+     * Constructs a OneCallAPI.
+     * @param delegate The iAsyncAPI which makes the one call requests.
+     */
+    public OneCallAPI(iAsyncAPI delegate) {
+        super(delegate);
+        this.oneCalls = new SingleFlightAPI(delegate);
+    }
+
+    @Override
+    public CompletableFuture<CurrentWeather> getCurrentWeatherAsync(double lat, double lon) {
+        return getAllWeatherAsync(lat, lon).thenApply(OneCallWeather::getCurrentWeather);
+    }
+
+    @Override
+    public CompletableFuture<List<DailyWeather>> getForecastAsync(double lat, double lon) {
+        return getAllWeatherAsync(lat, lon).thenApply(OneCallWeather::getDailyWeather);
+    }
+
+    @Override
+    public CompletableFuture<List<HourlyWeather>> getHourlyWeatherAsync(double lat, double lon) {
+        return getAllWeatherAsync(lat, lon).thenApply(OneCallWeather::getHourlyWeather);
+    }
+
+    /**
+     * Joins the one call request in flight for the coordinates, or starts
+     * a new one.
+     * @param lat The latitude of the location.
+     * @param lon The longitude of the location.
+     * @return CompletableFuture with all three.
+     */
+    @Override
+    public CompletableFuture<OneCallWeather> getAllWeatherAsync(double lat, double lon) {
+        return oneCalls.getAllWeatherAsync(lat, lon);
+    }
+}
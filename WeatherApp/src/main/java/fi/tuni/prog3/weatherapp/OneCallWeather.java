@@ -0,0 +1,68 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The current weather, daily forecast and hourly forecast of one place,
+ * as returned together by a single "one call" request.
+ */
+public class OneCallWeather {
+    private final CurrentWeather currentWeather;
+    private final List<DailyWeather> dailyWeather;
+    private final List<HourlyWeather> hourlyWeather;
+
+    /**
+     * Constructs a OneCallWeather object.
+     * @param currentWeather The current weather.
+     * @param dailyWeather The forecast days, the first of them being today.
+     * @param hourlyWeather The forecast hours.
+     */
+    public OneCallWeather(CurrentWeather currentWeather,
+            List<DailyWeather> dailyWeather, List<HourlyWeather> hourlyWeather) {
+        this.currentWeather = currentWeather;
+        this.dailyWeather = dailyWeather;
+        this.hourlyWeather = hourlyWeather;
+    }
+
+    /**
+     * Combines the results of the three separate calls.
+     * @param current The current weather call.
+     * @param daily The daily forecast call.
+     * @param hourly The hourly forecast call.
+     * @return CompletableFuture which completes with all three, or
+     * exceptionally if any of the calls failed.
+     */
+    static CompletableFuture<OneCallWeather> combine(
+            CompletableFuture<CurrentWeather> current,
+            CompletableFuture<List<DailyWeather>> daily,
+            CompletableFuture<List<HourlyWeather>> hourly) {
+        return CompletableFuture.allOf(current, daily, hourly)
+                .thenApply(done -> new OneCallWeather(current.join(),
+                        daily.join(), hourly.join()));
+    }
+
+    /**
+     * Retrieves the current weather.
+     * @return The current weather.
+     */
+    public CurrentWeather getCurrentWeather() {
+        return currentWeather;
+    }
+
+    /**
+     * Retrieves the daily forecast.
+     * @return The forecast days, the first of them being today.
+     */
+    public List<DailyWeather> getDailyWeather() {
+        return dailyWeather;
+    }
+
+    /**
+     * Retrieves the hourly forecast.
+     * @return The forecast hours.
+     */
+    public List<HourlyWeather> getHourlyWeather() {
+        return hourlyWeather;
+    }
+}
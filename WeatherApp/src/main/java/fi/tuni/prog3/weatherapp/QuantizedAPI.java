@@ -0,0 +1,64 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * An iAsyncAPI layer which snaps the coordinates of weather calls to a
+ * grid. Places closer to each other than the grid step then ask for the
+ * weather of the same point, so they share cached responses and
+ * coalesced requests instead of each making its own calls. Weather data
+ * does not vary much within a few kilometres, so a grid of a few
+ * hundredths of a degree costs little accuracy. Geocoding is passed to
+ * the delegate unchanged.
+ */
+public class QuantizedAPI extends ForwardingAPI {
+    // Snapped coordinates are rounded to this many decimals, so that
+    // floating point noise does not leak into cache keys and URLs
+    private static final double DECIMALS = 1e6;
+
+    private final double step;
+
+    /**
+     * Constructs a QuantizedAPI.
+     * @param delegate The iAsyncAPI which gets the snapped coordinates.
+     * @param step The grid step in degrees, for example 0.05.
+     */
+    public QuantizedAPI(iAsyncAPI delegate, double step) {
+        super(delegate);
+        if (!(step > 0)) {
+            throw new IllegalArgumentException("Grid step must be positive");
+        }
+        this.step = step;
+    }
+
+    @Override
+    public CompletableFuture<CurrentWeather> getCurrentWeatherAsync(double lat, double lon) {
+        return delegate().getCurrentWeatherAsync(snap(lat), snap(lon));
+    }
+
+    @Override
+    public CompletableFuture<List<DailyWeather>> getForecastAsync(double lat, double lon) {
+        return delegate().getForecastAsync(snap(lat), snap(lon));
+    }
+
+    @Override
+    public CompletableFuture<List<HourlyWeather>> getHourlyWeatherAsync(double lat, double lon) {
+        return delegate().getHourlyWeatherAsync(snap(lat), snap(lon));
+    }
+
+    @Override
+    public CompletableFuture<OneCallWeather> getAllWeatherAsync(double lat, double lon) {
+        return delegate().getAllWeatherAsync(snap(lat), snap(lon));
+    }
+
+    /**
+     * Snaps a coordinate to the nearest grid point.
+     * @param coordinate Latitude or longitude in degrees.
+     * @return The coordinate of the nearest grid point.
+     */
+    double snap(double coordinate) {
+        double snapped = Math.round(coordinate / step) * step;
+        return Math.round(snapped * DECIMALS) / DECIMALS;
+    }
+}
@@ -0,0 +1,270 @@
+package fi.tuni.prog3.weatherapp;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * An iAsyncAPI layer which keeps the calls made to the API within the
+ * limits of the subscription plan. A sliding window of one minute limits
+ * the calls per minute, so no 60 second period ever has more calls than
+ * the limit, and a counter limits the calls per day. Calls over the minute
+ * limit wait in a queue and are sent as soon as the oldest call in the
+ * window is a minute old.
+ * Calls with USER priority are always sent before waiting BACKGROUND
+ * calls, see RequestPriority. The daily counter is stored in a file, so
+ * it survives restarts. Calls over the daily quota fail with an
+ * APIException with reason QUOTA_EXCEEDED.
+ */
+public class RateLimitedAPI extends ForwardingAPI {
+    // How long to wait before writing the usage file after a call
+    private static final long SAVE_DELAY_SECONDS = 2;
+    private static final long WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final int callsPerMinute;
+    private final long dailyQuota;
+    private final Path usageFile;
+    private final LongSupplier clock;
+    private final Supplier<LocalDate> today;
+    private final ScheduledExecutorService scheduler;
+
+    private final Deque<CompletableFuture<Void>> userQueue = new ArrayDeque<>();
+    private final Deque<CompletableFuture<Void>> backgroundQueue = new ArrayDeque<>();
+    // Times of the calls made during the last minute, oldest first
+    private final Deque<Long> sent = new ArrayDeque<>();
+    private LocalDate day;
+    private long callsToday;
+    private boolean dispatchScheduled;
+    private boolean saveScheduled;
+
+    /**
+     * Constructs a RateLimitedAPI and reads todays usage from the given
+     * file if it exists.
+     * @param delegate The iAsyncAPI which makes the actual requests.
+     * @param callsPerMinute Maximum number of calls per minute.
+     * @param callsPerDay Maximum number of calls per day (UTC).
+     * @param usageFile The file where the daily usage is stored.
+     */
+    public RateLimitedAPI(iAsyncAPI delegate, int callsPerMinute,
+            long callsPerDay, Path usageFile) {
+        this(delegate, callsPerMinute, callsPerDay, usageFile,
+                System::nanoTime, () -> LocalDate.now(ZoneOffset.UTC));
+    }
+
+    /**
+     * Constructs a RateLimitedAPI with the given clocks.
+     * @param clock Source of the current time in nanoseconds.
+     * @param today Source of the current date.
+     */
+    RateLimitedAPI(iAsyncAPI delegate, int callsPerMinute, long callsPerDay,
+            Path usageFile, LongSupplier clock, Supplier<LocalDate> today) {
+        super(delegate);
+        this.callsPerMinute = callsPerMinute;
+        this.dailyQuota = callsPerDay;
+        this.usageFile = usageFile;
+        this.clock = clock;
+        this.today = today;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread th = new Thread(r, "weatherapp-ratelimit");
+            th.setDaemon(true);
+            return th;
+        });
+        this.day = today.get();
+        load();
+    }
+
+    @Override
+    public CompletableFuture<Location> lookUpLocationAsync(String loc) {
+        return acquire().thenCompose(permit -> delegate().lookUpLocationAsync(loc));
+    }
+
+    @Override
+    public CompletableFuture<CurrentWeather> getCurrentWeatherAsync(double lat, double lon) {
+        return acquire().thenCompose(permit -> delegate().getCurrentWeatherAsync(lat, lon));
+    }
+
+    @Override
+    public CompletableFuture<List<DailyWeather>> getForecastAsync(double lat, double lon) {
+        return acquire().thenCompose(permit -> delegate().getForecastAsync(lat, lon));
+    }
+
+    @Override
+    public CompletableFuture<List<HourlyWeather>> getHourlyWeatherAsync(double lat, double lon) {
+        return acquire().thenCompose(permit -> delegate().getHourlyWeatherAsync(lat, lon));
+    }
+
+    @Override
+    public CompletableFuture<OneCallWeather> getAllWeatherAsync(double lat, double lon) {
+        return acquire().thenCompose(permit -> delegate().getAllWeatherAsync(lat, lon));
+    }
+
+    @Override
+    public CompletableFuture<List<CurrentWeather>> getCurrentWeatherGroupAsync(
+            List<Integer> cityIds) {
+        return acquire().thenCompose(permit ->
+                delegate().getCurrentWeatherGroupAsync(cityIds));
+    }
+
+    /**
+     * Retrieves the number of calls made today.
+     * @return The number of calls made today.
+     */
+    public synchronized long getCallsToday() {
+        rollDay();
+        return callsToday;
+    }
+
+    /**
+     * Retrieves the number of calls still allowed today.
+     * @return The number of calls left in todays quota.
+     */
+    public synchronized long getRemainingToday() {
+        rollDay();
+        return Math.max(0, dailyQuota - callsToday);
+    }
+
+    /**
+     * Queues a permit request with the priority of the current thread.
+     * @return CompletableFuture which completes when the call may be made.
+     */
+    private CompletableFuture<Void> acquire() {
+        CompletableFuture<Void> permit = new CompletableFuture<>();
+        synchronized (this) {
+            if (RequestPriority.current() == RequestPriority.USER) {
+                userQueue.add(permit);
+            } else {
+                backgroundQueue.add(permit);
+            }
+        }
+        dispatch(false);
+        return permit;
+    }
+
+    /**
+     * Hands out the free places in the window to waiting calls, users
+     * first, and schedules itself again for when the oldest call in the
+     * window is a minute old. The
+     * permits are completed outside the lock, because completing them
+     * starts the actual requests.
+     * @param scheduled True if this is the scheduled run.
+     */
+    private void dispatch(boolean scheduled) {
+        List<CompletableFuture<Void>> granted = new ArrayList<>();
+        List<CompletableFuture<Void>> rejected = new ArrayList<>();
+        synchronized (this) {
+            if (scheduled) {
+                dispatchScheduled = false;
+            }
+            rollDay();
+            long now = clock.getAsLong();
+            expire(now);
+            while (sent.size() < callsPerMinute || callsToday >= dailyQuota) {
+                CompletableFuture<Void> next = userQueue.isEmpty()
+                        ? backgroundQueue.poll() : userQueue.poll();
+                if (next == null) {
+                    break;
+                }
+                if (next.isDone()) {
+                    // Cancelled while waiting
+                    continue;
+                }
+                if (callsToday >= dailyQuota) {
+                    rejected.add(next);
+                    continue;
+                }
+                sent.add(now);
+                callsToday++;
+                granted.add(next);
+            }
+            if (!granted.isEmpty()) {
+                scheduleSave();
+            }
+            boolean waiting = !userQueue.isEmpty() || !backgroundQueue.isEmpty();
+            if (waiting && !dispatchScheduled) {
+                long wait = Math.max(1, sent.peekFirst() + WINDOW_NANOS - now);
+                scheduler.schedule(() -> dispatch(true), wait, TimeUnit.NANOSECONDS);
+                dispatchScheduled = true;
+            }
+        }
+        for (CompletableFuture<Void> permit : rejected) {
+            permit.completeExceptionally(new APIException(
+                    APIException.Reason.QUOTA_EXCEEDED,
+                    "Daily quota of " + dailyQuota + " API calls used up"));
+        }
+        for (CompletableFuture<Void> permit : granted) {
+            permit.complete(null);
+        }
+    }
+
+    private void expire(long now) {
+        while (!sent.isEmpty() && now - sent.peekFirst() >= WINDOW_NANOS) {
+            sent.poll();
+        }
+    }
+
+    private void rollDay() {
+        LocalDate current = today.get();
+        if (!current.equals(day)) {
+            day = current;
+            callsToday = 0;
+        }
+    }
+
+    private void scheduleSave() {
+        if (!saveScheduled) {
+            saveScheduled = true;
+            scheduler.schedule(this::save, SAVE_DELAY_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Reads todays usage from the file. Usage from earlier days is ignored.
+     */
+    private void load() {
+        if (!Files.exists(usageFile)) {
+            return;
+        }
+        try (Reader reader = Files.newBufferedReader(usageFile, StandardCharsets.UTF_8)) {
+            JsonObject jsonObject = JsonParser.parseReader(reader).getAsJsonObject();
+            if (day.toString().equals(jsonObject.get("date").getAsString())) {
+                callsToday = jsonObject.get("calls").getAsLong();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void save() {
+        String date;
+        long calls;
+        synchronized (this) {
+            saveScheduled = false;
+            date = day.toString();
+            calls = callsToday;
+        }
+        try {
+            JsonFiles.writeAtomically(usageFile, writer -> writer.beginObject()
+                    .name("date").value(date)
+                    .name("calls").value(calls)
+                    .endObject());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the weather of favourite and recently viewed cities in a
+ * CityDatabase fresh in the background, so that showing them does not
+ * have to wait for the network.
+ * Every city has its own interval for current weather and a longer one for
+ * a full refresh, which also fetches the forecasts. The more a city has
+ * been viewed recently, the shorter its intervals; favourites count as
+ * viewed. Cities which have not been viewed for hours and are not
+ * favourites are dropped. Every interval is jittered, so the refreshes of
+ * cities spread out. If the refreshes would use more calls per day than
+ * the budget, all intervals are stretched to fit it. The budget is a share
+ * of the calls left in the daily quota of the database's rate limiter.
+ * Current weather is refreshed with group requests and all requests are
+ * made with BACKGROUND priority. The refreshes skip the response cache, so
+ * they always get new weather.
+ */
+public class RefreshScheduler implements AutoCloseable {
+    //How often due refreshes are looked for.
+    private static final Duration TICK = Duration.ofSeconds(30);
+    //Shortest and longest refresh intervals of current weather.
+    private static final Duration MIN_CURRENT_INTERVAL = Duration.ofMinutes(10);
+    private static final Duration MAX_CURRENT_INTERVAL = Duration.ofHours(1);
+    //Shortest and longest intervals of full refreshes.
+    private static final Duration MIN_FULL_INTERVAL = Duration.ofMinutes(30);
+    private static final Duration MAX_FULL_INTERVAL = Duration.ofHours(3);
+    //Views count half as much after this time.
+    private static final Duration VIEW_HALF_LIFE = Duration.ofHours(1);
+    //Favourites count as this many recent views.
+    private static final double FAVOURITE_VIEWS = 2;
+    //Cities with fewer recent views than this are dropped, about four
+    //half-lives after the last view.
+    private static final double FORGET_VIEWS = 0.05;
+    //Intervals vary randomly by this fraction up or down.
+    private static final double JITTER = 0.2;
+    //API calls a full refresh may take: current, daily and hourly.
+    private static final int CALLS_PER_FULL_REFRESH = 3;
+    //Share of the calls left today the refreshes may plan on, the rest is
+    //left for what the user does.
+    private static final double BUDGET_SHARE = 0.5;
+
+    private static final long DAY_NANOS = TimeUnit.DAYS.toNanos(1);
+
+    private final CityDatabase database;
+    private final Supplier<? extends Collection<String>> favourites;
+    private final LongSupplier dailyBudget;
+    private final LongSupplier clock;
+    private final Map<String, Schedule> schedules = new HashMap<>();
+    private ScheduledExecutorService executor;
+
+    /**
+     * Refresh state of one city.
+     */
+    private static final class Schedule {
+        private double views;
+        private long viewedAt;
+        private long nextCurrent;
+        private long nextFull;
+    }
+
+    /**
+     * Constructs a RefreshScheduler whose budget is half of the calls left
+     * today, or unlimited if the database has no rate limiter. Nothing is
+     * refreshed before start is called.
+     * @param database The database whose cities are refreshed.
+     * @param favourites Supplier of the names of the favourite cities.
+     */
+    public RefreshScheduler(CityDatabase database,
+            Supplier<? extends Collection<String>> favourites) {
+        this(database, favourites, budgetOf(database.getRateLimiter()),
+                System::nanoTime);
+    }
+
+    /**
+     * Constructs a RefreshScheduler with the given budget and clock.
+     * @param dailyBudget Maximum number of API calls per day.
+     * @param clock Source of the current time in nanoseconds.
+     */
+    RefreshScheduler(CityDatabase database,
+            Supplier<? extends Collection<String>> favourites, long dailyBudget,
+            LongSupplier clock) {
+        this(database, favourites, () -> dailyBudget, clock);
+    }
+
+    private RefreshScheduler(CityDatabase database,
+            Supplier<? extends Collection<String>> favourites,
+            LongSupplier dailyBudget, LongSupplier clock) {
+        this.database = database;
+        this.favourites = favourites;
+        this.dailyBudget = dailyBudget;
+        this.clock = clock;
+    }
+
+    /**
+     * Starts refreshing in a background thread.
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread th = new Thread(r, "weatherapp-refresh");
+            th.setDaemon(true);
+            return th;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                runDue();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }, TICK.toMillis(), TICK.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops refreshing.
+     */
+    @Override
+    public synchronized void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Tells the scheduler that a city was viewed, so that it is kept fresh
+     * and refreshed more often the more it is viewed.
+     * @param name Name of the city.
+     */
+    public synchronized void viewed(String name) {
+        long now = clock.getAsLong();
+        Schedule schedule = schedules.computeIfAbsent(name, key -> newSchedule(now));
+        schedule.views = decayedViews(schedule, now) + 1;
+        schedule.viewedAt = now;
+    }
+
+    /**
+     * Refreshes the cities which are due. Called by the background thread
+     * on every tick.
+     * @return The number of cities refreshed or tried to refresh.
+     */
+    int runDue() {
+        List<String> current = new ArrayList<>();
+        List<String> full = new ArrayList<>();
+        collectDue(current, full);
+        refresh(current, full);
+        return current.size() + full.size();
+    }
+
+    /**
+     * Refreshes cities with BACKGROUND priority, skipping the response
+     * cache.
+     * @param current Names of the cities whose current weather is refreshed.
+     * @param full Names of the cities which are refreshed fully.
+     */
+    void refresh(List<String> current, List<String> full) {
+        RequestPriority.runInBackground(() -> CachedWeatherAPI.fetchingFresh(() -> {
+            if (!current.isEmpty()) {
+                database.refreshCurrentWeather(current);
+            }
+            for (String name : full) {
+                database.cityBuilder(name);
+            }
+            return null;
+        }));
+    }
+
+    /**
+     * Retrieves the current weather interval a city has now, before jitter.
+     * @param name Name of the city.
+     * @return The interval in nanoseconds, or 0 if the city is not
+     * scheduled.
+     */
+    synchronized long getCurrentInterval(String name) {
+        Schedule schedule = schedules.get(name);
+        if (schedule == null) {
+            return 0;
+        }
+        long now = clock.getAsLong();
+        Set<String> favourite = new HashSet<>(favourites.get());
+        double stretch = stretch(now, favourite);
+        return (long) (interval(MIN_CURRENT_INTERVAL, MAX_CURRENT_INTERVAL,
+                score(name, schedule, now, favourite)) * stretch);
+    }
+
+    /**
+     * Sorts the due cities into those needing a full refresh and those
+     * needing only current weather, and schedules their next refreshes.
+     * Favourites not scheduled yet are added and unwanted cities dropped.
+     */
+    private synchronized void collectDue(List<String> current, List<String> full) {
+        long now = clock.getAsLong();
+        Set<String> favourite = new HashSet<>(favourites.get());
+        for (String name : favourite) {
+            schedules.computeIfAbsent(name, key -> newSchedule(now));
+        }
+        double stretch = stretch(now, favourite);
+
+        Iterator<Map.Entry<String, Schedule>> it = schedules.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Schedule> entry = it.next();
+            String name = entry.getKey();
+            Schedule schedule = entry.getValue();
+            boolean isFavourite = favourite.contains(name);
+            if (!isFavourite && (decayedViews(schedule, now) < FORGET_VIEWS
+                    || !database.contains(name))) {
+                it.remove();
+                continue;
+            }
+            double score = score(name, schedule, now, favourite);
+            long currentInterval = (long) (interval(MIN_CURRENT_INTERVAL,
+                    MAX_CURRENT_INTERVAL, score) * stretch);
+            if (now - schedule.nextFull >= 0 || !database.contains(name)) {
+                full.add(name);
+                schedule.nextFull = now + jittered((long) (interval(MIN_FULL_INTERVAL,
+                        MAX_FULL_INTERVAL, score) * stretch));
+                schedule.nextCurrent = now + jittered(currentInterval);
+            } else if (now - schedule.nextCurrent >= 0) {
+                current.add(name);
+                schedule.nextCurrent = now + jittered(currentInterval);
+            }
+        }
+    }
+
+    /**
+     * Makes the schedule of a city added now. Its first refreshes are at a
+     * random point of its intervals, so cities added together spread out.
+     */
+    private Schedule newSchedule(long now) {
+        Schedule schedule = new Schedule();
+        schedule.viewedAt = now;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        schedule.nextCurrent = now + (long) (random.nextDouble()
+                * MIN_CURRENT_INTERVAL.toNanos());
+        schedule.nextFull = now + (long) (random.nextDouble()
+                * MIN_FULL_INTERVAL.toNanos());
+        return schedule;
+    }
+
+    /**
+     * Returns how many views a city has now, each view counting less the
+     * older it is.
+     */
+    private static double decayedViews(Schedule schedule, long now) {
+        double halfLives = (now - schedule.viewedAt) / (double) VIEW_HALF_LIFE.toNanos();
+        return schedule.views * Math.pow(0.5, halfLives);
+    }
+
+    private static double score(String name, Schedule schedule, long now,
+            Set<String> favourite) {
+        return decayedViews(schedule, now)
+                + (favourite.contains(name) ? FAVOURITE_VIEWS : 0);
+    }
+
+    /**
+     * Returns an interval between min and max which gets shorter as the
+     * score grows: max with no views, half of it with one and so on.
+     */
+    private static double interval(Duration min, Duration max, double score) {
+        return Math.max(min.toNanos(), max.toNanos() / (1 + score));
+    }
+
+    /**
+     * Returns how much all intervals must be stretched so that the
+     * refreshes of the scheduled cities fit the daily budget. Current
+     * weather is estimated at one group request per MAX_GROUP_SIZE cities.
+     */
+    private double stretch(long now, Set<String> favourite) {
+        double callsPerDay = 0;
+        for (Map.Entry<String, Schedule> entry : schedules.entrySet()) {
+            double score = score(entry.getKey(), entry.getValue(), now, favourite);
+            callsPerDay += DAY_NANOS / interval(MIN_CURRENT_INTERVAL,
+                    MAX_CURRENT_INTERVAL, score) / iAsyncAPI.MAX_GROUP_SIZE;
+            callsPerDay += CALLS_PER_FULL_REFRESH * DAY_NANOS
+                    / interval(MIN_FULL_INTERVAL, MAX_FULL_INTERVAL, score);
+        }
+        return Math.max(1, callsPerDay / dailyBudget.getAsLong());
+    }
+
+    /**
+     * Returns the budget of refreshes using a rate limiter: a share of the
+     * calls it has left today, at least one.
+     * @param limiter The rate limiter, or null if there is none.
+     * @return Supplier of the current budget.
+     */
+    private static LongSupplier budgetOf(RateLimitedAPI limiter) {
+        if (limiter == null) {
+            return () -> Long.MAX_VALUE;
+        }
+        return () -> Math.max(1, (long) (limiter.getRemainingToday() * BUDGET_SHARE));
+    }
+
+    private static long jittered(long interval) {
+        double factor = 1 + JITTER * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+        return (long) (interval * factor);
+    }
+}
@@ -0,0 +1,42 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.util.function.Supplier;
+
+/**
+ * Priority of the API requests made by the current thread. Requests made
+ * because the user asked for something are served before requests made by
+ * background work, such as cache refreshes.
+ */
+public enum RequestPriority {
+    /** A request the user is waiting for. */
+    USER,
+    /** A request made by background work. */
+    BACKGROUND;
+
+    private static final ThreadLocal<RequestPriority> CURRENT =
+            ThreadLocal.withInitial(() -> USER);
+
+    /**
+     * Retrieves the priority of requests made by the current thread.
+     * @return The current priority, USER unless set otherwise.
+     */
+    public static RequestPriority current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Runs the given call with background priority. Only requests started
+     * synchronously by the call get the priority.
+     * @param call The call to run.
+     * @return The value returned by the call.
+     */
+    public static <T> T runInBackground(Supplier<T> call) {
+        RequestPriority previous = CURRENT.get();
+        CURRENT.set(BACKGROUND);
+        try {
+            return call.get();
+        } finally {
+            CURRENT.set(previous);
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * An iAsyncAPI layer which makes requests resilient to temporary failures.
+ * Failed requests are retried a bounded number of times with exponential
+ * backoff and full jitter, if the failure is retryable. Every endpoint has
+ * its own circuit breaker: after several consecutive failures the endpoint
+ * is not called at all for a while, and calls fail fast with reason
+ * CIRCUIT_OPEN. Optionally a slow request is hedged by sending a second,
+ * identical request after a delay and using whichever answers first.
+ * All failures are delivered as APIException.
+ */
+public class ResilientAPI extends ForwardingAPI {
+    private final int maxAttempts;
+    private final long baseBackoffMillis;
+    private final long maxBackoffMillis;
+    private final int failureThreshold;
+    private final long openNanos;
+    private final Duration hedgeDelay;
+    private final LongSupplier clock;
+    private final Map<String, CircuitBreaker> circuits;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Circuit breaker of one endpoint. Closed lets all calls through. After
+     * failureThreshold consecutive failures it opens and rejects calls.
+     * Once open long enough it lets one trial call through: if the trial
+     * succeeds the circuit closes, otherwise it opens again.
+     */
+    private class CircuitBreaker {
+        private int failures;
+        private long openedAt;
+        private boolean open;
+        private boolean trialInFlight;
+
+        private synchronized boolean allowRequest() {
+            if (!open) {
+                return true;
+            }
+            if (!trialInFlight && clock.getAsLong() - openedAt >= openNanos) {
+                trialInFlight = true;
+                return true;
+            }
+            return false;
+        }
+
+        private synchronized void recordSuccess() {
+            failures = 0;
+            open = false;
+            trialInFlight = false;
+        }
+
+        /**
+         * Lets the next call through as a new trial, without counting the
+         * current trial as a success or a failure.
+         */
+        private synchronized void releaseTrial() {
+            trialInFlight = false;
+        }
+
+        private synchronized void recordFailure() {
+            failures++;
+            if (trialInFlight || failures >= failureThreshold) {
+                open = true;
+                openedAt = clock.getAsLong();
+                trialInFlight = false;
+            }
+        }
+    }
+
+    /**
+     * Constructs a ResilientAPI.
+     * @param delegate The iAsyncAPI which makes the actual requests.
+     * @param maxAttempts Maximum number of attempts per call, including the
+     * first one.
+     * @param baseBackoff Backoff before the first retry. It doubles for
+     * every further retry.
+     * @param maxBackoff Upper limit of the backoff.
+     * @param failureThreshold Consecutive failures which open a circuit.
+     * @param openDuration How long an open circuit rejects calls.
+     * @param hedgeDelay Delay after which a slow request is hedged, or null
+     * to never hedge.
+     */
+    public ResilientAPI(iAsyncAPI delegate, int maxAttempts,
+            Duration baseBackoff, Duration maxBackoff, int failureThreshold,
+            Duration openDuration, Duration hedgeDelay) {
+        this(delegate, maxAttempts, baseBackoff, maxBackoff, failureThreshold,
+                openDuration, hedgeDelay, System::nanoTime);
+    }
+
+    /**
+     * Constructs a ResilientAPI with the given clock.
+     * @param clock Source of the current time in nanoseconds.
+     */
+    ResilientAPI(iAsyncAPI delegate, int maxAttempts, Duration baseBackoff,
+            Duration maxBackoff, int failureThreshold, Duration openDuration,
+            Duration hedgeDelay, LongSupplier clock) {
+        super(delegate);
+        this.maxAttempts = maxAttempts;
+        this.baseBackoffMillis = baseBackoff.toMillis();
+        this.maxBackoffMillis = maxBackoff.toMillis();
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openDuration.toNanos();
+        this.hedgeDelay = hedgeDelay;
+        this.clock = clock;
+        this.circuits = new ConcurrentHashMap<>();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread th = new Thread(r, "weatherapp-retry");
+            th.setDaemon(true);
+            return th;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Location> lookUpLocationAsync(String loc) {
+        return call("geo", () -> delegate().lookUpLocationAsync(loc));
+    }
+
+    @Override
+    public CompletableFuture<CurrentWeather> getCurrentWeatherAsync(double lat, double lon) {
+        return call("weather", () -> delegate().getCurrentWeatherAsync(lat, lon));
+    }
+
+    @Override
+    public CompletableFuture<List<DailyWeather>> getForecastAsync(double lat, double lon) {
+        return call("daily", () -> delegate().getForecastAsync(lat, lon));
+    }
+
+    @Override
+    public CompletableFuture<List<HourlyWeather>> getHourlyWeatherAsync(double lat, double lon) {
+        return call("hourly", () -> delegate().getHourlyWeatherAsync(lat, lon));
+    }
+
+    @Override
+    public CompletableFuture<OneCallWeather> getAllWeatherAsync(double lat, double lon) {
+        return call("onecall", () -> delegate().getAllWeatherAsync(lat, lon));
+    }
+
+    @Override
+    public CompletableFuture<List<CurrentWeather>> getCurrentWeatherGroupAsync(
+            List<Integer> cityIds) {
+        return call("group", () -> delegate().getCurrentWeatherGroupAsync(cityIds));
+    }
+
+    /**
+     * Tells whether the circuit of an endpoint is currently open.
+     * @param endpoint Name of the endpoint: geo, weather, daily, hourly,
+     * onecall or group.
+     * @return True if calls to the endpoint are being rejected.
+     */
+    public boolean isCircuitOpen(String endpoint) {
+        CircuitBreaker circuit = circuits.get(endpoint);
+        if (circuit == null) {
+            return false;
+        }
+        synchronized (circuit) {
+            return circuit.open;
+        }
+    }
+
+    private <T> CompletableFuture<T> call(String endpoint,
+            Supplier<CompletableFuture<T>> request) {
+        CircuitBreaker circuit = circuits.computeIfAbsent(endpoint,
+                key -> new CircuitBreaker());
+        CompletableFuture<T> result = new CompletableFuture<>();
+        // The priority is thread-local, so carry it over to the retries
+        RequestPriority priority = RequestPriority.current();
+        attempt(endpoint, circuit, request, priority, 1, result);
+        return result;
+    }
+
+    /**
+     * Makes one attempt and schedules the next one if it fails.
+     */
+    private <T> void attempt(String endpoint, CircuitBreaker circuit,
+            Supplier<CompletableFuture<T>> request, RequestPriority priority,
+            int attempt, CompletableFuture<T> result) {
+        if (result.isDone()) {
+            // The caller gave up
+            return;
+        }
+        if (!circuit.allowRequest()) {
+            result.completeExceptionally(new APIException(
+                    APIException.Reason.CIRCUIT_OPEN,
+                    "Too many recent failures from " + endpoint));
+            return;
+        }
+
+        Supplier<CompletableFuture<T>> send = priority == RequestPriority.USER
+                ? request : () -> RequestPriority.runInBackground(request);
+        hedged(send).whenComplete((value, e) -> {
+            if (e == null) {
+                circuit.recordSuccess();
+                result.complete(value);
+                return;
+            }
+            APIException failure = APIException.from(e);
+            if (failure.isRetryable()) {
+                circuit.recordFailure();
+            } else if (failure.getReason() != APIException.Reason.QUOTA_EXCEEDED) {
+                // The endpoint answered, it is just not going to work
+                circuit.recordSuccess();
+            } else {
+                // Says nothing of the endpoint, but a trial must not stay
+                // in flight forever
+                circuit.releaseTrial();
+            }
+            if (failure.isRetryable() && attempt < maxAttempts) {
+                scheduler.schedule(() -> attempt(endpoint, circuit, request,
+                        priority, attempt + 1, result),
+                        backoffMillis(attempt), TimeUnit.MILLISECONDS);
+            } else {
+                result.completeExceptionally(failure);
+            }
+        });
+    }
+
+    /**
+     * Returns a random backoff between zero and the exponential backoff of
+     * the given attempt ("full jitter"), so that clients retrying at the
+     * same time spread out.
+     */
+    private long backoffMillis(int attempt) {
+        long exponential = baseBackoffMillis << Math.min(attempt - 1, 20);
+        long cap = Math.min(maxBackoffMillis, exponential);
+        return ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    /**
+     * Sends a request and, if hedging is on and it has not completed after
+     * the hedge delay, a second one. The first success wins; the result
+     * fails only if every request sent failed.
+     */
+    private <T> CompletableFuture<T> hedged(Supplier<CompletableFuture<T>> request) {
+        if (hedgeDelay == null) {
+            return safely(request);
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        AtomicInteger pending = new AtomicInteger(1);
+        BiConsumer<T, Throwable> onDone = (value, e) -> {
+            if (e == null) {
+                result.complete(value);
+            } else if (pending.decrementAndGet() == 0) {
+                result.completeExceptionally(e);
+            }
+        };
+        safely(request).whenComplete(onDone);
+        scheduler.schedule(() -> {
+            if (!result.isDone()) {
+                pending.incrementAndGet();
+                safely(request).whenComplete(onDone);
+            }
+        }, hedgeDelay.toMillis(), TimeUnit.MILLISECONDS);
+        return result;
+    }
+
+    private static <T> CompletableFuture<T> safely(Supplier<CompletableFuture<T>> request) {
+        try {
+            return request.get();
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * An iAsyncAPI layer which coalesces identical concurrent requests. While a
+ * request for an endpoint and coordinates (or a location query) is in
+ * flight, further callers asking for the same thing get the result of that
+ * request instead of starting a new one.
+ */
+public class SingleFlightAPI extends ForwardingAPI {
+    private final Map<String, CompletableFuture<?>> inFlight;
+    private final AtomicLong coalesced;
+
+    /**
+     * Constructs a SingleFlightAPI.
+     * @param delegate The iAsyncAPI which makes the actual requests.
+     */
+    public SingleFlightAPI(iAsyncAPI delegate) {
+        super(delegate);
+        this.inFlight = new ConcurrentHashMap<>();
+        this.coalesced = new AtomicLong();
+    }
+
+    @Override
+    public CompletableFuture<Location> lookUpLocationAsync(String loc) {
+        return shared("geo:" + CityNames.normalize(loc),
+                () -> delegate().lookUpLocationAsync(loc));
+    }
+
+    @Override
+    public CompletableFuture<CurrentWeather> getCurrentWeatherAsync(double lat, double lon) {
+        return shared("weather:" + lat + "," + lon,
+                () -> delegate().getCurrentWeatherAsync(lat, lon));
+    }
+
+    @Override
+    public CompletableFuture<List<DailyWeather>> getForecastAsync(double lat, double lon) {
+        return shared("daily:" + lat + "," + lon,
+                () -> delegate().getForecastAsync(lat, lon));
+    }
+
+    @Override
+    public CompletableFuture<List<HourlyWeather>> getHourlyWeatherAsync(double lat, double lon) {
+        return shared("hourly:" + lat + "," + lon,
+                () -> delegate().getHourlyWeatherAsync(lat, lon));
+    }
+
+    @Override
+    public CompletableFuture<OneCallWeather> getAllWeatherAsync(double lat, double lon) {
+        return shared("onecall:" + lat + "," + lon,
+                () -> delegate().getAllWeatherAsync(lat, lon));
+    }
+
+    /**
+     * Retrieves the number of calls which were answered by joining a
+     * request already in flight.
+     * @return The number of coalesced calls.
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * Joins the request in flight for the key, or starts a new one.
+     * Every caller gets its own copy of the shared future, so one caller
+     * cancelling its copy does not affect the others.
+     * @param key Identifies identical requests.
+     * @param call Starts the request.
+     * @return CompletableFuture with the result of the shared request.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> shared(String key,
+            Supplier<CompletableFuture<T>> call) {
+        CompletableFuture<T> leader = new CompletableFuture<>();
+        CompletableFuture<?> existing = inFlight.putIfAbsent(key, leader);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            return ((CompletableFuture<T>) existing).copy();
+        }
+
+        CompletableFuture<T> request;
+        try {
+            request = call.get();
+        } catch (RuntimeException e) {
+            request = CompletableFuture.failedFuture(e);
+        }
+        request.whenComplete((value, e) -> {
+            // Remove first, so callers arriving after this start a new request
+            inFlight.remove(key, leader);
+            if (e != null) {
+                leader.completeExceptionally(e);
+            } else {
+                leader.complete(value);
+            }
+        });
+        return leader.copy();
+    }
+}
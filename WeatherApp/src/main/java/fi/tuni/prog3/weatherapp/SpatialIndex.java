@@ -0,0 +1,390 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.IntFunction;
+import java.util.function.IntToDoubleFunction;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * A read-only index of places by their coordinates, answering which places
+ * are nearest to a point and which are within a distance of it.
+ * The places are kept in a k-d tree over points on the unit sphere, so
+ * there are no special cases at the poles or the date line: the straight
+ * line distance between two points grows with their distance along the
+ * surface. The tree is balanced and stored in flat arrays, the median of
+ * every range being the node of that range. Both queries take logarithmic
+ * time plus the number of places returned.
+ * The places are numbered records. An index built with build keeps the
+ * places and their points on the heap. An index built with ofRecords keeps
+ * only the order of the record numbers, and reads the coordinates of a
+ * record when a query visits it, for example from a memory-mapped file.
+ * @param <T> The type of the places.
+ */
+public final class SpatialIndex<T> {
+    //Mean radius of the Earth.
+    public static final double EARTH_RADIUS_KM = 6371.0;
+
+    //Record numbers in tree order.
+    private final int[] records;
+    //The axis each node splits its range by.
+    private final byte[] splits;
+    //Unit sphere coordinates of the nodes by axis and tree position, or
+    //null if they are read from the records.
+    private final double[][] axes;
+    private final IntToDoubleFunction latitudes;
+    private final IntToDoubleFunction longitudes;
+    private final IntFunction<? extends T> places;
+
+    private SpatialIndex(int size, IntToDoubleFunction latitudes,
+            IntToDoubleFunction longitudes, IntFunction<? extends T> places,
+            boolean keepPoints) {
+        this.records = new int[size];
+        this.splits = new byte[size];
+        this.latitudes = latitudes;
+        this.longitudes = longitudes;
+        this.places = places;
+        double[][] points = new double[3][size];
+        double[] point = new double[3];
+        for (int i = 0; i < size; i++) {
+            records[i] = i;
+            toPoint(latitudes.applyAsDouble(i), longitudes.applyAsDouble(i), point);
+            points[0][i] = point[0];
+            points[1][i] = point[1];
+            points[2][i] = point[2];
+        }
+        build(points, 0, size);
+        this.axes = keepPoints ? points : null;
+    }
+
+    /**
+     * Builds an index of places.
+     * @param <T> The type of the places.
+     * @param places The places to index.
+     * @param latitude Function returning the latitude of a place in degrees.
+     * @param longitude Function returning the longitude of a place in degrees.
+     * @return The index.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> SpatialIndex<T> build(Collection<? extends T> places,
+            ToDoubleFunction<? super T> latitude, ToDoubleFunction<? super T> longitude) {
+        Object[] items = places.toArray();
+        return new SpatialIndex<>(items.length,
+                i -> latitude.applyAsDouble((T) items[i]),
+                i -> longitude.applyAsDouble((T) items[i]),
+                i -> (T) items[i], true);
+    }
+
+    /**
+     * Builds an index of locations.
+     * @param locations The locations to index.
+     * @return The index.
+     */
+    public static SpatialIndex<Location> of(Collection<Location> locations) {
+        return build(locations, Location::getLatitude, Location::getLongitude);
+    }
+
+    /**
+     * Builds an index of numbered records which are read when needed. Only
+     * the order of the record numbers is kept, five bytes per record, so
+     * the records can stay off the heap.
+     * @param <T> The type of the places.
+     * @param size The number of records, numbered from 0.
+     * @param latitude Function returning the latitude of a record in degrees.
+     * @param longitude Function returning the longitude of a record in degrees.
+     * @param place Function returning the place of a record.
+     * @return The index.
+     */
+    public static <T> SpatialIndex<T> ofRecords(int size, IntToDoubleFunction latitude,
+            IntToDoubleFunction longitude, IntFunction<? extends T> place) {
+        return new SpatialIndex<>(size, latitude, longitude, place, false);
+    }
+
+    /**
+     * Calculates the distance between two points along the surface of the
+     * Earth with the haversine formula.
+     * @param lat1 Latitude of the first point in degrees.
+     * @param lon1 Longitude of the first point in degrees.
+     * @param lat2 Latitude of the second point in degrees.
+     * @param lon2 Longitude of the second point in degrees.
+     * @return The distance in kilometres.
+     */
+    public static double distanceKm(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double h = Math.pow(Math.sin(dLat / 2), 2) + Math.cos(Math.toRadians(lat1))
+                * Math.cos(Math.toRadians(lat2)) * Math.pow(Math.sin(dLon / 2), 2);
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(h)));
+    }
+
+    /**
+     * Retrieves the number of places in the index.
+     * @return The number of places.
+     */
+    public int size() {
+        return records.length;
+    }
+
+    /**
+     * Finds the places nearest to a point.
+     * @param latitude Latitude of the point in degrees.
+     * @param longitude Longitude of the point in degrees.
+     * @param k The maximum number of places to return.
+     * @return Up to k places, the nearest first.
+     */
+    public List<T> nearest(double latitude, double longitude, int k) {
+        Search search = new Search(latitude, longitude);
+        if (k > 0 && records.length > 0) {
+            search.best = new int[Math.min(k, records.length)];
+            search.bestDistances = new double[search.best.length];
+            search.nearest(0, records.length);
+        }
+        return search.result();
+    }
+
+    /**
+     * Finds the places within a distance of a point.
+     * @param latitude Latitude of the point in degrees.
+     * @param longitude Longitude of the point in degrees.
+     * @param radiusKm The distance in kilometres.
+     * @return The places within the distance, the nearest first.
+     */
+    public List<T> within(double latitude, double longitude, double radiusKm) {
+        Search search = new Search(latitude, longitude);
+        if (radiusKm >= 0 && records.length > 0) {
+            double angle = Math.min(radiusKm / EARTH_RADIUS_KM, Math.PI);
+            double chord = 2 * Math.sin(angle / 2);
+            search.best = new int[8];
+            search.bestDistances = new double[8];
+            // A little slack, so places exactly at the radius are not lost
+            // to rounding.
+            search.within(0, records.length, chord * chord + 1e-12);
+            search.sort();
+        }
+        return search.result();
+    }
+
+    /**
+     * Arranges the range [from, to) into a subtree: the median along the
+     * axis of widest spread is moved to the middle, smaller ones before it
+     * and bigger ones after it.
+     */
+    private void build(double[][] points, int from, int to) {
+        while (to - from > 1) {
+            int axis = widestAxis(points, from, to);
+            int mid = (from + to) >>> 1;
+            select(points, axis, from, to - 1, mid);
+            splits[mid] = (byte) axis;
+            build(points, from, mid);
+            from = mid + 1;
+        }
+    }
+
+    private static int widestAxis(double[][] points, int from, int to) {
+        int widest = 0;
+        double widestSpread = -1;
+        for (int axis = 0; axis < 3; axis++) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = from; i < to; i++) {
+                min = Math.min(min, points[axis][i]);
+                max = Math.max(max, points[axis][i]);
+            }
+            if (max - min > widestSpread) {
+                widestSpread = max - min;
+                widest = axis;
+            }
+        }
+        return widest;
+    }
+
+    /**
+     * Moves the k:th smallest value along the axis of [lo, hi] to position
+     * k, with smaller values before it and bigger values after it.
+     */
+    private void select(double[][] points, int axis, int lo, int hi, int k) {
+        double[] values = points[axis];
+        while (lo < hi) {
+            double pivot = values[(lo + hi) >>> 1];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (values[i] < pivot) {
+                    i++;
+                }
+                while (values[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(points, i++, j--);
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void swap(double[][] points, int a, int b) {
+        int record = records[a];
+        records[a] = records[b];
+        records[b] = record;
+        for (double[] values : points) {
+            double value = values[a];
+            values[a] = values[b];
+            values[b] = value;
+        }
+    }
+
+    /**
+     * Converts coordinates in degrees to a point on the unit sphere.
+     */
+    private static void toPoint(double latitude, double longitude, double[] point) {
+        double lat = Math.toRadians(latitude);
+        double lon = Math.toRadians(longitude);
+        point[0] = Math.cos(lat) * Math.cos(lon);
+        point[1] = Math.cos(lat) * Math.sin(lon);
+        point[2] = Math.sin(lat);
+    }
+
+    /**
+     * One query: the point and the places found so far.
+     */
+    private final class Search {
+        private final double[] point = new double[3];
+        //The point of the node visited last, when read from its record.
+        private final double[] node = new double[3];
+        private int nodeAt = -1;
+        private int[] best;
+        //Squared straight line distances of the places found.
+        private double[] bestDistances;
+        private int found;
+
+        private Search(double latitude, double longitude) {
+            toPoint(latitude, longitude, point);
+        }
+
+        /**
+         * Returns a unit sphere coordinate of the node at a tree position.
+         */
+        private double coordinate(int i, int axis) {
+            if (axes != null) {
+                return axes[axis][i];
+            }
+            if (nodeAt != i) {
+                int record = records[i];
+                toPoint(latitudes.applyAsDouble(record),
+                        longitudes.applyAsDouble(record), node);
+                nodeAt = i;
+            }
+            return node[axis];
+        }
+
+        private double distance(int i) {
+            double dx = coordinate(i, 0) - point[0];
+            double dy = coordinate(i, 1) - point[1];
+            double dz = coordinate(i, 2) - point[2];
+            return dx * dx + dy * dy + dz * dz;
+        }
+
+        /**
+         * Searches the subtree of [from, to) for places nearer than the
+         * worst one found, the side of the point first.
+         */
+        private void nearest(int from, int to) {
+            if (from >= to) {
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            offer(mid, distance(mid));
+            double diff = point[splits[mid]] - coordinate(mid, splits[mid]);
+            if (diff < 0) {
+                nearest(from, mid);
+            } else {
+                nearest(mid + 1, to);
+            }
+            if (found < best.length || diff * diff < bestDistances[found - 1]) {
+                if (diff < 0) {
+                    nearest(mid + 1, to);
+                } else {
+                    nearest(from, mid);
+                }
+            }
+        }
+
+        /**
+         * Adds a place to the nearest ones found, which are kept sorted,
+         * if there is room or it is nearer than the worst of them.
+         */
+        private void offer(int i, double distance) {
+            if (found == best.length) {
+                if (distance >= bestDistances[found - 1]) {
+                    return;
+                }
+                found--;
+            }
+            int at = found++;
+            while (at > 0 && bestDistances[at - 1] > distance) {
+                best[at] = best[at - 1];
+                bestDistances[at] = bestDistances[at - 1];
+                at--;
+            }
+            best[at] = i;
+            bestDistances[at] = distance;
+        }
+
+        /**
+         * Collects the places of the subtree of [from, to) within the
+         * squared distance.
+         */
+        private void within(int from, int to, double limit) {
+            if (from >= to) {
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            double distance = distance(mid);
+            if (distance <= limit) {
+                if (found == best.length) {
+                    best = Arrays.copyOf(best, found * 2);
+                    bestDistances = Arrays.copyOf(bestDistances, found * 2);
+                }
+                best[found] = mid;
+                bestDistances[found++] = distance;
+            }
+            double diff = point[splits[mid]] - coordinate(mid, splits[mid]);
+            if (diff < 0 || diff * diff <= limit) {
+                within(from, mid, limit);
+            }
+            if (diff >= 0 || diff * diff <= limit) {
+                within(mid + 1, to, limit);
+            }
+        }
+
+        private void sort() {
+            Integer[] order = new Integer[found];
+            for (int i = 0; i < found; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Double.compare(bestDistances[a], bestDistances[b]));
+            int[] sorted = new int[found];
+            for (int i = 0; i < found; i++) {
+                sorted[i] = best[order[i]];
+            }
+            best = sorted;
+        }
+
+        private List<T> result() {
+            List<T> result = new ArrayList<>(found);
+            for (int i = 0; i < found; i++) {
+                result.add(places.apply(records[best[i]]));
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Startup pipeline of the app. First loads the saved state, then builds
+ * the current place and all favourites concurrently, so that they are
+ * in the CityDatabase when the user wants to see them. The current place
+ * is built with USER priority and the favourites with BACKGROUND priority.
+ * The builds run on virtual threads when the JDK has them (21+), and
+ * otherwise on a small pool of daemon threads. The pipeline can be
+ * cancelled at any point, and it records how long its steps took. The
+ * times are logged at INFO level when the first screen has been shown
+ * and when the pipeline is done.
+ */
+public class StartupWarmup {
+    private static final Logger LOG = Logger.getLogger(StartupWarmup.class.getName());
+    //Threads of the pool used when there are no virtual threads.
+    private static final int MAX_PLATFORM_THREADS = 8;
+
+    private final CityDatabase database;
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+    private final long startedAt;
+    //Stages of the pipeline and the builds they start, kept apart so that
+    //the pipeline is cancelled before a cancelled build could complete it.
+    private final List<CompletableFuture<?>> stages = new ArrayList<>();
+    private final List<CompletableFuture<?>> builds = new ArrayList<>();
+    private CompletableFuture<Void> done;
+    private volatile boolean cancelled;
+    private volatile long loadNanos = -1;
+    private volatile long currentPlaceNanos = -1;
+    private volatile long totalNanos = -1;
+    private volatile long firstScreenNanos = -1;
+    private final AtomicInteger warmedCities = new AtomicInteger();
+
+    /**
+     * Constructs a StartupWarmup which builds cities into the given
+     * database. The time is measured from the construction.
+     * @param database The database the cities are built into.
+     */
+    public StartupWarmup(CityDatabase database) {
+        this.database = database;
+        this.startedAt = System.nanoTime();
+        ExecutorService virtual = newVirtualThreadExecutor();
+        this.virtualThreads = virtual != null;
+        this.executor = virtual != null ? virtual : newPlatformThreadExecutor();
+    }
+
+    /**
+     * Starts the pipeline: runs the load step and then builds the current
+     * place and the favourites it loaded concurrently.
+     * @param load Loads the saved state, run first.
+     * @param currentPlace Supplier of the current place after loading, or
+     * "" if there is none.
+     * @param favourites Supplier of the favourites after loading.
+     * @return CompletableFuture with the built name of the current place, or
+     * "" if there was none or it could not be built.
+     */
+    public synchronized CompletableFuture<String> start(Runnable load,
+            Supplier<String> currentPlace,
+            Supplier<? extends Collection<String>> favourites) {
+        CompletableFuture<Void> loaded = track(CompletableFuture.runAsync(() -> {
+            load.run();
+            loadNanos = System.nanoTime() - startedAt;
+        }, executor));
+
+        //The time is taken before first completes, so it is known to
+        //whoever waits for first.
+        CompletableFuture<String> first = track(loaded.thenCompose(v -> {
+            String place = currentPlace.get();
+            return place.isEmpty() ? CompletableFuture.completedFuture("")
+                    : build(place, RequestPriority.USER);
+        }).thenApply(name -> {
+            currentPlaceNanos = System.nanoTime() - startedAt;
+            return name;
+        }));
+
+        CompletableFuture<Void> rest = track(loaded.thenCompose(v -> {
+            //The current place is already being built.
+            Set<String> names = new LinkedHashSet<>(favourites.get());
+            names.remove(currentPlace.get());
+            List<CompletableFuture<String>> builds = new ArrayList<>();
+            for (String name : names) {
+                builds.add(build(name, RequestPriority.BACKGROUND));
+            }
+            return CompletableFuture.allOf(builds.toArray(new CompletableFuture<?>[0]));
+        }));
+
+        done = CompletableFuture.allOf(first, rest).whenComplete((v, e) -> {
+            totalNanos = System.nanoTime() - startedAt;
+            executor.shutdown();
+            long placeMillis = getCurrentPlaceMillis();
+            LOG.log(Level.INFO, "Startup: save file read in {0} ms, {1}, "
+                    + "{2} cities warmed up in {3} ms on {4}",
+                    new Object[] {getLoadMillis(), placeMillis < 0
+                        ? "no current place"
+                        : "current place built in " + placeMillis + " ms",
+                        getWarmedCities(), getTotalMillis(),
+                        virtualThreads ? "virtual threads" : "a thread pool"});
+        });
+        return first;
+    }
+
+    /**
+     * Retrieves a CompletableFuture which completes when the whole pipeline
+     * has completed or been cancelled.
+     * @return CompletableFuture of the whole pipeline, null before start.
+     */
+    public synchronized CompletableFuture<Void> getDone() {
+        return done;
+    }
+
+    /**
+     * Cancels the pipeline. Builds not started yet are skipped and running
+     * builds are interrupted.
+     */
+    public void cancel() {
+        cancelled = true;
+        List<CompletableFuture<?>> pending;
+        synchronized (this) {
+            pending = new ArrayList<>(stages);
+            pending.addAll(builds);
+        }
+        for (CompletableFuture<?> stage : pending) {
+            stage.cancel(true);
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * Tells whether the builds run on virtual threads.
+     * @return True if virtual threads are used.
+     */
+    public boolean usesVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Retrieves the number of cities built successfully so far.
+     * @return The number of cities built.
+     */
+    public int getWarmedCities() {
+        return warmedCities.get();
+    }
+
+    /**
+     * Retrieves how long loading the saved state took.
+     * @return Milliseconds from the start, or -1 if not loaded yet.
+     */
+    public long getLoadMillis() {
+        return toMillis(loadNanos);
+    }
+
+    /**
+     * Retrieves how long it took until the current place was built.
+     * @return Milliseconds from the start, or -1 if not built yet.
+     */
+    public long getCurrentPlaceMillis() {
+        return toMillis(currentPlaceNanos);
+    }
+
+    /**
+     * Records that the first screen with weather, or the welcome screen if
+     * there is nothing to show, has been shown.
+     */
+    public void firstScreenShown() {
+        if (firstScreenNanos < 0) {
+            firstScreenNanos = System.nanoTime() - startedAt;
+            LOG.log(Level.INFO, "Startup: first screen in {0} ms",
+                    getFirstScreenMillis());
+        }
+    }
+
+    /**
+     * Retrieves how long it took until the first screen was shown.
+     * @return Milliseconds from the start, or -1 if not shown yet.
+     */
+    public long getFirstScreenMillis() {
+        return toMillis(firstScreenNanos);
+    }
+
+    /**
+     * Retrieves how long the whole pipeline took.
+     * @return Milliseconds from the start, or -1 if not done yet.
+     */
+    public long getTotalMillis() {
+        return toMillis(totalNanos);
+    }
+
+    /**
+     * Builds a city on the executor with the given priority.
+     * @return CompletableFuture with the built name, or "" if it failed.
+     */
+    private CompletableFuture<String> build(String name, RequestPriority priority) {
+        if (cancelled) {
+            return CompletableFuture.completedFuture("");
+        }
+        CompletableFuture<String> build = CompletableFuture.supplyAsync(() -> {
+            if (cancelled) {
+                return "";
+            }
+            String built = priority == RequestPriority.USER
+                    ? database.cityBuilder(name)
+                    : RequestPriority.runInBackground(() -> database.cityBuilder(name));
+            if (!built.isEmpty()) {
+                warmedCities.incrementAndGet();
+            }
+            return built;
+        }, executor);
+        synchronized (this) {
+            builds.add(build);
+        }
+        return build;
+    }
+
+    /**
+     * Remembers a stage of the pipeline, so that cancel can cancel it.
+     */
+    private synchronized <T> CompletableFuture<T> track(CompletableFuture<T> stage) {
+        stages.add(stage);
+        return stage;
+    }
+
+    private static long toMillis(long nanos) {
+        return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    /**
+     * Makes an executor with a new virtual thread per task. It is looked
+     * up by reflection, because the app is compiled for older JDKs too.
+     * @return The executor, or null if the JDK has no virtual threads.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService newPlatformThreadExecutor() {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_PLATFORM_THREADS,
+                MAX_PLATFORM_THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                r -> {
+                    Thread th = new Thread(r, "weatherapp-warmup");
+                    th.setDaemon(true);
+                    return th;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
@@ -8,6 +8,7 @@ import javafx.event.ActionEvent;
 import javafx.geometry.HPos;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
+import javafx.geometry.Side;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
 import javafx.scene.input.KeyCode;
@@ -15,7 +16,14 @@ import javafx.scene.layout.*;
 import javafx.scene.paint.Color;
 import javafx.stage.Stage;
 import org.kordamp.ikonli.javafx.FontIcon;
+import java.io.FileNotFoundException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 /**
@@ -29,9 +37,20 @@ public class WeatherApp extends Application {
     private static String currentPlace;
     private static ArrayList<String> favourites;
     private static final String saveFileName = "lastsave.json";
+    private static final int MAX_SUGGESTIONS = 8;
     private MenuButton favouritesMenu;
     private static ArrayList<MenuItem> menuItems;
     private static final CityDatabase database = new CityDatabase();
+    private static RefreshScheduler scheduler;
+    private static StartupWarmup warmup;
+    //Searches wait for the network, so they run off the JavaFX thread,
+    //one at a time in the order they were made.
+    private static final ExecutorService searches =
+            Executors.newSingleThreadExecutor(r -> {
+                Thread th = new Thread(r, "weatherapp-search");
+                th.setDaemon(true);
+                return th;
+            });
 
     /**
      * Constructor for WeatherApp.
@@ -40,6 +59,12 @@ public class WeatherApp extends Application {
         favourites = new ArrayList<>();
         menuItems = new ArrayList<>();
         currentPlace = "";
+        //Favourites and the shown city are never evicted from the database.
+        database.setPinnedCities(() -> {
+            List<String> pinned = copyFavourites();
+            pinned.add(currentPlace);
+            return pinned;
+        });
     }
 
     /**
@@ -58,6 +83,31 @@ public class WeatherApp extends Application {
         return favourites;
     }
 
+    /**
+     * Copies the favourites, so that other threads can read them safely.
+     * @return A copy of favourite cities' names.
+     */
+    private static List<String> copyFavourites() {
+        synchronized (favourites) {
+            return new ArrayList<>(favourites);
+        }
+    }
+
+    /**
+     * Stops the startup warm-up and the background refreshes when the
+     * application exits.
+     */
+    @Override
+    public void stop() {
+        if (warmup != null) {
+            warmup.cancel();
+        }
+        if (scheduler != null) {
+            scheduler.close();
+        }
+        searches.shutdownNow();
+    }
+
     /**
      * Main function which launches the application.
      * @param args An array of command line arguments.
@@ -78,76 +128,123 @@ public class WeatherApp extends Application {
         this.stage = stage;
         WeatherApp app = this;
 
-        //Make a new task for reading the JSON-file concurrently.
-        Task<Void> read = new Task<>() {
-            @Override
-            protected Void call() {
-                final String[] data = new String[1];
-                ReadAndWriteToFile reader = new ReadAndWriteToFile(app);
-                //If data is found, parse and save, else throw exception.
-                try {
-                    data[0] = reader.readFromFile(saveFileName);
-                    parseAndSave(data[0]);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-                return null;
-            }
-        };
+        //Keep favourites and viewed cities fresh in the background.
+        scheduler = new RefreshScheduler(database, WeatherApp::copyFavourites);
+        scheduler.start();
 
-        //Make new thread for the task 'read' and start it.
-        Thread th = new Thread(read);
-        th.setDaemon(true);
-        th.start();
+        //Show a welcome scene right away, the saved city follows when ready.
+        Scene startScene = makeWelcomeScene();
+        switchScene(startScene);
+        stage.setTitle("WeatherApp");
+        stage.show();
+
+        //Read the JSON-file, then build the current place and all
+        //favourites concurrently. The file is read and parsed on the
+        //warm-up thread, but what it holds is taken into use on the
+        //JavaFX thread.
+        AtomicReference<SavedState> saved = new AtomicReference<>(SavedState.NONE);
+        warmup = new StartupWarmup(database);
+        warmup.start(() -> {
+            ReadAndWriteToFile reader = new ReadAndWriteToFile(app);
+            try {
+                SavedState state = parseSave(reader.readFromFile(saveFileName));
+                saved.set(state);
+                Platform.runLater(() -> applySave(state));
+            } catch (FileNotFoundException e) {
+                //Nothing saved yet.
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, () -> saved.get().place, () -> saved.get().favourites)
+                .thenAccept(cityName -> Platform.runLater(() -> {
+            //Don't replace a scene the user has already moved to.
+            if (stage.getScene() != startScene) {
+                return;
+            }
+            //If there is a current place, and it could be built in
+            //database, show weather, otherwise show a warning.
+            if (!cityName.isEmpty()) {
+                showCity(cityName);
+                warmup.firstScreenShown();
+            } else if (!saved.get().place.isEmpty()) {
+                warmup.firstScreenShown();
+                noCityWarning(saved.get().place);
+            } else {
+                //Show the loaded favourites in the menu.
+                switchScene(makeWelcomeScene());
+                warmup.firstScreenShown();
+            }
+        }));
+    }
 
-        //Make a welcome scene.
+    /**
+     * Makes the welcome scene shown when there is no city to show.
+     * @return The welcome scene.
+     */
+    private Scene makeWelcomeScene() {
         BorderPane startRoot = makeRoot();
         startRoot.setCenter(getWelcomeMessage());
 
         Scene startScene = new Scene(startRoot);
         startScene.getStylesheets().add("stylesheet.css");
+        return startScene;
+    }
 
-        //If there is a current place, and it can be built in database, show weather.
-        if (!currentPlace.isEmpty()) {
-            if (!database.cityBuilder(currentPlace).isEmpty()) {
-                showCity(currentPlace);
-                stage.setTitle("WeatherApp");
-                // If there is a current place, but it cannot be built in database, show warning.
-            } else {
-                noCityWarning(currentPlace);
-            }
-            // If there isn't a current place, show welcome screen.
-        } else {
-            switchScene(startScene);
-            stage.setTitle("WeatherApp");
+
+    /**
+     * The current place and favourites read from the save file.
+     */
+    private static final class SavedState {
+        private static final SavedState NONE = new SavedState("", List.of());
+
+        private final String place;
+        private final List<String> favourites;
+
+        private SavedState(String place, List<String> favourites) {
+            this.place = place;
+            this.favourites = favourites;
         }
-        stage.show();
     }
 
-
     /**
-     * Parser to parse data from string first to JSON with Gson
-     * and then add it to datastructures.
+     * Parser to parse data from string first to JSON with Gson.
+     * Touches nothing shown, so it can run on any thread.
      * @param lastSave A string of places.
+     * @return The saved current place and favourites.
      */
-    private void parseAndSave(String lastSave) {
+    private static SavedState parseSave(String lastSave) {
         Gson gson = new Gson();
 
         try {
             JsonObject jsonObject = gson.fromJson(lastSave, JsonObject.class);
 
-            currentPlace = jsonObject.get("currentPlace").getAsString();
+            String place = jsonObject.get("currentPlace").getAsString();
 
+            List<String> saved = new ArrayList<>();
             JsonArray favouritesArray = jsonObject.getAsJsonArray("favourites");
             for (JsonElement element : favouritesArray) {
-                String favourite = element.getAsString();
-                favourites.add(favourite);
-                menuItems.add(new MenuItem(favourite));
+                saved.add(element.getAsString());
             }
+            return new SavedState(place, saved);
         } catch (JsonSyntaxException e) {
             e.printStackTrace();
+            return SavedState.NONE;
         }
+    }
 
+    /**
+     * Takes the saved current place and favourites into use. Must be
+     * called on the JavaFX thread. A city the user has already searched
+     * for is not replaced, and favourites added meanwhile are kept.
+     * @param state The saved current place and favourites.
+     */
+    private void applySave(SavedState state) {
+        if (currentPlace.isEmpty()) {
+            currentPlace = state.place;
+        }
+        for (String favourite : state.favourites) {
+            addFavourite(favourite);
+        }
     }
 
     /**
@@ -164,6 +261,33 @@ public class WeatherApp extends Application {
         alert.showAndWait();
     }
 
+    /**
+     * Shows a pop-up warning for the user, if the weather service
+     * could not be used.
+     * @param e The exception telling why the service could not be used.
+     */
+    private void serviceWarning(APIException e) {
+        Alert alert = new Alert(Alert.AlertType.ERROR);
+        alert.setTitle("Error");
+        alert.setHeaderText("Weather service unavailable");
+        switch (e.getReason()) {
+            case QUOTA_EXCEEDED:
+                alert.setContentText("Sorry, the daily limit of weather searches "
+                        + "has been reached. Please try again tomorrow.");
+                break;
+            case CIRCUIT_OPEN:
+            case NETWORK:
+            case TIMEOUT:
+                alert.setContentText("Sorry, the weather service cannot be "
+                        + "reached right now. Please try again in a moment.");
+                break;
+            default:
+                alert.setContentText("Sorry, the weather service failed: "
+                        + e.getMessage());
+        }
+
+        alert.showAndWait();
+    }
 
     /**
      * A method for a welcome message when this app is first started.
@@ -291,7 +415,7 @@ public class WeatherApp extends Application {
 
         TextField input = new TextField();
         input.setPrefSize(200,25);
-        input.setPromptText("Enter location.");
+        input.setPromptText("Enter location or coordinates.");
         searchBar.getChildren().add(input);
 
         Button search = new Button("Search");
@@ -300,10 +424,44 @@ public class WeatherApp extends Application {
 
         setKeyAction(input);
         setButtonAction(search, input);
+        setSuggestions(input);
 
         return searchBar;
     }
 
+    /**
+     * Shows cities from the local city index under the input while the
+     * user types. Picking a suggestion searches for that city.
+     * @param input A TextField where the input is taken from.
+     */
+    private void setSuggestions(TextField input) {
+        ContextMenu suggestions = new ContextMenu();
+
+        input.textProperty().addListener((observable, oldText, text) -> {
+            List<Location> found = CityIndex.getDefault().suggest(text, MAX_SUGGESTIONS);
+            if (found.isEmpty() || !input.isFocused()) {
+                suggestions.hide();
+                return;
+            }
+            List<MenuItem> items = new ArrayList<>();
+            for (Location location : found) {
+                String query = location.getName() + ", " + location.getCountry();
+                MenuItem item = new MenuItem(query);
+                item.setOnAction(e -> searchCity(query));
+                items.add(item);
+            }
+            suggestions.getItems().setAll(items);
+            if (!suggestions.isShowing()) {
+                suggestions.show(input, Side.BOTTOM, 0, 0);
+            }
+        });
+        input.focusedProperty().addListener((observable, wasFocused, focused) -> {
+            if (!focused) {
+                suggestions.hide();
+            }
+        });
+    }
+
     /**
      * Set an action for a button, which searches for a city
      * based on user's input, and then shows the city or
@@ -314,17 +472,7 @@ public class WeatherApp extends Application {
     private void setButtonAction(Button button, TextField input) {
 
         button.setOnAction(e -> {
-            String city = String.valueOf(input.getText());
-            if (!city.isEmpty()) {
-                String cityName = database.cityBuilder(city);
-                if (!cityName.isEmpty()) {
-                    currentPlace = cityName;
-                    showCity(cityName);
-                } else {
-                    noCityWarning(city);
-                }
-            }
-
+            searchCity(String.valueOf(input.getText()));
         });
     }
 
@@ -338,20 +486,50 @@ public class WeatherApp extends Application {
 
         input.setOnKeyPressed(event -> {
             if (event.getCode() == KeyCode.ENTER) {
-                String city = String.valueOf(input.getText());
-                if (!city.isEmpty()) {
-                    String cityName = database.cityBuilder(city);
-                    if (!cityName.isEmpty()) {
-                        currentPlace = cityName;
-                        showCity(cityName);
-                    } else {
-                        noCityWarning(city);
-                    }
-                }
+                searchCity(String.valueOf(input.getText()));
             }
         });
     }
 
+    /**
+     * Searches for a city based on user's input, and then shows the
+     * city or shows an error pop-up window. The city is built on a
+     * background thread, so the window stays responsive while waiting
+     * for the network.
+     * @param city A String value of the user's input.
+     */
+    private void searchCity(String city) {
+        if (city.isEmpty()) {
+            return;
+        }
+        buildCityAsync(city).whenComplete((cityName, e) -> Platform.runLater(() -> {
+            if (e != null) {
+                serviceWarning(APIException.from(e));
+            } else if (!cityName.isEmpty()) {
+                currentPlace = cityName;
+                showCity(cityName);
+            } else {
+                noCityWarning(city);
+            }
+        }));
+    }
+
+    /**
+     * Builds a city on the search thread.
+     * @param city A String value of the city name or coordinates.
+     * @return CompletableFuture with the city name, or "" if no city was
+     * found, which completes exceptionally if the service failed.
+     */
+    private CompletableFuture<String> buildCityAsync(String city) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return database.buildCity(city);
+            } catch (APIException e) {
+                throw new CompletionException(e);
+            }
+        }, searches);
+    }
+
     /**
      * A method which makes and returns a drop-down menu for
      * displaying user's favourite cities. Uses the attribute
@@ -428,28 +606,48 @@ public class WeatherApp extends Application {
 
     /**
      * Shows city's weather data if city can be found or built. Makes a
-     * cityScene and switches to it.
+     * cityScene and switches to it. A city which is not known is built
+     * on the search thread like a search, and shown when it is ready.
      *
      * @param name A string value of city's name.
      */
     private void showCity(String name) {
 
         //Try to find city.
-        CityWeatherStatistics city = CityDatabase.getCity(name);
+        CityWeatherStatistics city = database.getCity(name);
 
         //If city not found, try to build it and find after that.
         if (city == null) {
-            String cityName = database.cityBuilder(name);
-            if (!cityName.isEmpty()) {
-                city = CityDatabase.getCity(cityName);
-            } else {
-                return;
-            }
+            buildCityAsync(name).whenComplete((cityName, e) -> Platform.runLater(() -> {
+                if (e != null) {
+                    serviceWarning(APIException.from(e));
+                    return;
+                }
+                CityWeatherStatistics built = cityName.isEmpty()
+                        ? null : database.getCity(cityName);
+                //The city may have been evicted again meanwhile.
+                if (built != null) {
+                    showWeather(built);
+                } else {
+                    noCityWarning(name);
+                }
+            }));
+            return;
         }
+        showWeather(city);
+    }
+
+    /**
+     * Makes a cityScene of a city's weather and switches to it.
+     * @param city The city to show.
+     */
+    private void showWeather(CityWeatherStatistics city) {
+        scheduler.viewed(city.getName());
 
-        //Make a scene to show city's weather.
+        //Make a scene to show city's weather. Everything shown is read
+        //from one snapshot, so a refresh cannot change it half way.
         BorderPane cityRoot = makeRoot();
-        cityRoot.setCenter(getCenterHBox(city));
+        cityRoot.setCenter(getCenterHBox(city.getSnapshot()));
 
         Scene cityScene = new Scene(cityRoot);
         cityScene.getStylesheets().add("stylesheet.css");
@@ -460,10 +658,10 @@ public class WeatherApp extends Application {
     /**
      * A method which returns the HBox which is to be
      * in the middle of the city scene.
-     * @param city The current city.
+     * @param city Weather of the current city.
      * @return HBox which contains smaller components.
      */
-    private HBox getCenterHBox(CityWeatherStatistics city) {
+    private HBox getCenterHBox(WeatherSnapshot city) {
         HBox centerHBox = new HBox();
         centerHBox.setSpacing(60);
         centerHBox.setAlignment(Pos.CENTER);
@@ -478,10 +676,10 @@ public class WeatherApp extends Application {
      * A method which returns a VBox containing city's
      * current weather, highlights and next days' forecast.
      * This VBox is to be on the left side of the center HBox.
-     * @param city The current city.
+     * @param city Weather of the current city.
      * @return VBox which contains smaller components.
      */
-    private VBox getLeftVBox(CityWeatherStatistics city) {
+    private VBox getLeftVBox(WeatherSnapshot city) {
         VBox leftVBox = new VBox();
         leftVBox.setAlignment(Pos.TOP_CENTER);
 
@@ -495,10 +693,10 @@ public class WeatherApp extends Application {
     /**
      * A method which returns a VBox containing the current
      * weather statistics for the current city.
-     * @param city The current city.
+     * @param city Weather of the current city.
      * @return VBox containing smaller components.
      */
-    private VBox getCurrentWeather(CityWeatherStatistics city) {
+    private VBox getCurrentWeather(WeatherSnapshot city) {
         VBox currentWeather = new VBox();
 
         currentWeather.setPrefSize(600, 500);
@@ -526,10 +724,10 @@ public class WeatherApp extends Application {
     /**
      * A method returning the correct icon and temperature
      * for the current city at this hour.
-     * @param city The current city.
+     * @param city Weather of the current city.
      * @return HBox containing icon and temp components.
      */
-    private HBox getTempAndIcon(CityWeatherStatistics city) {
+    private HBox getTempAndIcon(WeatherSnapshot city) {
         HBox tempAndIcon = new HBox();
         tempAndIcon.setAlignment(Pos.CENTER);
         tempAndIcon.setSpacing(80);
@@ -537,7 +735,7 @@ public class WeatherApp extends Application {
         //Get correct weather icon by getting the next hour, and
         //substracting 1 to get this hour. Works also in case if the next hour is 01.
         tempAndIcon.getChildren().add(getBigIcon(city.getCurrentWeatherId(),
-                Integer.parseInt(city.getHouryWeatherList().get(0).getHour())-1));
+                Integer.parseInt(city.getHourlyWeatherList().get(0).getHour())-1));
 
         //Make container for temp and Celsius icon
         HBox celsius = new HBox();
@@ -589,10 +787,10 @@ public class WeatherApp extends Application {
     /**
      * A method returning humidity and wind speed for the
      * current city.
-     * @param city The current city.
+     * @param city Weather of the current city.
      * @return HBox containing hum and wind components.
      */
-    private HBox getHumAndWind(CityWeatherStatistics city) {
+    private HBox getHumAndWind(WeatherSnapshot city) {
         HBox humAndWind = new HBox();
         humAndWind.setSpacing(80);
         humAndWind.setAlignment(Pos.TOP_CENTER);
@@ -604,10 +802,10 @@ public class WeatherApp extends Application {
 
     /**
      * A method for getting the current wind speed.
-     * @param city The current city.
+     * @param city Weather of the current city.
      * @return A Label containing the data.
      */
-    private Label getWindSpeed(CityWeatherStatistics city) {
+    private Label getWindSpeed(WeatherSnapshot city) {
         Label windSpeed = new Label("Wind speed: "+ city.getCurrentWindspeed() + " m/s");
         windSpeed.getStyleClass().add("h2");
         return windSpeed;
@@ -615,10 +813,10 @@ public class WeatherApp extends Application {
 
     /**
      * A method for getting the current humidity.
-     * @param city The current city.
+     * @param city Weather of the current city.
      * @return A Label containing the data.
      */
-    private Label getHumidity(CityWeatherStatistics city) {
+    private Label getHumidity(WeatherSnapshot city) {
         Label humidity = new Label("Humidity: "+ city.getCurrentHumidity() + " %");
         humidity.getStyleClass().add("h2");
         return humidity;
@@ -628,10 +826,10 @@ public class WeatherApp extends Application {
     /**
      * A method which returns the highlights of the day:
      * min and max temp.
-     * @param city The current city.
+     * @param city Weather of the current city.
      * @return A HBox containing the data.
      */
-    private HBox getHighlights(CityWeatherStatistics city) {
+    private HBox getHighlights(WeatherSnapshot city) {
         HBox highlights = new HBox();
         highlights.setPrefSize(500, 200);
         highlights.setSpacing(80);
@@ -645,10 +843,10 @@ public class WeatherApp extends Application {
 
     /**
      * A method which returns the current max temp and Celsius icon.
-     * @param city The current city.
+     * @param city Weather of the current city.
      * @return A HBox containing the max temp and Celsius icon.
      */
-    private HBox getCurrentMaxTemp(CityWeatherStatistics city) {
+    private HBox getCurrentMaxTemp(WeatherSnapshot city) {
         HBox hbox = new HBox();
         hbox.setAlignment(Pos.BASELINE_CENTER);
         hbox.setSpacing(5);
@@ -661,10 +859,10 @@ public class WeatherApp extends Application {
 
     /**
      * A method which returns the current min temp and Celsius icon.
-     * @param city The current city.
+     * @param city Weather of the current city.
      * @return A HBox containing the min temp and Celsius icon.
      */
-    private HBox getCurrentMinTemp(CityWeatherStatistics city) {
+    private HBox getCurrentMinTemp(WeatherSnapshot city) {
         HBox hbox = new HBox();
         hbox.setAlignment(Pos.BASELINE_CENTER);
         hbox.setSpacing(5);
@@ -692,16 +890,16 @@ public class WeatherApp extends Application {
 
     /**
      * A method which returns the next four days' weather statistics.
-     * @param city The current city.
+     * @param city Weather of the current city.
      * @return A HBox containing the data.
      */
-    private HBox getNextDays(CityWeatherStatistics city) {
+    private HBox getNextDays(WeatherSnapshot city) {
         HBox nextDays = new HBox();
         nextDays.setAlignment(Pos.TOP_CENTER);
         nextDays.setPrefSize(500, 200);
         nextDays.setSpacing(60);
 
-        ArrayList<DailyWeather> daily = city.getDailyWeatherList();
+        List<DailyWeather> daily = city.getDailyWeatherList();
 
         //This for-loop makes a VBox for the weather data of one day
         //for all the days in arraylist.
@@ -756,17 +954,17 @@ public class WeatherApp extends Application {
      * A method which returns a VBox containing the next hours'
      * weather info. The VBox will be placed on the right side
      * of a city scene.
-     * @param city The current city.
+     * @param city Weather of the current city.
      * @return A VBox containing the next hours' weather info.
      */
-    private VBox getRightVBox(CityWeatherStatistics city) {
+    private VBox getRightVBox(WeatherSnapshot city) {
 
         VBox rightVBox = new VBox();
         rightVBox.setPrefSize(250,600);
         rightVBox.setSpacing(5);
         rightVBox.setPadding(new Insets(50, 0, 0, 0));
 
-        ArrayList<HourlyWeather> hourly = city.getHouryWeatherList();
+        List<HourlyWeather> hourly = city.getHourlyWeatherList();
 
         //This for-loop makes a HBox for the data of one hour for
         //all the hours in arraylist.
@@ -834,15 +1032,28 @@ public class WeatherApp extends Application {
      * A method which adds the current city to favourites.
      */
     private void addToFavourites() {
+        addFavourite(currentPlace);
+    }
+
+    /**
+     * Adds a city to favourites and to the favourites menu shown, if it
+     * is not a favourite already.
+     * @param name A String value of city name.
+     */
+    private void addFavourite(String name) {
         //Check if the city is already in favourites.
-        if (!favourites.contains(currentPlace)) {
-            favourites.add(currentPlace);
-            menuItems.add(new MenuItem(currentPlace));
-            MenuItem favourite = new MenuItem(currentPlace);
-            favourite.setOnAction((e) -> {
-                showCity(favourite.getText());
-                    });
-            favouritesMenu.getItems().add(favourite);
+        if (!favourites.contains(name)) {
+            synchronized (favourites) {
+                favourites.add(name);
+            }
+            menuItems.add(new MenuItem(name));
+            if (favouritesMenu != null) {
+                MenuItem favourite = new MenuItem(name);
+                favourite.setOnAction((e) -> {
+                    showCity(favourite.getText());
+                        });
+                favouritesMenu.getItems().add(favourite);
+            }
         }
     }
 
@@ -0,0 +1,475 @@
+package fi.tuni.prog3.weatherapp;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.IOException;
+import java.io.Reader;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming decoder for OpenWeatherMap responses. Reads only the fields the
+ * app uses straight from a Reader with a JsonReader, without building the
+ * whole response as a String or a JsonObject tree first.
+ */
+public final class WeatherDecoder {
+    // A one call response is cut to the same lengths as the separate
+    // forecast requests ask for
+    private static final int ONE_CALL_DAYS = 5;
+    private static final int ONE_CALL_HOURS = 10;
+
+    private WeatherDecoder() {
+    }
+
+    /**
+     * Decodes a geocoding response and returns its first match.
+     * @param in Reader positioned at the start of the response.
+     * @return The first location in the response, or null if the response
+     * is an empty array.
+     * @throws IOException if the response is not valid JSON.
+     */
+    public static Location decodeLocation(Reader in) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        Location location = null;
+
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (location != null) {
+                reader.skipValue();
+                continue;
+            }
+            String name = null;
+            double lat = 0;
+            double lon = 0;
+            String country = "";
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "name":
+                        name = reader.nextString();
+                        break;
+                    case "lat":
+                        lat = reader.nextDouble();
+                        break;
+                    case "lon":
+                        lon = reader.nextDouble();
+                        break;
+                    case "country":
+                        country = reader.nextString();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            if (name == null) {
+                throw new IOException("Location is missing name");
+            }
+            location = new Location(name, lat, lon, country);
+        }
+        reader.endArray();
+        return location;
+    }
+
+    /**
+     * Decodes a current weather response.
+     * @param in Reader positioned at the start of the response.
+     * @return The decoded current weather.
+     * @throws IOException if the response is not valid JSON or is missing
+     * the main block.
+     */
+    public static CurrentWeather decodeCurrentWeather(Reader in)
+            throws IOException {
+        return readCurrentWeather(new JsonReader(in));
+    }
+
+    /**
+     * Decodes a response with the current weather of several cities, as
+     * returned by the group endpoint.
+     * @param in Reader positioned at the start of the response.
+     * @return The current weather of every city in the response, each with
+     * its city ID.
+     * @throws IOException if the response is not valid JSON or a city is
+     * missing the main block.
+     */
+    public static List<CurrentWeather> decodeGroup(Reader in)
+            throws IOException {
+        JsonReader reader = new JsonReader(in);
+        List<CurrentWeather> cities = new ArrayList<>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!reader.nextName().equals("list")) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            while (reader.hasNext()) {
+                cities.add(readCurrentWeather(reader));
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+        return cities;
+    }
+
+    /**
+     * Reads one current weather object.
+     */
+    private static CurrentWeather readCurrentWeather(JsonReader reader)
+            throws IOException {
+        double temperature = 0;
+        double tempMin = 0;
+        double tempMax = 0;
+        double humidity = 0;
+        double windSpeed = 0;
+        int weatherId = -1;
+        int cityId = 0;
+        long observedAt = 0;
+        boolean hasMain = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "main":
+                    hasMain = true;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        switch (reader.nextName()) {
+                            case "temp":
+                                temperature = reader.nextDouble();
+                                break;
+                            case "temp_min":
+                                tempMin = reader.nextDouble();
+                                break;
+                            case "temp_max":
+                                tempMax = reader.nextDouble();
+                                break;
+                            case "humidity":
+                                humidity = reader.nextDouble();
+                                break;
+                            default:
+                                reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                    break;
+                case "wind":
+                    windSpeed = readWindSpeed(reader);
+                    break;
+                case "weather":
+                    weatherId = readWeatherId(reader);
+                    break;
+                case "id":
+                    cityId = reader.nextInt();
+                    break;
+                case "dt":
+                    observedAt = reader.nextLong();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (!hasMain) {
+            throw new IOException("Current weather is missing main");
+        }
+        return new CurrentWeather((int) Math.round(temperature),
+                (int) Math.round(tempMin), (int) Math.round(tempMax),
+                humidity, windSpeed, weatherId, cityId, observedAt);
+    }
+
+    /**
+     * Decodes a daily forecast response. The first entry is todays weather.
+     * @param in Reader positioned at the start of the response.
+     * @return The days in the order they appear in the response.
+     * @throws IOException if the response is not valid JSON.
+     */
+    public static List<DailyWeather> decodeDailyWeather(Reader in)
+            throws IOException {
+        JsonReader reader = new JsonReader(in);
+        List<DailyWeather> days = new ArrayList<>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("list")) {
+                readDays(reader, days, Integer.MAX_VALUE);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return days;
+    }
+
+    /**
+     * Decodes a hourly forecast response.
+     * @param in Reader positioned at the start of the response.
+     * @return The hours in the order they appear in the response.
+     * @throws IOException if the response is not valid JSON.
+     */
+    public static List<HourlyWeather> decodeHourlyWeather(Reader in)
+            throws IOException {
+        JsonReader reader = new JsonReader(in);
+        List<HourlyWeather> hours = new ArrayList<>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("list")) {
+                readHours(reader, hours, Integer.MAX_VALUE);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return hours;
+    }
+
+    /**
+     * Decodes a one call response into the current weather, daily forecast
+     * and hourly forecast. The one call response has no minimum and maximum
+     * for the current weather, so they are taken from todays forecast. The
+     * current hour is left out of the hourly forecast, so that it starts
+     * from the next hour like the hourly forecast response.
+     * @param in Reader positioned at the start of the response.
+     * @return The decoded weather.
+     * @throws IOException if the response is not valid JSON or is missing
+     * the current weather.
+     */
+    public static OneCallWeather decodeOneCall(Reader in) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        double temperature = 0;
+        double humidity = 0;
+        double windSpeed = 0;
+        int weatherId = -1;
+        long observedAt = 0;
+        boolean hasCurrent = false;
+        List<DailyWeather> days = new ArrayList<>();
+        List<HourlyWeather> hours = new ArrayList<>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "current":
+                    hasCurrent = true;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        switch (reader.nextName()) {
+                            case "temp":
+                                temperature = reader.nextDouble();
+                                break;
+                            case "humidity":
+                                humidity = reader.nextDouble();
+                                break;
+                            case "wind_speed":
+                                windSpeed = reader.nextDouble();
+                                break;
+                            case "dt":
+                                observedAt = reader.nextLong();
+                                break;
+                            case "weather":
+                                weatherId = readWeatherId(reader);
+                                break;
+                            default:
+                                reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                    break;
+                case "daily":
+                    readDays(reader, days, ONE_CALL_DAYS);
+                    break;
+                case "hourly":
+                    readHours(reader, hours, ONE_CALL_HOURS + 1);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (!hasCurrent) {
+            throw new IOException("One call response is missing current");
+        }
+        //The first hour is the one going on now. The hourly forecast, and
+        //the UI reading it, start from the next hour.
+        if (!hours.isEmpty()) {
+            hours.remove(0);
+        }
+        int rounded = (int) Math.round(temperature);
+        int min = days.isEmpty() ? rounded : days.get(0).getMinTemp();
+        int max = days.isEmpty() ? rounded : days.get(0).getMaxTemp();
+        CurrentWeather current = new CurrentWeather(rounded, min, max,
+                humidity, windSpeed, weatherId, 0, observedAt);
+        return new OneCallWeather(current, days, hours);
+    }
+
+    /**
+     * Reads an array of forecast days, the same in the daily forecast and
+     * one call responses.
+     * @param days The list the days are added to.
+     * @param limit The number of days to keep, the rest are skipped.
+     */
+    private static void readDays(JsonReader reader, List<DailyWeather> days,
+            int limit) throws IOException {
+        ZoneId zone = ZoneId.systemDefault();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (days.size() == limit) {
+                reader.skipValue();
+                continue;
+            }
+            long dt = 0;
+            double min = 0;
+            double max = 0;
+            int weatherId = -1;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "dt":
+                        dt = reader.nextLong();
+                        break;
+                    case "temp":
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            switch (reader.nextName()) {
+                                case "min":
+                                    min = reader.nextDouble();
+                                    break;
+                                case "max":
+                                    max = reader.nextDouble();
+                                    break;
+                                default:
+                                    reader.skipValue();
+                            }
+                        }
+                        reader.endObject();
+                        break;
+                    case "weather":
+                        weatherId = readWeatherId(reader);
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            days.add(new DailyWeather(dt, zone, (int) Math.round(min),
+                    (int) Math.round(max), weatherId));
+        }
+        reader.endArray();
+    }
+
+    /**
+     * Reads an array of forecast hours. The hourly forecast response has
+     * the temperature and wind in "main" and "wind" objects, the one call
+     * response has them as "temp" and "wind_speed" numbers.
+     * @param hours The list the hours are added to.
+     * @param limit The number of hours to keep, the rest are skipped.
+     */
+    private static void readHours(JsonReader reader, List<HourlyWeather> hours,
+            int limit) throws IOException {
+        ZoneId zone = ZoneId.systemDefault();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (hours.size() == limit) {
+                reader.skipValue();
+                continue;
+            }
+            long dt = 0;
+            double temperature = 0;
+            double windSpeed = 0;
+            int weatherId = -1;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "dt":
+                        dt = reader.nextLong();
+                        break;
+                    case "main":
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            if (reader.nextName().equals("temp")) {
+                                temperature = reader.nextDouble();
+                            } else {
+                                reader.skipValue();
+                            }
+                        }
+                        reader.endObject();
+                        break;
+                    case "temp":
+                        temperature = reader.nextDouble();
+                        break;
+                    case "wind":
+                        windSpeed = readWindSpeed(reader);
+                        break;
+                    case "wind_speed":
+                        windSpeed = reader.nextDouble();
+                        break;
+                    case "weather":
+                        weatherId = readWeatherId(reader);
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            hours.add(new HourlyWeather(dt, zone,
+                    (int) Math.round(temperature), windSpeed, weatherId));
+        }
+        reader.endArray();
+    }
+
+    /**
+     * Reads the speed from a wind object.
+     */
+    private static double readWindSpeed(JsonReader reader) throws IOException {
+        double speed = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("speed")) {
+                speed = reader.nextDouble();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return speed;
+    }
+
+    /**
+     * Reads the id of the first element of a weather array.
+     * @return The weather ID, or -1 if the array is empty.
+     */
+    private static int readWeatherId(JsonReader reader) throws IOException {
+        // Default value if weather ID is not found
+        int weatherId = -1;
+        boolean first = true;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (!first || reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                continue;
+            }
+            first = false;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("id")) {
+                    weatherId = reader.nextInt();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        reader.endArray();
+        return weatherId;
+    }
+}
@@ -0,0 +1,249 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.util.List;
+
+/**
+ * An immutable view of a city's weather at one moment: where the city is,
+ * the current conditions and both forecasts. A refresh never changes a snapshot, it
+ * builds a new one, so a reader holding a snapshot always sees data
+ * from a single refresh, without locking.
+ */
+public final class WeatherSnapshot {
+    // Most forecast points kept per city, well above what one refresh brings
+    private static final int DAILY_CAPACITY = 8;
+    private static final int HOURLY_CAPACITY = 48;
+    private static final CurrentWeather NO_WEATHER =
+            new CurrentWeather(0, 0, 0, 0, 0, 0);
+
+    private final String name;
+    private final double latitude;
+    private final double longitude;
+    private final CurrentWeather current;
+    // Never modified after the snapshot has been built
+    private final ForecastSeries daily;
+    private final ForecastSeries hourly;
+
+    private WeatherSnapshot(String name, double latitude, double longitude,
+            CurrentWeather current, ForecastSeries daily, ForecastSeries hourly) {
+        this.name = name;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.current = current;
+        this.daily = daily;
+        this.hourly = hourly;
+    }
+
+    /**
+     * Returns a snapshot of a city whose weather has not been read yet.
+     * @param name The name of the city.
+     * @return A snapshot with no weather.
+     */
+    static WeatherSnapshot empty(String name) {
+        return new WeatherSnapshot(name, 0, 0, NO_WEATHER,
+                new ForecastSeries(DAILY_CAPACITY),
+                new ForecastSeries(HOURLY_CAPACITY));
+    }
+
+    /**
+     * Returns a snapshot with the given current weather and the forecasts
+     * of this one. The city ID is kept if the new weather does not know it.
+     * Weather measured before the weather of this snapshot, for example
+     * from a cache after a group refresh, is ignored.
+     * @param weather The current weather.
+     * @return The new snapshot, or this one if the weather is older.
+     */
+    WeatherSnapshot withCurrentWeather(CurrentWeather weather) {
+        if (weather.getObservedAt() != 0
+                && weather.getObservedAt() < current.getObservedAt()) {
+            return this;
+        }
+        if (weather.getCityId() == 0 && current.getCityId() != 0) {
+            weather = new CurrentWeather(weather.getTemperature(),
+                    weather.getMinTemperature(), weather.getMaxTemperature(),
+                    weather.getHumidity(), weather.getWindSpeed(),
+                    weather.getWeatherId(), current.getCityId(),
+                    weather.getObservedAt());
+        }
+        return new WeatherSnapshot(name, latitude, longitude, weather,
+                daily, hourly);
+    }
+
+    /**
+     * Returns a snapshot with the given days merged into the daily forecast
+     * by their time: known days are updated, new days are added and days
+     * before the new forecast are dropped.
+     * @param days The days of the forecast, the first of them being today,
+     * which is not kept.
+     * @return The new snapshot.
+     */
+    WeatherSnapshot withDailyWeather(List<DailyWeather> days) {
+        ForecastSeries merged = daily.copy();
+        if (days.size() > 1) {
+            merged.dropBefore(days.get(1).getEpochSecond());
+        }
+        for (int i = 1; i < days.size(); i++) {
+            merged.put(days.get(i));
+        }
+        return new WeatherSnapshot(name, latitude, longitude, current,
+                merged, hourly);
+    }
+
+    /**
+     * Returns a snapshot with the given hours merged into the hourly
+     * forecast by their time: known hours are updated, new hours are added
+     * and hours before the new forecast are dropped.
+     * @param hours The hours of the forecast.
+     * @return The new snapshot.
+     */
+    WeatherSnapshot withHourlyWeather(List<HourlyWeather> hours) {
+        ForecastSeries merged = hourly.copy();
+        if (!hours.isEmpty()) {
+            merged.dropBefore(hours.get(0).getEpochSecond());
+        }
+        for (HourlyWeather hour : hours) {
+            merged.put(hour);
+        }
+        return new WeatherSnapshot(name, latitude, longitude, current,
+                daily, merged);
+    }
+
+    /**
+     * Returns a snapshot with the given coordinates and the weather of
+     * this one.
+     * @param lat The latitude of the city.
+     * @param lon The longitude of the city.
+     * @return The new snapshot.
+     */
+    WeatherSnapshot withCoordinates(double lat, double lon) {
+        return new WeatherSnapshot(name, lat, lon, current, daily, hourly);
+    }
+
+    /**
+     * Returns this weather as the weather of another city at the given
+     * coordinates. The city ID is kept, so the other city is refreshed
+     * together with this one until its own weather is fetched.
+     * @param other The name of the other city.
+     * @param lat The latitude of the other city.
+     * @param lon The longitude of the other city.
+     * @return The new snapshot.
+     */
+    WeatherSnapshot renamed(String other, double lat, double lon) {
+        return new WeatherSnapshot(other, lat, lon, current, daily, hourly);
+    }
+
+    /**
+     * Retrieves the name of the city.
+     * @return The name of the city.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Retrieves the latitude of the city.
+     * @return The latitude of the city.
+     */
+    public double getLatitude() {
+        return latitude;
+    }
+
+    /**
+     * Retrieves the longitude of the city.
+     * @return The longitude of the city.
+     */
+    public double getLongitude() {
+        return longitude;
+    }
+
+    /**
+     * Retrieves the OpenWeatherMap ID of the city.
+     * @return The city ID, or 0 if it is not known.
+     */
+    public int getCityId() {
+        return current.getCityId();
+    }
+
+    /**
+     * Retrieves the current temperature of the city.
+     * @return The current temperature of the city.
+     */
+    public int getCurrentTemperature() {
+        return current.getTemperature();
+    }
+
+    /**
+     * Retrieves todays minimal temperature of the city.
+     * @return Todays minimal temperature of the city.
+     */
+    public int getMinTemperature() {
+        return current.getMinTemperature();
+    }
+
+    /**
+     * Retrieves todays maximal temperature of the city.
+     * @return Todays maximal temperature of the city.
+     */
+    public int getMaxTemperature() {
+        return current.getMaxTemperature();
+    }
+
+    /**
+     * Retrieves the current weather ID of the city for the weather icon.
+     * @return The current weather ID of the city.
+     */
+    public int getCurrentWeatherId() {
+        return current.getWeatherId();
+    }
+
+    /**
+     * Retrieves the current wind speed of the city.
+     * @return The current wind speed of the city.
+     */
+    public double getCurrentWindspeed() {
+        return current.getWindSpeed();
+    }
+
+    /**
+     * Retrieves the current humidity of the city.
+     * @return The current humidity of the city.
+     */
+    public double getCurrentHumidity() {
+        return current.getHumidity();
+    }
+
+    /**
+     * Retrieves the daily weather forecasts for the city.
+     * @return A read-only list of the coming days.
+     */
+    public List<DailyWeather> getDailyWeatherList() {
+        return daily.asDailyWeather();
+    }
+
+    /**
+     * Retrieves the hourly weather forecasts for the city.
+     * @return A read-only list of the coming hours.
+     */
+    public List<HourlyWeather> getHourlyWeatherList() {
+        return hourly.asHourlyWeather();
+    }
+
+    /**
+     * Retrieves the daily forecast as a series, for reading its columns
+     * without creating a DailyWeather per day.
+     * @return A copy of the daily series, changing it does not change the
+     * snapshot.
+     */
+    public ForecastSeries getDailySeries() {
+        return daily.copy();
+    }
+
+    /**
+     * Retrieves the hourly forecast as a series, for reading its columns
+     * without creating a HourlyWeather per hour.
+     * @return A copy of the hourly series, changing it does not change the
+     * snapshot.
+     */
+    public ForecastSeries getHourlySeries() {
+        return hourly.copy();
+    }
+}
@@ -0,0 +1,80 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Asynchronous variant of iAPI. Every method returns immediately and the
+ * response is delivered through a CompletableFuture, so several requests
+ * can be in flight at the same time. Weather responses are delivered
+ * already decoded.
+ */
+public interface iAsyncAPI {
+    // Most cities the provider answers in one group request
+    public static final int MAX_GROUP_SIZE = 20;
+
+    /**
+     * Returns coordinates for a location.
+     * @param loc Name of the location for which coordinates should be fetched.
+     * @return CompletableFuture which completes with the location, or with
+     * null if the location was not found.
+     */
+    public CompletableFuture<Location> lookUpLocationAsync(String loc);
+
+    /**
+     * Returns the current weather for the given coordinates.
+     * @param lat The latitude of the location.
+     * @param lon The longitude of the location.
+     * @return CompletableFuture which completes with the current weather, or
+     * exceptionally if the request failed.
+     */
+    public CompletableFuture<CurrentWeather> getCurrentWeatherAsync(double lat, double lon);
+
+    /**
+     * Returns a daily forecast for the given coordinates.
+     * @param lat The latitude of the location.
+     * @param lon The longitude of the location.
+     * @return CompletableFuture which completes with the forecast days, the
+     * first of them being today, or exceptionally if the request failed.
+     */
+    public CompletableFuture<List<DailyWeather>> getForecastAsync(double lat, double lon);
+
+    /**
+     * Returns a hourly forecast for the given coordinates.
+     * @param lat The latitude of the location.
+     * @param lon The longitude of the location.
+     * @return CompletableFuture which completes with the forecast hours, or
+     * exceptionally if the request failed.
+     */
+    public CompletableFuture<List<HourlyWeather>> getHourlyWeatherAsync(double lat, double lon);
+
+    /**
+     * Returns the current weather, daily forecast and hourly forecast for
+     * the given coordinates. By default this makes the three separate
+     * calls; implementations with a combined endpoint answer it with a
+     * single request.
+     * @param lat The latitude of the location.
+     * @param lon The longitude of the location.
+     * @return CompletableFuture which completes with all three, or
+     * exceptionally if any of the requests failed.
+     */
+    public default CompletableFuture<OneCallWeather> getAllWeatherAsync(double lat, double lon) {
+        return OneCallWeather.combine(getCurrentWeatherAsync(lat, lon),
+                getForecastAsync(lat, lon), getHourlyWeatherAsync(lat, lon));
+    }
+
+    /**
+     * Returns the current weather of several cities with one request, by
+     * their OpenWeatherMap city IDs. Not every implementation supports
+     * this, callers should fall back to getCurrentWeatherAsync.
+     * @param cityIds IDs of the cities, at most MAX_GROUP_SIZE of them.
+     * @return CompletableFuture which completes with the current weather of
+     * the cities, each carrying its city ID, or exceptionally if the request
+     * failed or is not supported.
+     */
+    public default CompletableFuture<List<CurrentWeather>> getCurrentWeatherGroupAsync(
+            List<Integer> cityIds) {
+        return CompletableFuture.failedFuture(new UnsupportedOperationException(
+                "Group requests are not supported"));
+    }
+}
@@ -0,0 +1,72 @@
+package fi.tuni.prog3.weatherapp;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for API class, against a local server whose responses stall.
+ */
+public class APITest {
+
+    private HttpServer server;
+    private API api;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        // Sends the headers and part of the body, then stalls
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.sendResponseHeaders(200, 1000);
+            OutputStream out = exchange.getResponseBody();
+            out.write("{\"main\":".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            try {
+                Thread.sleep(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.close();
+        });
+        server.setExecutor(Executors.newCachedThreadPool(r -> {
+            Thread th = new Thread(r, "stalling-server");
+            th.setDaemon(true);
+            return th;
+        }));
+        server.start();
+        String base = "http://localhost:" + server.getAddress().getPort();
+        api = new API(API.newHttpClient(Duration.ofSeconds(1), 2),
+                Duration.ofMillis(300), base, base, base, "test");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    /**
+    * Tests that a body which stalls fails the request within the request
+    * timeout.
+    */
+    @Test
+    public void testStalledBodyTimesOut() {
+        long startedAt = System.nanoTime();
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> api.getCurrentWeatherAsync(61.5, 23.8).get(3, TimeUnit.SECONDS));
+        assertEquals(APIException.Reason.TIMEOUT, APIException.from(e).getReason());
+        assertTrue(System.nanoTime() - startedAt < TimeUnit.SECONDS.toNanos(2));
+
+        assertEquals("", api.getCurrentWeather(61.5, 23.8));
+        assertTrue(System.nanoTime() - startedAt < TimeUnit.SECONDS.toNanos(3));
+    }
+}
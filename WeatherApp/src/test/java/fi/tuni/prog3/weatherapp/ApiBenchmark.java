@@ -0,0 +1,277 @@
+package fi.tuni.prog3.weatherapp;
+
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.ArrayList;
+import java.util.List;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Benchmark comparing the old connection-per-call fetch path with the
+ * pooled HttpClient used by API. Runs against a local HTTPS stub server with
+ * a throwaway self-signed certificate, so handshake costs are included but
+ * no real API quota is used. A small proxy in front of the server delays
+ * every packet to simulate the round trip time to the real API.
+ * Usage: run the main method with optional arguments
+ * [requests per thread] [threads] [one-way latency in ms].
+ */
+public class ApiBenchmark {
+
+    private static final String BODY = "{\"main\": {\"temp\": 20.0, "
+            + "\"temp_min\": 15.0, \"temp_max\": 25.0, \"humidity\": 50}, "
+            + "\"wind\": {\"speed\": 5.0}, \"weather\": [{\"id\": 800}]}";
+
+    /**
+     * Runs the benchmark.
+     * @param args Requests per thread and number of threads.
+     * @throws Exception if the stub server cannot be started.
+     */
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int latency = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        // Without this the stub server adds a Nagle delay to every response
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        SSLContext ssl = selfSignedContext();
+        HttpsServer server = HttpsServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setHttpsConfigurator(new HttpsConfigurator(ssl));
+        server.createContext("/", exchange -> {
+            byte[] body = BODY.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(threads * 2));
+        server.start();
+        int port = startLatencyProxy(server.getAddress().getPort(), latency);
+        String base = "https://localhost:" + port;
+        HttpsURLConnection.setDefaultSSLSocketFactory(ssl.getSocketFactory());
+
+        // Same settings as API.newHttpClient, but trusting the stub certificate
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofSeconds(5))
+                .executor(Executors.newFixedThreadPool(threads))
+                .sslContext(ssl)
+                .build();
+        API api = new API(client, Duration.ofSeconds(10), base, base, base, "benchmark");
+
+        // Warm up both paths before measuring
+        run(threads, requests / 5, () -> legacyGet(base));
+        run(threads, requests / 5, () -> api.getCurrentWeather(61.5, 23.8));
+
+        report("HttpURLConnection per call",
+                run(threads, requests, () -> legacyGet(base)));
+        report("Shared HttpClient",
+                run(threads, requests, () -> api.getCurrentWeather(61.5, 23.8)));
+
+        server.stop(0);
+        System.exit(0);
+    }
+
+    /**
+     * Starts a TCP proxy which forwards to the given port and delays every
+     * forwarded chunk by the given latency in both directions.
+     * @return The port the proxy listens on.
+     */
+    private static int startLatencyProxy(int target, int latencyMillis)
+            throws IOException {
+        ServerSocket listener = new ServerSocket(0, 50,
+                InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket client = listener.accept();
+                    Socket upstream = new Socket(InetAddress.getLoopbackAddress(), target);
+                    client.setTcpNoDelay(true);
+                    upstream.setTcpNoDelay(true);
+                    // The first chunk also pays for the TCP handshake
+                    pump(client, upstream, latencyMillis, 2 * latencyMillis);
+                    pump(upstream, client, latencyMillis, 0);
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return listener.getLocalPort();
+    }
+
+    /**
+     * Copies bytes from one socket to another on a daemon thread. The first
+     * chunk is delayed by an extra setup time.
+     */
+    private static void pump(Socket from, Socket to, int latencyMillis,
+            int setupMillis) {
+        Thread th = new Thread(() -> {
+            byte[] buffer = new byte[16384];
+            try (InputStream in = from.getInputStream();
+                    OutputStream out = to.getOutputStream()) {
+                int n;
+                boolean first = true;
+                while ((n = in.read(buffer)) != -1) {
+                    Thread.sleep(first ? latencyMillis + setupMillis : latencyMillis);
+                    first = false;
+                    out.write(buffer, 0, n);
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                // Connection closed by either side
+            } finally {
+                try {
+                    from.close();
+                    to.close();
+                } catch (IOException e) {
+                    // Already closed
+                }
+            }
+        });
+        th.setDaemon(true);
+        th.start();
+    }
+
+    /**
+     * Creates a self-signed certificate with keytool and returns a context
+     * which both serves and trusts it.
+     */
+    private static SSLContext selfSignedContext() throws Exception {
+        Path dir = Files.createTempDirectory("apibenchmark");
+        Path keystore = dir.resolve("stub.p12");
+        char[] password = "benchmark".toCharArray();
+        Process keytool = new ProcessBuilder(
+                Path.of(System.getProperty("java.home"), "bin", "keytool").toString(),
+                "-genkeypair", "-keyalg", "RSA", "-keysize", "2048",
+                "-alias", "stub", "-dname", "CN=localhost",
+                "-ext", "SAN=dns:localhost", "-validity", "1",
+                "-storetype", "PKCS12", "-keystore", keystore.toString(),
+                "-storepass", "benchmark", "-keypass", "benchmark")
+                .inheritIO().start();
+        if (keytool.waitFor() != 0) {
+            throw new IOException("keytool failed");
+        }
+
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(keystore)) {
+            store.load(in, password);
+        }
+        Files.delete(keystore);
+        Files.delete(dir);
+
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(
+                KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(store, password);
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(
+                TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(store);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keys.getKeyManagers(), trust.getTrustManagers(), null);
+        return context;
+    }
+
+    /**
+     * Runs the given call from several threads and measures each call.
+     * @return An array with the total duration in nanoseconds as the first
+     * element followed by the latency of every call.
+     */
+    private static long[] run(int threads, int requests,
+            Runnable call) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<long[]>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            results.add(pool.submit(() -> {
+                long[] latencies = new long[requests];
+                for (int i = 0; i < requests; i++) {
+                    long begin = System.nanoTime();
+                    call.run();
+                    latencies[i] = System.nanoTime() - begin;
+                }
+                return latencies;
+            }));
+        }
+        long[] all = new long[threads * requests + 1];
+        int pos = 1;
+        for (Future<long[]> result : results) {
+            long[] latencies = result.get();
+            System.arraycopy(latencies, 0, all, pos, latencies.length);
+            pos += latencies.length;
+        }
+        all[0] = System.nanoTime() - start;
+        pool.shutdown();
+        return all;
+    }
+
+    /**
+     * Prints throughput and latency percentiles of a benchmark run.
+     */
+    private static void report(String name, long[] result) {
+        long total = result[0];
+        long[] latencies = Arrays.copyOfRange(result, 1, result.length);
+        Arrays.sort(latencies);
+        double seconds = total / 1e9;
+        System.out.printf("%-28s %8.0f req/s  p50 %6.2f ms  p99 %6.2f ms%n",
+                name, latencies.length / seconds,
+                percentile(latencies, 0.50) / 1e6,
+                percentile(latencies, 0.99) / 1e6);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    /**
+     * The fetch path API used before the shared client: a new connection
+     * for every call, closed with disconnect().
+     */
+    private static String legacyGet(String base) {
+        HttpURLConnection connection = null;
+        try {
+            URL url = new URL(base + "/data/2.5/weather?lat=61.5&lon=23.8");
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod("GET");
+            StringBuilder response = new StringBuilder();
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(connection.getInputStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    response.append(line);
+                }
+            }
+            return response.toString();
+        } catch (IOException e) {
+            return "";
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for CachedGeocodingAPI class.
+ */
+public class CachedGeocodingAPITest {
+
+    private final FakeAPI fake = new FakeAPI() {
+        @Override
+        public CompletableFuture<Location> lookUpLocationAsync(String loc) {
+            if (loc.trim().equals("Nowhere")) {
+                lookUps.incrementAndGet();
+                return CompletableFuture.completedFuture(null);
+            }
+            return super.lookUpLocationAsync(loc);
+        }
+    };
+    private Path file;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        file = Files.createTempDirectory("geocache").resolve("geocache.json");
+    }
+
+    private CachedGeocodingAPI newApi(int maxEntries) {
+        return new CachedGeocodingAPI(fake, file, maxEntries, Duration.ofHours(1));
+    }
+
+    /**
+    * Tests that a query is looked up once, whichever way it is typed.
+    */
+    @Test
+    public void testHitInMemory() throws Exception {
+        CachedGeocodingAPI api = newApi(10);
+        assertEquals("Tampere", api.lookUpLocationAsync("Tampere").get().getName());
+        assertEquals("Tampere", api.lookUpLocationAsync(" tampere ").get().getName());
+        assertEquals(1, fake.lookUps.get());
+        assertEquals(1, api.size());
+        // Written only after the delay
+        assertFalse(Files.exists(file));
+    }
+
+    /**
+    * Tests that cached queries are read back from the file.
+    */
+    @Test
+    public void testFileRoundTrip() throws Exception {
+        CachedGeocodingAPI api = newApi(10);
+        api.lookUpLocationAsync("Tampere").get();
+        api.lookUpLocationAsync("Oulu").get();
+        api.flush();
+
+        CachedGeocodingAPI reloaded = newApi(10);
+        assertEquals(2, reloaded.size());
+        Location oulu = reloaded.lookUpLocationAsync("oulu").get();
+        assertEquals("Oulu", oulu.getName());
+        assertEquals(61.5, oulu.getLatitude(), 1e-9);
+        assertEquals("FI", oulu.getCountry());
+        assertEquals(2, fake.lookUps.get());
+    }
+
+    /**
+    * Tests that a query which resolved to nothing is not cached.
+    */
+    @Test
+    public void testMissIsNotCached() throws Exception {
+        CachedGeocodingAPI api = newApi(10);
+        assertNull(api.lookUpLocationAsync("Nowhere").get());
+        assertNull(api.lookUpLocationAsync("Nowhere").get());
+        assertEquals(2, fake.lookUps.get());
+        assertEquals(0, api.size());
+    }
+
+    /**
+    * Tests that the least recently used query is dropped when full.
+    */
+    @Test
+    public void testSizeIsBounded() throws Exception {
+        CachedGeocodingAPI api = newApi(2);
+        api.lookUpLocationAsync("Tampere").get();
+        api.lookUpLocationAsync("Oulu").get();
+        api.lookUpLocationAsync("Tampere").get();
+        api.lookUpLocationAsync("Turku").get();
+        assertEquals(2, api.size());
+        assertEquals(3, fake.lookUps.get());
+
+        api.lookUpLocationAsync("Tampere").get();
+        assertEquals(3, fake.lookUps.get());
+        api.lookUpLocationAsync("Oulu").get();
+        assertEquals(4, fake.lookUps.get());
+    }
+}
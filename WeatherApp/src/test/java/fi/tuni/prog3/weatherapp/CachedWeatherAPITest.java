@@ -0,0 +1,104 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for CachedWeatherAPI class.
+ */
+public class CachedWeatherAPITest {
+
+    private final FakeAPI fake = new FakeAPI();
+    private long now = 0;
+    private final CachedWeatherAPI cache = new CachedWeatherAPI(fake, 2,
+            Duration.ofMinutes(10), Duration.ofHours(3), Duration.ofMinutes(30),
+            () -> now);
+
+    /**
+    * Tests that a fresh entry is served without calling the delegate.
+    */
+    @Test
+    public void testFreshEntryIsServedFromCache() {
+        cache.getCurrentWeatherAsync(61.5, 23.8).join();
+        cache.getCurrentWeatherAsync(61.5, 23.8).join();
+        assertEquals(1, fake.currentCalls.get());
+    }
+
+    /**
+    * Tests that endpoints have separate entries.
+    */
+    @Test
+    public void testEndpointsAreCachedSeparately() {
+        cache.getCurrentWeatherAsync(61.5, 23.8).join();
+        cache.getForecastAsync(61.5, 23.8).join();
+        assertEquals(1, fake.currentCalls.get());
+        assertEquals(1, fake.forecastCalls.get());
+    }
+
+    /**
+    * Tests that an expired entry is served stale while it is refreshed.
+    */
+    @Test
+    public void testExpiredEntryIsServedStaleAndRefreshed() {
+        assertEquals(20, cache.getCurrentWeatherAsync(61.5, 23.8).join().getTemperature());
+        fake.temperature = 25;
+        now += TimeUnit.MINUTES.toNanos(11);
+        // The stale value is returned and a refresh is started
+        assertEquals(20, cache.getCurrentWeatherAsync(61.5, 23.8).join().getTemperature());
+        assertEquals(2, fake.currentCalls.get());
+        // The refreshed value is now fresh
+        assertEquals(25, cache.getCurrentWeatherAsync(61.5, 23.8).join().getTemperature());
+        assertEquals(2, fake.currentCalls.get());
+
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getStaleHitCount());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2 / 3.0, cache.getHitRate(), 1e-9);
+    }
+
+    /**
+    * Tests that a far too old entry is fetched again before returning.
+    */
+    @Test
+    public void testVeryOldEntryIsFetchedAgain() {
+        cache.getCurrentWeatherAsync(61.5, 23.8).join();
+        fake.temperature = 25;
+        now += TimeUnit.HOURS.toNanos(2);
+        assertEquals(25, cache.getCurrentWeatherAsync(61.5, 23.8).join().getTemperature());
+    }
+
+    /**
+    * Tests that the least recently used entry is evicted.
+    */
+    @Test
+    public void testLeastRecentlyUsedEntryIsEvicted() {
+        cache.getCurrentWeatherAsync(1, 1).join();
+        cache.getCurrentWeatherAsync(2, 2).join();
+        cache.getCurrentWeatherAsync(1, 1).join();
+        cache.getCurrentWeatherAsync(3, 3).join();
+        assertEquals(2, cache.size());
+        // (1, 1) was used more recently than (2, 2), so it is still cached
+        cache.getCurrentWeatherAsync(1, 1).join();
+        assertEquals(3, fake.currentCalls.get());
+        cache.getCurrentWeatherAsync(2, 2).join();
+        assertEquals(4, fake.currentCalls.get());
+    }
+
+    /**
+    * Tests that all weather of a place is answered from the cache.
+    */
+    @Test
+    public void testAllWeatherIsServedFromCache() {
+        CachedWeatherAPI bigger = new CachedWeatherAPI(fake, 10, Duration.ofMinutes(10),
+                Duration.ofHours(3), Duration.ofMinutes(30), () -> now);
+        OneCallWeather first = bigger.getAllWeatherAsync(61.5, 23.8).join();
+        OneCallWeather second = bigger.getAllWeatherAsync(61.5, 23.8).join();
+        assertSame(first.getCurrentWeather(), second.getCurrentWeather());
+        assertEquals(1, fake.currentCalls.get());
+        assertEquals(1, fake.forecastCalls.get());
+        assertEquals(1, fake.hourlyCalls.get());
+        assertEquals(3, bigger.getHitCount());
+    }
+}
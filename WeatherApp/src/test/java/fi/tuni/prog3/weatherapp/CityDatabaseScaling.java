@@ -0,0 +1,120 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scaling test of CityDatabase under mixed traffic. Starts a
+ * StubWeatherServer, builds a set of cities and then runs, for a growing
+ * number of threads, a fixed time of traffic where most operations read a
+ * city with getCity and the rest rebuild one with cityBuilder. Prints the
+ * operations per second of every thread count, so the speedup over one
+ * thread can be compared with the number of cores.
+ * Usage: run the main method with optional arguments [cities]
+ * [max threads] [seconds per step] [percentage of builds] [latency in ms].
+ */
+public class CityDatabaseScaling {
+
+    /**
+     * Runs the scaling test.
+     * @param args Cities, max threads, seconds per step, build percentage
+     * and latency.
+     * @throws Exception if the stub server cannot be started.
+     */
+    public static void main(String[] args) throws Exception {
+        int cities = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1])
+                : 2 * Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        int buildPercent = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+        long latency = args.length > 4 ? Long.parseLong(args[4]) : 0;
+
+        try (StubWeatherServer stub = StubWeatherServer.start(
+                Duration.ofMillis(latency), Duration.ZERO, 0)) {
+            String base = stub.getBaseUrl();
+            API http = new API(API.newHttpClient(Duration.ofSeconds(5), 8),
+                    Duration.ofSeconds(10), base, base, base, "scaling");
+            CityDatabase database = new CityDatabase(new SingleFlightAPI(http));
+
+            String[] names = new String[cities];
+            for (int i = 0; i < cities; i++) {
+                names[i] = "Town " + letters(i);
+                database.cityBuilder(names[i]);
+            }
+
+            System.out.printf("%d cores, %d cities, %d%% builds%n",
+                    Runtime.getRuntime().availableProcessors(), cities, buildPercent);
+            double single = 0;
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                double opsPerSecond = run(database, names, threads, seconds,
+                        buildPercent);
+                if (threads == 1) {
+                    single = opsPerSecond;
+                }
+                System.out.printf("%3d threads: %12.0f ops/s  %5.2fx%n",
+                        threads, opsPerSecond, opsPerSecond / single);
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Runs mixed traffic from the given number of threads for a while.
+     * @return Operations per second over all threads.
+     */
+    private static double run(CityDatabase database, String[] names, int threads,
+            int seconds, int buildPercent) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds) + 100_000_000L;
+        List<Future<Long>> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            workers.add(pool.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long operations = 0;
+                start.await();
+                while (System.nanoTime() < end) {
+                    String name = names[random.nextInt(names.length)];
+                    if (random.nextInt(100) < buildPercent) {
+                        database.cityBuilder(name);
+                    } else if (database.getCity(name).getCurrentTemperature() == Integer.MIN_VALUE) {
+                        // Keeps the read from being optimized away
+                        operations--;
+                    }
+                    operations++;
+                }
+                return operations;
+            }));
+        }
+        Thread.sleep(100);
+        long begin = System.nanoTime();
+        start.countDown();
+        long total = 0;
+        for (Future<Long> worker : workers) {
+            total += worker.get();
+        }
+        double elapsed = (System.nanoTime() - begin) / 1e9;
+        pool.shutdown();
+        return total / elapsed;
+    }
+
+    /**
+     * Spells a number with letters, because city names may not contain
+     * digits.
+     */
+    private static String letters(int n) {
+        StringBuilder name = new StringBuilder();
+        do {
+            name.append((char) ('a' + n % 26));
+            n /= 26;
+        } while (n > 0);
+        return name.toString();
+    }
+}
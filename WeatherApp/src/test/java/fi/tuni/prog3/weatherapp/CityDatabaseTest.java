@@ -0,0 +1,553 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for CityDatabase class. The cities are built against a local
+ * StubWeatherServer.
+ */
+public class CityDatabaseTest {
+
+    private StubWeatherServer stub;
+    private CityDatabase database;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        stub = StubWeatherServer.start(Duration.ZERO, Duration.ZERO, 0);
+        String base = stub.getBaseUrl();
+        database = new CityDatabase(new API(base, base, base, "test"));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        stub.close();
+    }
+
+    /**
+    * Tests that a city is built from the stub responses.
+    */
+    @Test
+    public void testCityBuilder() {
+        assertEquals("Tampere", database.cityBuilder("Tampere"));
+
+        CityWeatherStatistics city = database.getCity("Tampere");
+        assertEquals(8, city.getCurrentTemperature());
+        assertEquals(4, city.getDailyWeatherList().size());
+        assertEquals(10, city.getHouryWeatherList().size());
+    }
+
+    /**
+    * Tests that known cities are refreshed with group requests.
+    */
+    @Test
+    public void testRefreshCurrentWeatherInGroups() {
+        List<String> names = new ArrayList<>();
+        for (char c = 'a'; c < 'a' + 25; c++) {
+            names.add(database.cityBuilder("Town " + c));
+        }
+        int weatherCalls = stub.getRequestCount("weather");
+
+        assertEquals(25, database.refreshCurrentWeather(names));
+        assertEquals(2, stub.getRequestCount("group"));
+        assertEquals(weatherCalls, stub.getRequestCount("weather"));
+    }
+
+    /**
+    * Tests that cities are refreshed one by one if group requests fail.
+    */
+    @Test
+    public void testRefreshFallsBackToSingleRequests() {
+        String base = stub.getBaseUrl();
+        CityDatabase noGroups = new CityDatabase(new ForwardingAPI(
+                new API(base, base, base, "test")) {
+            @Override
+            public CompletableFuture<List<CurrentWeather>> getCurrentWeatherGroupAsync(
+                    List<Integer> cityIds) {
+                return CompletableFuture.failedFuture(
+                        new UnsupportedOperationException());
+            }
+        });
+        noGroups.cityBuilder("Tampere");
+        noGroups.cityBuilder("Oulu");
+        int weatherCalls = stub.getRequestCount("weather");
+
+        assertEquals(2, noGroups.refreshCurrentWeather(List.of("Tampere", "Oulu", "Nowhere")));
+        assertEquals(weatherCalls + 2, stub.getRequestCount("weather"));
+    }
+
+    /**
+    * Tests that current weather from a group refresh is not replaced by
+    * older current weather from the response cache.
+    */
+    @Test
+    public void testGroupRefreshIsNotUndoneByCache() throws APIException {
+        FakeAPI fake = new FakeAPI();
+        CityDatabase cached = new CityDatabase(new CachedWeatherAPI(
+                new ForwardingAPI(fake) {
+            @Override
+            public CompletableFuture<CurrentWeather> getCurrentWeatherAsync(
+                    double lat, double lon) {
+                return delegate().getCurrentWeatherAsync(lat, lon).thenApply(weather ->
+                        new CurrentWeather(weather.getTemperature(), 15, 25, 50,
+                                5.0, 800, 42, 100));
+            }
+
+            @Override
+            public CompletableFuture<List<CurrentWeather>> getCurrentWeatherGroupAsync(
+                    List<Integer> cityIds) {
+                return CompletableFuture.completedFuture(List.of(
+                        new CurrentWeather(9, 15, 25, 50, 5.0, 800, 42, 200)));
+            }
+        }, 10, Duration.ofMinutes(10), Duration.ofHours(3), Duration.ofMinutes(30)));
+
+        cached.buildCity("Tampere");
+        assertEquals(1, cached.refreshCurrentWeather(List.of("Tampere")));
+        assertEquals(9, cached.getCity("Tampere").getCurrentTemperature());
+
+        // The cached weather of the first build is older
+        cached.buildCity("Tampere");
+        assertEquals(1, fake.currentCalls.get());
+        assertEquals(9, cached.getCity("Tampere").getCurrentTemperature());
+    }
+
+    /**
+    * Tests that cities whose ID is not known, as in the one call mode,
+    * are refreshed one by one.
+    */
+    @Test
+    public void testRefreshWithoutCityIds() throws APIException {
+        FakeAPI fake = new FakeAPI();
+        CityDatabase noIds = new CityDatabase(fake);
+        noIds.buildCity("Oulu");
+        assertEquals(0, noIds.getCity("Oulu").getCityId());
+
+        fake.temperature = 5;
+        assertEquals(1, noIds.refreshCurrentWeather(List.of("Oulu")));
+        assertEquals(5, noIds.getCity("Oulu").getCurrentTemperature());
+        assertEquals(2, fake.currentCalls.get());
+    }
+
+    /**
+    * Tests that a server error is reported with its reason.
+    */
+    @Test
+    public void testServerError() {
+        stub.setErrorRate(1);
+        APIException e = assertThrows(APIException.class,
+                () -> database.buildCity("Tampere"));
+        assertEquals(APIException.Reason.HTTP_ERROR, e.getReason());
+        assertEquals(503, e.getStatusCode());
+        assertEquals("", database.cityBuilder("Tampere"));
+    }
+
+    /**
+    * Tests that concurrent builds of the same city share one build.
+    */
+    @Test
+    public void testSameCityIsBuiltOnce() throws Exception {
+        FakeAPI fake = new FakeAPI();
+        CompletableFuture<Void> gate = new CompletableFuture<>();
+        CityDatabase gated = new CityDatabase(new ForwardingAPI(fake) {
+            @Override
+            public CompletableFuture<Location> lookUpLocationAsync(String loc) {
+                return gate.thenCombine(delegate().lookUpLocationAsync(loc),
+                        (open, location) -> location);
+            }
+        });
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> first = pool.submit(() -> gated.buildCity("Tampere"));
+            while (fake.lookUps.get() == 0) {
+                Thread.sleep(1);
+            }
+            Future<String> second = pool.submit(() -> gated.buildCity(" tampere "));
+            Thread.sleep(200);
+            gate.complete(null);
+
+            assertEquals("Tampere", first.get(5, TimeUnit.SECONDS));
+            assertEquals("Tampere", second.get(5, TimeUnit.SECONDS));
+            assertEquals(1, fake.lookUps.get());
+            assertEquals(1, fake.currentCalls.get());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+    * Tests that concurrent queries which resolve to the same city share
+    * one fetch of its weather.
+    */
+    @Test
+    public void testSpellingsOfACityShareOneFetch() throws Exception {
+        FakeAPI fake = new FakeAPI();
+        CompletableFuture<Void> gate = new CompletableFuture<>();
+        CityDatabase gated = new CityDatabase(new ForwardingAPI(fake) {
+            @Override
+            public CompletableFuture<Location> lookUpLocationAsync(String loc) {
+                return delegate().lookUpLocationAsync("Helsinki");
+            }
+
+            @Override
+            public CompletableFuture<CurrentWeather> getCurrentWeatherAsync(
+                    double lat, double lon) {
+                return gate.thenCombine(delegate().getCurrentWeatherAsync(lat, lon),
+                        (open, weather) -> weather);
+            }
+        });
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> first = pool.submit(() -> gated.buildCity("helsinki"));
+            while (fake.currentCalls.get() == 0) {
+                Thread.sleep(1);
+            }
+            Future<String> second = pool.submit(() -> gated.buildCity("Helsingfors"));
+            while (fake.lookUps.get() < 2) {
+                Thread.sleep(1);
+            }
+            Thread.sleep(200);
+            gate.complete(null);
+
+            assertEquals("Helsinki", first.get(5, TimeUnit.SECONDS));
+            assertEquals("Helsinki", second.get(5, TimeUnit.SECONDS));
+            assertEquals(1, fake.currentCalls.get());
+
+            // Both spellings are now known without a lookup
+            gated.buildCity("Helsingfors");
+            assertEquals(2, fake.lookUps.get());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+    * Tests that different cities are built in parallel. Neither lookup
+    * answers before both have been started, so serialized builds would
+    * never finish.
+    */
+    @Test
+    public void testDifferentCitiesBuildInParallel() throws Exception {
+        FakeAPI fake = new FakeAPI();
+        CompletableFuture<Void> bothStarted = new CompletableFuture<>();
+        AtomicInteger started = new AtomicInteger();
+        CityDatabase gated = new CityDatabase(new ForwardingAPI(fake) {
+            @Override
+            public CompletableFuture<Location> lookUpLocationAsync(String loc) {
+                if (started.incrementAndGet() == 2) {
+                    bothStarted.complete(null);
+                }
+                return bothStarted.thenCompose(
+                        open -> delegate().lookUpLocationAsync(loc));
+            }
+        });
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> tampere = pool.submit(() -> gated.buildCity("Tampere"));
+            Future<String> oulu = pool.submit(() -> gated.buildCity("Oulu"));
+
+            assertEquals("Tampere", tampere.get(5, TimeUnit.SECONDS));
+            assertEquals("Oulu", oulu.get(5, TimeUnit.SECONDS));
+            assertNotNull(gated.getCity("Tampere"));
+            assertNotNull(gated.getCity("Oulu"));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+    * Tests mixed getCity and cityBuilder traffic from several threads.
+    */
+    @Test
+    public void testConcurrentMixedTraffic() throws Exception {
+        String[] names = {"Tampere", "Oulu", "Turku", "Espoo", "Vaasa", "Kuopio"};
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> workers = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int seed = t;
+                workers.add(pool.submit(() -> {
+                    int failures = 0;
+                    for (int i = 0; i < 50; i++) {
+                        String name = names[(seed + i) % names.length];
+                        if (i % 5 == 0) {
+                            if (!name.equals(database.cityBuilder(name))) {
+                                failures++;
+                            }
+                        } else {
+                            CityWeatherStatistics city = database.getCity(name);
+                            if (city != null && !name.equals(city.getName())) {
+                                failures++;
+                            }
+                        }
+                    }
+                    return failures;
+                }));
+            }
+            for (Future<Integer> worker : workers) {
+                assertEquals(0, worker.get(30, TimeUnit.SECONDS));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        for (String name : names) {
+            assertEquals(10, database.getCity(name).getHouryWeatherList().size());
+        }
+    }
+
+    /**
+    * Tests that the least recently used city is evicted when full.
+    */
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        CityDatabase small = new CityDatabase(new FakeAPI(), 3);
+        small.cityBuilder("Tampere");
+        small.cityBuilder("Oulu");
+        small.cityBuilder("Turku");
+        assertNotNull(small.getCity("Tampere"));
+        small.cityBuilder("Espoo");
+
+        assertEquals(3, small.size());
+        assertEquals(1, small.getEvictionCount());
+        assertNull(small.getCity("Oulu"));
+        assertNotNull(small.getCity("Tampere"));
+        assertNotNull(small.getCity("Espoo"));
+        assertEquals(3, small.getHitCount());
+        assertEquals(1, small.getMissCount());
+    }
+
+    /**
+    * Tests that of the least recently used cities, a frequently used one
+    * is kept.
+    */
+    @Test
+    public void testFrequentCityIsKept() {
+        CityDatabase small = new CityDatabase(new FakeAPI(), 8);
+        small.cityBuilder("Town a");
+        for (int i = 0; i < 5; i++) {
+            small.getCity("Town a");
+        }
+        for (char c = 'b'; c <= 'h'; c++) {
+            small.cityBuilder("Town " + c);
+        }
+        small.cityBuilder("Town i");
+
+        assertNotNull(small.getCity("Town a"));
+        assertNull(small.getCity("Town b"));
+        assertEquals(8, small.size());
+    }
+
+    /**
+    * Tests that pinned cities are never evicted.
+    */
+    @Test
+    public void testPinnedCitiesAreKept() {
+        CityDatabase small = new CityDatabase(new FakeAPI(), 2);
+        small.setPinnedCities(() -> List.of("Tampere"));
+        for (String name : List.of("Tampere", "Oulu", "Turku", "Espoo", "Vaasa")) {
+            small.cityBuilder(name);
+        }
+
+        assertEquals(2, small.size());
+        assertEquals(3, small.getEvictionCount());
+        assertNotNull(small.getCity("Tampere"));
+        assertNotNull(small.getCity("Vaasa"));
+    }
+
+    /**
+    * Tests that a known city is built again without a lookup, whichever
+    * query resolved to it, and that aliases of evicted cities are dropped.
+    */
+    @Test
+    public void testKnownCitiesSkipLookup() throws APIException {
+        FakeAPI fake = new FakeAPI();
+        CityDatabase aliased = new CityDatabase(new ForwardingAPI(fake) {
+            @Override
+            public CompletableFuture<Location> lookUpLocationAsync(String loc) {
+                return delegate().lookUpLocationAsync(
+                        loc.equals("Helsingfors") ? "Helsinki" : loc);
+            }
+        }, 1);
+
+        assertEquals("Helsinki", aliased.buildCity("Helsinki"));
+        assertEquals("Helsinki", aliased.buildCity(" helsinki "));
+        assertEquals("Helsinki", aliased.buildCity("Helsingfors"));
+        assertEquals("Helsinki", aliased.buildCity("HELSINGFORS"));
+        assertEquals(2, fake.lookUps.get());
+        assertEquals(2, aliased.getAliasHitCount());
+        // The weather is still refreshed every time
+        assertEquals(4, fake.currentCalls.get());
+
+        aliased.buildCity("Oulu");
+        assertFalse(aliased.contains("Helsinki"));
+        assertEquals("Helsinki", aliased.buildCity("Helsinki"));
+        assertEquals(4, fake.lookUps.get());
+    }
+
+    /**
+    * Tests that the response cache of the api is found and counts the
+    * weather requests of the database.
+    */
+    @Test
+    public void testWeatherCacheMetrics() throws APIException {
+        FakeAPI fake = new FakeAPI();
+        CachedWeatherAPI cache = new CachedWeatherAPI(fake, 10, Duration.ofMinutes(10),
+                Duration.ofMinutes(10), Duration.ofMinutes(10));
+        CityDatabase cached = new CityDatabase(new QuantizedAPI(cache, 0.01));
+        assertSame(cache, cached.getWeatherCache());
+        assertNull(new CityDatabase(fake).getWeatherCache());
+
+        cached.buildCity("Tampere");
+        cached.buildCity("Tampere");
+        assertEquals(3, cached.getWeatherCache().getMissCount());
+        assertEquals(3, cached.getWeatherCache().getHitCount());
+        assertEquals(0.5, cached.getWeatherCache().getHitRate());
+    }
+
+    /**
+    * Tests that only a bounded number of spellings is remembered.
+    */
+    @Test
+    public void testAliasesAreBounded() throws APIException {
+        FakeAPI fake = new FakeAPI();
+        CityDatabase aliased = new CityDatabase(new ForwardingAPI(fake) {
+            @Override
+            public CompletableFuture<Location> lookUpLocationAsync(String loc) {
+                return delegate().lookUpLocationAsync("Tampere");
+            }
+        });
+        for (int i = 0; i < 2100; i++) {
+            aliased.buildCity("Tampere " + i);
+        }
+        assertEquals(2100, fake.lookUps.get());
+
+        aliased.buildCity("Tampere 0");
+        assertEquals(2100, fake.lookUps.get());
+        aliased.buildCity("Tampere 2099");
+        assertEquals(2101, fake.lookUps.get());
+    }
+
+    /**
+    * Tests that a query which resolved to no city is not looked up again
+    * until its entry expires.
+    */
+    @Test
+    public void testNotFoundIsCachedForAWhile() throws APIException {
+        FakeAPI fake = new FakeAPI();
+        AtomicLong now = new AtomicLong();
+        CityDatabase cached = new CityDatabase(new ForwardingAPI(fake) {
+            @Override
+            public CompletableFuture<Location> lookUpLocationAsync(String loc) {
+                fake.lookUps.incrementAndGet();
+                return CompletableFuture.completedFuture(null);
+            }
+        }, 10, SpatialIndex.of(List.of()), now::get);
+
+        assertEquals("", cached.buildCity("Tamprere"));
+        assertEquals("", cached.buildCity("tamprere "));
+        assertEquals("", cached.cityBuilder("Tamprere"));
+        assertEquals(1, fake.lookUps.get());
+        assertEquals(2, cached.getNotFoundHitCount());
+
+        now.addAndGet(TimeUnit.MINUTES.toNanos(31));
+        assertEquals("", cached.buildCity("Tamprere"));
+        assertEquals(2, fake.lookUps.get());
+        assertEquals(0, fake.currentCalls.get());
+    }
+
+    /**
+    * Tests that parallel builds publish only cities whose weather all
+    * arrived, that readers never see a half built city and that a failed
+    * refresh keeps the previous weather.
+    */
+    @Test
+    public void testFailedBuildsPublishNothing() throws Exception {
+        FakeAPI fake = new FakeAPI();
+        AtomicBoolean failAll = new AtomicBoolean();
+        CityDatabase partial = new CityDatabase(new ForwardingAPI(fake) {
+            // Cities are a degree apart, "Bad" ones east of 20
+            @Override
+            public CompletableFuture<Location> lookUpLocationAsync(String loc) {
+                String[] parts = loc.split(" ");
+                int i = Integer.parseInt(parts[1]);
+                return CompletableFuture.completedFuture(new Location(loc,
+                        40 + i, parts[0].equals("Bad") ? 30 : 10, ""));
+            }
+
+            @Override
+            public CompletableFuture<List<DailyWeather>> getForecastAsync(
+                    double lat, double lon) {
+                Executor later = CompletableFuture.delayedExecutor(
+                        5, TimeUnit.MILLISECONDS);
+                if (lon > 20 || failAll.get()) {
+                    return CompletableFuture.supplyAsync(() -> {
+                        throw new IllegalStateException("forecast failed");
+                    }, later);
+                }
+                return delegate().getForecastAsync(lat, lon)
+                        .thenApplyAsync(days -> days, later);
+            }
+        });
+
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            names.add("Good " + i);
+            names.add("Bad " + i);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        AtomicBoolean building = new AtomicBoolean(true);
+        AtomicInteger halfBuilt = new AtomicInteger();
+        try {
+            Future<?> reader = pool.submit(() -> {
+                while (building.get()) {
+                    for (String name : names) {
+                        CityWeatherStatistics city = partial.getCity(name);
+                        if (city != null && (city.getDailyWeatherList().isEmpty()
+                                || city.getHouryWeatherList().isEmpty())) {
+                            halfBuilt.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            List<Future<String>> builds = new ArrayList<>();
+            for (String name : names) {
+                builds.add(pool.submit(() -> partial.cityBuilder(name)));
+            }
+            for (int i = 0; i < builds.size(); i++) {
+                String expected = names.get(i).startsWith("Good") ? names.get(i) : "";
+                assertEquals(expected, builds.get(i).get(10, TimeUnit.SECONDS));
+            }
+            building.set(false);
+            reader.get(10, TimeUnit.SECONDS);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertEquals(0, halfBuilt.get());
+        assertEquals(20, partial.size());
+        for (int i = 0; i < 20; i++) {
+            assertTrue(partial.contains("Good " + i));
+            assertFalse(partial.contains("Bad " + i));
+        }
+
+        WeatherSnapshot before = partial.getCity("Good 3").getSnapshot();
+        failAll.set(true);
+        fake.temperature = -5;
+        assertThrows(APIException.class, () -> partial.buildCity("Good 3"));
+        assertSame(before, partial.getCity("Good 3").getSnapshot());
+        assertEquals(20, partial.getCity("Good 3").getCurrentTemperature());
+    }
+}
@@ -0,0 +1,94 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for CityIndex class, using the bundled gazetteer.
+ */
+public class CityIndexTest {
+
+    private final CityIndex index = CityIndex.getDefault();
+
+    private static List<String> names(List<Location> locations) {
+        List<String> names = new ArrayList<>();
+        for (Location location : locations) {
+            names.add(location.getName() + "," + location.getCountry());
+        }
+        return names;
+    }
+
+    /**
+    * Tests that names are folded regardless of diacritics and punctuation.
+    */
+    @Test
+    public void testFold() {
+        assertEquals("jyvaskyla", CityNames.fold("Jyväskylä"));
+        assertEquals("tromso", CityNames.fold("Tromsø"));
+        assertEquals("cluj napoca", CityNames.fold(" Cluj-Napoca "));
+        assertEquals("xian", CityNames.fold("Xi'an"));
+    }
+
+    /**
+    * Tests finding a city by its whole name.
+    */
+    @Test
+    public void testFind() {
+        assertTrue(index.size() > 300);
+        Location location = index.find("jyvaskyla");
+        assertEquals("Jyväskylä", location.getName());
+        assertEquals("FI", location.getCountry());
+        assertEquals(62.24, location.getLatitude(), 0.01);
+
+        assertEquals("FR", index.find("Paris").getCountry());
+        assertEquals("US", index.find("paris, us").getCountry());
+        assertNull(index.find("Paris, FI"));
+        assertNull(index.find("Tamper"));
+    }
+
+    /**
+    * Tests that prefix suggestions are ranked whole names first, then by
+    * population.
+    */
+    @Test
+    public void testSuggestPrefix() {
+        assertEquals(List.of("London,GB", "London,CA"),
+                names(index.suggest("lond", 2)));
+        assertEquals(List.of("Portland,US", "Porto,PT", "Pori,FI"),
+                names(index.suggest("Por", 3)));
+        assertEquals(List.of("Paris,FR", "Paris,US"), names(index.suggest("PARIS", 5)));
+        assertTrue(index.suggest("", 5).isEmpty());
+        assertTrue(index.suggest("qqq", 5).isEmpty());
+    }
+
+    /**
+    * Tests that a query with one typo still finds the city.
+    */
+    @Test
+    public void testSuggestWithTypo() {
+        assertEquals("Tampere", index.suggest("Tampre", 1).get(0).getName());
+        assertEquals("Tampere", index.suggest("Tmapere", 1).get(0).getName());
+        assertEquals("Helsinki", index.suggest("Helsinkii", 1).get(0).getName());
+        assertEquals("Rovaniemi", index.suggest("Rivaniemi", 1).get(0).getName());
+        // Exact prefix matches come before typo matches
+        assertEquals("Oulu", index.suggest("Oul", 5).get(0).getName());
+        assertTrue(index.suggest("Tmpr", 5).isEmpty());
+    }
+
+    /**
+    * Tests that known cities are geocoded without the delegate.
+    */
+    @Test
+    public void testLocalGeocoding() throws Exception {
+        FakeAPI fake = new FakeAPI();
+        LocalGeocodingAPI api = new LocalGeocodingAPI(fake, index);
+
+        assertEquals("Hämeenlinna", api.lookUpLocationAsync("hameenlinna").get().getName());
+        assertEquals("Somewhere", api.lookUpLocationAsync("Somewhere").get().getName());
+        assertEquals(1, fake.lookUps.get());
+        assertEquals(1, api.getHitCount());
+        assertEquals(1, api.getMissCount());
+    }
+}
@@ -85,4 +85,24 @@ public class CityWeatherStatisticsTest {
         assertEquals(5.0, cityWeather.getHouryWeatherList().get(0).getWindSpeed());
         assertEquals(801, cityWeather.getHouryWeatherList().get(0).getWeatherId());
     }
-}
\ No newline at end of file
+
+    /**
+    * Tests that reading a newer forecast merges it with the known one
+    * instead of appending to it.
+    */
+    @Test
+    public void testRefreshMergesForecasts() {
+        CityWeatherStatistics cityWeather = new CityWeatherStatistics("TestCity");
+        assertTrue(cityWeather.readHourlyWeather("{\"list\": [{\"dt\": 1618916400, \"main\": {\"temp\": 15.0}}, {\"dt\": 1618920000, \"main\": {\"temp\": 16.0}}, {\"dt\": 1618923600, \"main\": {\"temp\": 17.0}}]}"));
+        // An hour later the first hour is in the past and a new one is known
+        assertTrue(cityWeather.readHourlyWeather("{\"list\": [{\"dt\": 1618920000, \"main\": {\"temp\": 18.0}}, {\"dt\": 1618923600, \"main\": {\"temp\": 19.0}}, {\"dt\": 1618927200, \"main\": {\"temp\": 20.0}}]}"));
+        assertEquals(3, cityWeather.getHouryWeatherList().size());
+        assertEquals(18, cityWeather.getHouryWeatherList().get(0).getTemperature());
+        assertEquals(20, cityWeather.getHouryWeatherList().get(2).getTemperature());
+
+        String days = "{\"list\": [{\"temp\": {\"min\": 10.0, \"max\": 20.0}, \"dt\": 1618916400}, {\"temp\": {\"min\": 15.0, \"max\": 25.0}, \"dt\": 1619002800}]}";
+        assertTrue(cityWeather.readDailyWeather(days));
+        assertTrue(cityWeather.readDailyWeather(days));
+        assertEquals(1, cityWeather.getDailyWeatherList().size());
+    }
+}
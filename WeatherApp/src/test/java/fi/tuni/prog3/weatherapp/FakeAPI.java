@@ -0,0 +1,59 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-memory iAsyncAPI for tests. Every query resolves to a location
+ * named after the query and every weather call succeeds immediately with
+ * fixed values. Calls are counted per endpoint.
+ */
+public class FakeAPI implements iAsyncAPI {
+    final AtomicInteger lookUps = new AtomicInteger();
+    final AtomicInteger currentCalls = new AtomicInteger();
+    final AtomicInteger forecastCalls = new AtomicInteger();
+    final AtomicInteger hourlyCalls = new AtomicInteger();
+    // Temperature returned by the next current weather call
+    volatile int temperature = 20;
+
+    @Override
+    public CompletableFuture<Location> lookUpLocationAsync(String loc) {
+        lookUps.incrementAndGet();
+        String name = loc.trim();
+        return CompletableFuture.completedFuture(
+                new Location(name, 61.5, 23.8, "FI"));
+    }
+
+    @Override
+    public CompletableFuture<CurrentWeather> getCurrentWeatherAsync(double lat, double lon) {
+        currentCalls.incrementAndGet();
+        return CompletableFuture.completedFuture(
+                new CurrentWeather(temperature, 15, 25, 50, 5.0, 800));
+    }
+
+    @Override
+    public CompletableFuture<List<DailyWeather>> getForecastAsync(double lat, double lon) {
+        forecastCalls.incrementAndGet();
+        List<DailyWeather> days = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            days.add(new DailyWeather(new Date((1618916400L + i * 86400L) * 1000L),
+                    10 + i, 20 + i, 800));
+        }
+        return CompletableFuture.completedFuture(days);
+    }
+
+    @Override
+    public CompletableFuture<List<HourlyWeather>> getHourlyWeatherAsync(double lat, double lon) {
+        hourlyCalls.incrementAndGet();
+        List<HourlyWeather> hours = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            hours.add(new HourlyWeather(1618920000L + i * 3600L, ZoneId.systemDefault(),
+                    15 + i, 5.0, 801));
+        }
+        return CompletableFuture.completedFuture(hours);
+    }
+}
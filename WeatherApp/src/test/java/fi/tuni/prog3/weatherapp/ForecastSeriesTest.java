@@ -0,0 +1,103 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.time.ZoneId;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for ForecastSeries class.
+ */
+public class ForecastSeriesTest {
+
+    /**
+    * Tests that points are kept in time order and that a point with a known
+    * time replaces the old one.
+    */
+    @Test
+    public void testPutKeepsOrderAndReplaces() {
+        ForecastSeries series = new ForecastSeries(10);
+        series.put(3600, 12, 0, 2.5, 800);
+        series.put(0, 10, 0, 1.5, 801);
+        series.put(7200, 14, 0, 3.5, 802);
+        series.put(3600, 13, 0, 3.0, 500);
+
+        assertEquals(3, series.size());
+        assertEquals(0, series.getEpochSecond(0));
+        assertEquals(3600, series.getEpochSecond(1));
+        assertEquals(13, series.getTemperature(1));
+        assertEquals(3.0, series.getWindSpeed(1));
+        assertEquals(500, series.getWeatherId(1));
+        assertEquals(7200, series.getEpochSecond(2));
+        assertThrows(IndexOutOfBoundsException.class, () -> series.getTemperature(3));
+    }
+
+    /**
+    * Tests that a full series drops its oldest points.
+    */
+    @Test
+    public void testFullSeriesDropsOldest() {
+        ForecastSeries series = new ForecastSeries(4);
+        for (int i = 0; i < 10; i++) {
+            series.put(i * 3600L, i, 0, 0, 800);
+        }
+        assertEquals(4, series.size());
+        assertEquals(6, series.getTemperature(0));
+        assertEquals(9, series.getTemperature(3));
+
+        // Older than everything in a full series
+        series.put(0, 100, 0, 0, 800);
+        assertEquals(6, series.getTemperature(0));
+
+        // Between two points, after wrapping around the arrays
+        series.put(7 * 3600L + 1800, 75, 0, 0, 800);
+        assertEquals(4, series.size());
+        assertEquals(7, series.getTemperature(0));
+        assertEquals(75, series.getTemperature(1));
+        assertEquals(9, series.getTemperature(3));
+    }
+
+    /**
+    * Tests that points before a time are dropped.
+    */
+    @Test
+    public void testDropBefore() {
+        ForecastSeries series = new ForecastSeries(10);
+        for (int i = 0; i < 5; i++) {
+            series.put(i * 3600L, i, 0, 0, 800);
+        }
+        series.dropBefore(2 * 3600L - 1);
+        assertEquals(3, series.size());
+        assertEquals(2, series.getTemperature(0));
+        series.dropBefore(10 * 3600L);
+        assertEquals(0, series.size());
+    }
+
+    /**
+    * Tests that the views give back the days and hours that were added.
+    */
+    @Test
+    public void testViews() {
+        ZoneId zone = ZoneId.systemDefault();
+        DailyWeather day = new DailyWeather(1619002800L, zone, 5, 16, 802);
+        HourlyWeather hour = new HourlyWeather(1618923600L, zone, 14, 3.5, 500);
+
+        ForecastSeries days = new ForecastSeries(8);
+        days.put(day);
+        List<DailyWeather> dayView = days.asDailyWeather();
+        assertEquals(day.getDate(), dayView.get(0).getDate());
+        assertEquals(5, dayView.get(0).getMinTemp());
+        assertEquals(16, dayView.get(0).getMaxTemp());
+        assertEquals(802, dayView.get(0).getWeatherId());
+
+        ForecastSeries hours = new ForecastSeries(48);
+        List<HourlyWeather> hourView = hours.asHourlyWeather();
+        hours.put(hour);
+        // The view follows the series
+        assertEquals(1, hourView.size());
+        assertEquals(hour.getHour(), hourView.get(0).getHour());
+        assertEquals(14, hourView.get(0).getTemperature());
+        assertEquals(3.5, hourView.get(0).getWindSpeed());
+        assertThrows(UnsupportedOperationException.class, () -> hourView.add(hour));
+    }
+}
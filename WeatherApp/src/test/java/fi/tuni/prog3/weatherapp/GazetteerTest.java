@@ -0,0 +1,127 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for Gazetteer and GazetteerBuilder classes. The gazetteer is
+ * compiled from the bundled city list.
+ */
+public class GazetteerTest {
+
+    private Path dir;
+    private Path file;
+    private int written;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("gazetteer");
+        file = dir.resolve("cities.gaz");
+        try (Reader reader = new InputStreamReader(
+                CityIndex.class.getResourceAsStream(CityIndex.RESOURCE),
+                StandardCharsets.UTF_8)) {
+            written = GazetteerBuilder.build(reader, file);
+        }
+    }
+
+    /**
+    * Tests that every city of the list is written in fixed size records.
+    */
+    @Test
+    public void testBuild() throws IOException {
+        assertEquals(CityIndex.getDefault().size(), written);
+        assertEquals(Gazetteer.HEADER_BYTES + written * Gazetteer.RECORD_BYTES,
+                Files.size(file));
+        assertEquals(written, Gazetteer.open(file).size());
+    }
+
+    /**
+    * Tests that the spatial index of the mapped file finds the same places
+    * as an index of the bundled cities on the heap.
+    */
+    @Test
+    public void testSpatialIndex() throws IOException {
+        SpatialIndex<Location> mapped = Gazetteer.open(file).spatialIndex();
+        SpatialIndex<Location> heap = SpatialIndex.of(CityIndex.getDefault().locations());
+        assertEquals(written, mapped.size());
+
+        double[][] queries = {{62.24, 25.75}, {48.85, 2.35}, {-33.9, 151.2}, {0, 180}};
+        for (double[] query : queries) {
+            List<Location> expected = heap.nearest(query[0], query[1], 5);
+            List<Location> found = mapped.nearest(query[0], query[1], 5);
+            for (int i = 0; i < 5; i++) {
+                assertEquals(expected.get(i).getLatitude(), found.get(i).getLatitude());
+                assertEquals(expected.get(i).getLongitude(), found.get(i).getLongitude());
+            }
+            assertEquals(heap.within(query[0], query[1], 300).size(),
+                    mapped.within(query[0], query[1], 300).size());
+        }
+        assertEquals("Jyväskylä", mapped.nearest(62.24, 25.75, 1).get(0).getName());
+    }
+
+    /**
+    * Tests finding cities like the bundled index does.
+    */
+    @Test
+    public void testFind() throws IOException {
+        Gazetteer gazetteer = Gazetteer.open(file);
+
+        Location location = gazetteer.find("JYVASKYLA");
+        assertEquals("Jyväskylä", location.getName());
+        assertEquals("FI", location.getCountry());
+        assertEquals(62.2426, location.getLatitude(), 1e-9);
+        assertEquals(25.7473, location.getLongitude(), 1e-9);
+
+        assertEquals("FR", gazetteer.find("Paris").getCountry());
+        assertEquals("US", gazetteer.find("Paris, us").getCountry());
+        assertEquals("Xi'an", gazetteer.find("xian").getName());
+        assertNull(gazetteer.find("Paris, FI"));
+        assertNull(gazetteer.find("Tamper"));
+        assertNull(gazetteer.find("Tamperee"));
+        assertNull(gazetteer.find(""));
+        for (String name : new String[] {"Adelaide", "Łódź", "Zürich", "Ylöjärvi"}) {
+            assertEquals(name, gazetteer.find(name).getName());
+        }
+    }
+
+    /**
+    * Tests that a file which is not a gazetteer is rejected and that
+    * names which do not fit a record are skipped.
+    */
+    @Test
+    public void testInvalidInput() throws IOException {
+        Path other = dir.resolve("other.gaz");
+        Files.writeString(other, "not a gazetteer");
+        assertThrows(IOException.class, () -> Gazetteer.open(other));
+
+        String list = "A" + "a".repeat(60) + "\tFI\t60.0\t25.0\t100\n"
+                + "Oulu\tFI\t65.0121\t25.4651\t209551\n";
+        assertEquals(1, GazetteerBuilder.build(new StringReader(list), other));
+        assertEquals("Oulu", Gazetteer.open(other).find("oulu").getName());
+        assertThrows(IOException.class, () -> GazetteerBuilder.build(
+                new StringReader("Oulu\tFI\tnorth\t25.4\t1\n"), other));
+    }
+
+    /**
+    * Tests that the gazetteer answers before the delegate.
+    */
+    @Test
+    public void testLocalGeocoding() throws Exception {
+        FakeAPI fake = new FakeAPI();
+        LocalGeocodingAPI api = new LocalGeocodingAPI(fake, Gazetteer.open(file));
+
+        assertEquals("Kuopio", api.lookUpLocationAsync("kuopio").get().getName());
+        assertEquals(0, fake.lookUps.get());
+        assertEquals("Nowhere", api.lookUpLocationAsync("Nowhere").get().getName());
+        assertEquals(1, fake.lookUps.get());
+    }
+}
@@ -0,0 +1,136 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Load test of the city fetch path. Starts a StubWeatherServer and drives
+ * concurrent CityDatabase.cityBuilder calls for distinct cities against
+ * it, then reports throughput, failures and a latency histogram.
+ * The requests go through retries and request coalescing like in the app,
+ * but not through the caches or the rate limiter, so every city really
+ * reaches the server.
+ * Usage: run the main method with optional arguments [cities]
+ * [concurrent callers] [latency in ms] [jitter in ms] [error rate].
+ */
+public class LoadTestHarness {
+
+    /**
+     * Runs the load test.
+     * @param args Cities, callers, latency, jitter and error rate.
+     * @throws Exception if the stub server cannot be started.
+     */
+    public static void main(String[] args) throws Exception {
+        int cities = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int callers = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        long latency = args.length > 2 ? Long.parseLong(args[2]) : 40;
+        long jitter = args.length > 3 ? Long.parseLong(args[3]) : 20;
+        double errorRate = args.length > 4 ? Double.parseDouble(args[4]) : 0.01;
+
+        try (StubWeatherServer stub = StubWeatherServer.start(
+                Duration.ofMillis(latency), Duration.ofMillis(jitter), errorRate)) {
+            String base = stub.getBaseUrl();
+            API http = new API(API.newHttpClient(Duration.ofSeconds(5), 8),
+                    Duration.ofSeconds(10), base, base, base, "loadtest");
+            iAsyncAPI api = new SingleFlightAPI(new ResilientAPI(http, 3,
+                    Duration.ofMillis(50), Duration.ofMillis(500), 1000,
+                    Duration.ofSeconds(5), null));
+            CityDatabase database = new CityDatabase(api);
+
+            // Warm up connections and JIT before measuring
+            run(database, "Warmup", Math.min(cities, 50), callers);
+            long[] result = run(database, "Town", cities, callers);
+
+            report(cities, callers, result);
+            System.out.printf("Server requests: geo %d, weather %d, daily %d, hourly %d%n",
+                    stub.getRequestCount("geo"), stub.getRequestCount("weather"),
+                    stub.getRequestCount("daily"), stub.getRequestCount("hourly"));
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Builds the given number of distinct cities from several threads.
+     * @return An array with the total duration in nanoseconds, the number
+     * of failed builds, and the latency of every build.
+     */
+    private static long[] run(CityDatabase database, String prefix, int cities,
+            int callers) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(callers);
+        List<Future<Long>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < cities; i++) {
+            String name = prefix + " " + letters(i);
+            results.add(pool.submit(() -> {
+                long begin = System.nanoTime();
+                String built = database.cityBuilder(name);
+                long took = System.nanoTime() - begin;
+                // A failed build is reported with a negative latency
+                return built.isEmpty() ? -took : took;
+            }));
+        }
+        long[] all = new long[cities + 2];
+        for (int i = 0; i < cities; i++) {
+            long took = results.get(i).get();
+            if (took < 0) {
+                all[1]++;
+            }
+            all[i + 2] = Math.abs(took);
+        }
+        all[0] = System.nanoTime() - start;
+        pool.shutdown();
+        return all;
+    }
+
+    /**
+     * Prints throughput, failures, latency percentiles and a histogram of
+     * the latencies in power of two millisecond buckets.
+     */
+    private static void report(int cities, int callers, long[] result) {
+        long[] latencies = Arrays.copyOfRange(result, 2, result.length);
+        Arrays.sort(latencies);
+        double seconds = result[0] / 1e9;
+        System.out.printf("%d cities, %d callers: %.1f cities/s, %d failed%n",
+                cities, callers, cities / seconds, result[1]);
+        System.out.printf("p50 %.1f ms  p90 %.1f ms  p99 %.1f ms  max %.1f ms%n",
+                percentile(latencies, 0.50) / 1e6, percentile(latencies, 0.90) / 1e6,
+                percentile(latencies, 0.99) / 1e6, latencies[latencies.length - 1] / 1e6);
+
+        int[] buckets = new int[32];
+        for (long latency : latencies) {
+            long millis = Math.max(1, latency / 1_000_000);
+            buckets[63 - Long.numberOfLeadingZeros(millis)]++;
+        }
+        int widest = Arrays.stream(buckets).max().orElse(1);
+        for (int b = 0; b < buckets.length; b++) {
+            if (buckets[b] == 0) {
+                continue;
+            }
+            System.out.printf("%6d - %6d ms %6d %s%n", 1L << b, (1L << (b + 1)) - 1,
+                    buckets[b], "#".repeat(Math.max(1, buckets[b] * 50 / widest)));
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    /**
+     * Spells a number with letters, because city names may not contain
+     * digits.
+     */
+    private static String letters(int n) {
+        StringBuilder name = new StringBuilder();
+        do {
+            name.append((char) ('a' + n % 26));
+            n /= 26;
+        } while (n > 0);
+        return name.toString();
+    }
+}
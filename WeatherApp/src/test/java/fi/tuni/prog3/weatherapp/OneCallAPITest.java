@@ -0,0 +1,114 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for OneCallAPI class and the one call decoder.
+ */
+public class OneCallAPITest {
+
+    private static final String ONE_CALL_JSON = "{\"lat\":61.5,\"lon\":23.8,"
+            + "\"current\":{\"dt\":1618920000,\"temp\":12.6,\"humidity\":40,"
+            + "\"wind_speed\":3.5,\"weather\":[{\"id\":801,\"main\":\"Clouds\"}]},"
+            + "\"hourly\":[{\"dt\":1618920000,\"temp\":12.4,\"wind_speed\":3.1,"
+            + "\"weather\":[{\"id\":801}]},{\"dt\":1618923600,\"temp\":13.6,"
+            + "\"wind_speed\":2.0,\"weather\":[{\"id\":800}]},{\"dt\":1618927200,"
+            + "\"temp\":15.2,\"wind_speed\":1.5,\"weather\":[{\"id\":802}]}],"
+            + "\"daily\":[{\"dt\":1618916400,\"temp\":{\"day\":12,\"min\":4.4,"
+            + "\"max\":14.6},\"weather\":[{\"id\":500}]},{\"dt\":1619002800,"
+            + "\"temp\":{\"min\":5.2,\"max\":16.0},\"weather\":[{\"id\":800}]}]}";
+
+    /**
+    * Tests that a one call response is split into the three parts.
+    */
+    @Test
+    public void testDecodeOneCall() throws Exception {
+        OneCallWeather weather = WeatherDecoder.decodeOneCall(
+                new StringReader(ONE_CALL_JSON));
+
+        CurrentWeather current = weather.getCurrentWeather();
+        assertEquals(13, current.getTemperature());
+        // Minimum and maximum come from todays forecast
+        assertEquals(4, current.getMinTemperature());
+        assertEquals(15, current.getMaxTemperature());
+        assertEquals(40, current.getHumidity());
+        assertEquals(3.5, current.getWindSpeed());
+        assertEquals(801, current.getWeatherId());
+
+        assertEquals(2, weather.getDailyWeather().size());
+        assertEquals(16, weather.getDailyWeather().get(1).getMaxTemp());
+        // The current hour is left out
+        assertEquals(2, weather.getHourlyWeather().size());
+        assertEquals(14, weather.getHourlyWeather().get(0).getTemperature());
+        assertEquals(800, weather.getHourlyWeather().get(0).getWeatherId());
+        assertEquals(15, weather.getHourlyWeather().get(1).getTemperature());
+    }
+
+    /**
+    * Tests that the hours start from the next hour, as in the hourly
+    * forecast response, and that ten of them are kept.
+    */
+    @Test
+    public void testOneCallHoursStartFromNextHour() throws Exception {
+        long now = 1618920000L;
+        StringBuilder json = new StringBuilder("{\"current\":{\"dt\":" + (now + 1200)
+                + ",\"temp\":12},\"hourly\":[");
+        for (int i = 0; i < 48; i++) {
+            json.append(i == 0 ? "" : ",").append("{\"dt\":").append(now + i * 3600L)
+                    .append(",\"temp\":").append(i).append("}");
+        }
+        json.append("]}");
+
+        List<HourlyWeather> hours = WeatherDecoder.decodeOneCall(
+                new StringReader(json.toString())).getHourlyWeather();
+        assertEquals(10, hours.size());
+        assertEquals(now + 3600, hours.get(0).getEpochSecond());
+        assertEquals(1, hours.get(0).getTemperature());
+        assertEquals(10, hours.get(9).getTemperature());
+    }
+
+    /**
+    * Tests that a response without the current weather is rejected.
+    */
+    @Test
+    public void testDecodeOneCallWithoutCurrent() {
+        assertThrows(java.io.IOException.class, () -> WeatherDecoder.decodeOneCall(
+                new StringReader("{\"daily\":[],\"hourly\":[]}")));
+    }
+
+    /**
+    * Tests that the three weather calls of a city share one request.
+    */
+    @Test
+    public void testWeatherCallsShareOneRequest() throws Exception {
+        AtomicInteger oneCalls = new AtomicInteger();
+        CompletableFuture<OneCallWeather> response = new CompletableFuture<>();
+        OneCallAPI api = new OneCallAPI(new FakeAPI() {
+            @Override
+            public CompletableFuture<OneCallWeather> getAllWeatherAsync(double lat, double lon) {
+                oneCalls.incrementAndGet();
+                return response;
+            }
+        });
+
+        CompletableFuture<CurrentWeather> current = api.getCurrentWeatherAsync(61.5, 23.8);
+        CompletableFuture<List<DailyWeather>> daily = api.getForecastAsync(61.5, 23.8);
+        CompletableFuture<List<HourlyWeather>> hourly = api.getHourlyWeatherAsync(61.5, 23.8);
+        response.complete(WeatherDecoder.decodeOneCall(new StringReader(ONE_CALL_JSON)));
+
+        assertEquals(13, current.get(5, TimeUnit.SECONDS).getTemperature());
+        assertEquals(2, daily.get(5, TimeUnit.SECONDS).size());
+        assertEquals(2, hourly.get(5, TimeUnit.SECONDS).size());
+        assertEquals(1, oneCalls.get());
+
+        // A later call makes a new request
+        api.getCurrentWeatherAsync(61.5, 23.8);
+        assertEquals(2, oneCalls.get());
+    }
+}
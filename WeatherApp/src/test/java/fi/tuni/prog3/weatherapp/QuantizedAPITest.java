@@ -0,0 +1,44 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.time.Duration;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for QuantizedAPI class.
+ */
+public class QuantizedAPITest {
+
+    private final FakeAPI fake = new FakeAPI();
+    private final CachedWeatherAPI cache = new CachedWeatherAPI(fake, 100,
+            Duration.ofMinutes(10), Duration.ofHours(3), Duration.ofMinutes(30));
+    private final QuantizedAPI api = new QuantizedAPI(cache, 0.05);
+
+    /**
+    * Tests that coordinates are snapped to the nearest grid point.
+    */
+    @Test
+    public void testSnap() {
+        assertEquals(61.5, api.snap(61.4980214));
+        assertEquals(23.75, api.snap(23.7603118));
+        assertEquals(-33.85, api.snap(-33.8688));
+        assertEquals(0.05, api.snap(0.025));
+        assertEquals(0.0, api.snap(0.02));
+    }
+
+    /**
+    * Tests that nearby places share cached responses.
+    */
+    @Test
+    public void testNearbyPlacesShareCache() {
+        // Three places within a few hundred metres of each other
+        api.getCurrentWeatherAsync(61.4980, 23.7603).join();
+        api.getCurrentWeatherAsync(61.5012, 23.7581).join();
+        api.getCurrentWeatherAsync(61.4991, 23.7649).join();
+        // And one further away
+        api.getCurrentWeatherAsync(61.6850, 27.2730).join();
+
+        assertEquals(2, fake.currentCalls.get());
+        assertEquals(0.5, cache.getHitRate());
+    }
+}
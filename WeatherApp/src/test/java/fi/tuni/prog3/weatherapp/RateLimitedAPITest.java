@@ -0,0 +1,124 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for RateLimitedAPI class.
+ */
+public class RateLimitedAPITest {
+
+    private final Path usageFile;
+    private final FakeAPI fake = new FakeAPI();
+    private long now = 0;
+    private LocalDate date = LocalDate.of(2024, 4, 20);
+
+    /**
+    * Constructs the test with its own usage file.
+    * @throws IOException if the temporary directory cannot be created.
+    */
+    public RateLimitedAPITest() throws IOException {
+        usageFile = Files.createTempDirectory("ratelimit").resolve("usage.json");
+    }
+
+    private RateLimitedAPI newLimiter(int perMinute, long perDay) {
+        return new RateLimitedAPI(fake, perMinute, perDay, usageFile,
+                () -> now, () -> date);
+    }
+
+    /**
+    * Tests that calls over the minute limit wait.
+    */
+    @Test
+    public void testCallsOverLimitWait() {
+        RateLimitedAPI api = newLimiter(2, 100);
+        assertTrue(api.getCurrentWeatherAsync(1, 1).isDone());
+        assertTrue(api.getCurrentWeatherAsync(1, 1).isDone());
+        CompletableFuture<CurrentWeather> third = api.getCurrentWeatherAsync(1, 1);
+        assertFalse(third.isDone());
+        assertEquals(2, fake.currentCalls.get());
+    }
+
+    /**
+    * Tests that waiting user calls are sent before background calls.
+    */
+    @Test
+    public void testUserCallsJumpAheadOfBackground() throws Exception {
+        RateLimitedAPI api = newLimiter(60, 100);
+        api.getCurrentWeatherAsync(1, 1);
+        now = TimeUnit.SECONDS.toNanos(1);
+        for (int i = 1; i < 60; i++) {
+            api.getCurrentWeatherAsync(1, 1);
+        }
+        CompletableFuture<CurrentWeather> background =
+                RequestPriority.runInBackground(() -> api.getCurrentWeatherAsync(1, 1));
+        CompletableFuture<CurrentWeather> user = api.getCurrentWeatherAsync(1, 1);
+        // Only the first call leaves the window, and the next call
+        // hands its place out
+        now = TimeUnit.SECONDS.toNanos(60);
+        CompletableFuture<CurrentWeather> later = api.getCurrentWeatherAsync(1, 1);
+        user.get(5, TimeUnit.SECONDS);
+        assertFalse(background.isDone());
+        assertFalse(later.isDone());
+    }
+
+    /**
+    * Tests that no minute has more calls than the limit, even right after
+    * the limiter is created.
+    */
+    @Test
+    public void testLimitHoldsForAnyMinute() {
+        RateLimitedAPI api = newLimiter(2, 100);
+        assertTrue(api.getCurrentWeatherAsync(1, 1).isDone());
+        assertTrue(api.getCurrentWeatherAsync(1, 1).isDone());
+        now = TimeUnit.SECONDS.toNanos(59);
+        CompletableFuture<CurrentWeather> third = api.getCurrentWeatherAsync(1, 1);
+        assertFalse(third.isDone());
+
+        now = TimeUnit.SECONDS.toNanos(60);
+        CompletableFuture<CurrentWeather> fourth = api.getCurrentWeatherAsync(1, 1);
+        assertTrue(third.isDone());
+        assertTrue(fourth.isDone());
+        assertFalse(api.getCurrentWeatherAsync(1, 1).isDone());
+        assertEquals(4, fake.currentCalls.get());
+    }
+
+    /**
+    * Tests that calls over the daily quota fail.
+    */
+    @Test
+    public void testDailyQuotaIsEnforced() {
+        RateLimitedAPI api = newLimiter(60, 2);
+        api.getCurrentWeatherAsync(1, 1).join();
+        api.getForecastAsync(1, 1).join();
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> api.getHourlyWeatherAsync(1, 1).get());
+        assertTrue(e.getCause() instanceof IOException);
+        assertEquals(0, api.getRemainingToday());
+
+        // A new day resets the quota
+        date = date.plusDays(1);
+        assertEquals(2, api.getRemainingToday());
+    }
+
+    /**
+    * Tests that the daily usage is restored from the file.
+    */
+    @Test
+    public void testUsageSurvivesRestart() throws Exception {
+        RateLimitedAPI api = newLimiter(60, 10);
+        api.getCurrentWeatherAsync(1, 1).join();
+        api.getCurrentWeatherAsync(1, 1).join();
+        for (int i = 0; i < 50 && !Files.exists(usageFile); i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(2, newLimiter(60, 10).getCallsToday());
+    }
+}
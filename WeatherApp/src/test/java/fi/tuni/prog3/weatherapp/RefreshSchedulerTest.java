@@ -0,0 +1,111 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for RefreshScheduler class.
+ */
+public class RefreshSchedulerTest {
+
+    private final AtomicLong clock = new AtomicLong();
+    private final FakeAPI fake = new FakeAPI();
+    private final CityDatabase database = new CityDatabase(fake);
+
+    private void advanceMinutes(long minutes) {
+        clock.addAndGet(TimeUnit.MINUTES.toNanos(minutes));
+    }
+
+    /**
+    * Tests that favourites are built and kept refreshed.
+    */
+    @Test
+    public void testFavouritesAreRefreshed() {
+        RefreshScheduler scheduler = new RefreshScheduler(database,
+                () -> List.of("Tampere"), 10000, clock::get);
+        // A favourite not in the database yet is built right away
+        assertEquals(1, scheduler.runDue());
+        assertTrue(database.contains("Tampere"));
+        assertEquals(1, fake.lookUps.get());
+        assertEquals(0, scheduler.runDue());
+
+        // Within a few hours a favourite is refreshed many times
+        int calls = fake.currentCalls.get();
+        for (int i = 0; i < 24; i++) {
+            advanceMinutes(10);
+            scheduler.runDue();
+        }
+        assertTrue(fake.currentCalls.get() - calls >= 4);
+        assertTrue(database.contains("Tampere"));
+    }
+
+    /**
+    * Tests that the interval shortens with views and that a city not
+    * viewed for long is dropped.
+    */
+    @Test
+    public void testIntervalAdaptsToViews() {
+        RefreshScheduler scheduler = new RefreshScheduler(database,
+                List::of, 10000, clock::get);
+        database.cityBuilder("Oulu");
+        scheduler.viewed("Oulu");
+        assertEquals(TimeUnit.MINUTES.toNanos(30), scheduler.getCurrentInterval("Oulu"));
+
+        for (int i = 0; i < 4; i++) {
+            scheduler.viewed("Oulu");
+        }
+        assertEquals(TimeUnit.MINUTES.toNanos(10), scheduler.getCurrentInterval("Oulu"));
+
+        advanceMinutes(10 * 60);
+        scheduler.runDue();
+        assertEquals(0, scheduler.getCurrentInterval("Oulu"));
+    }
+
+    /**
+    * Tests that intervals are stretched to fit a small daily budget.
+    */
+    @Test
+    public void testIntervalsFitBudget() {
+        RefreshScheduler scheduler = new RefreshScheduler(database,
+                List::of, 10, clock::get);
+        database.cityBuilder("Oulu");
+        scheduler.viewed("Oulu");
+
+        // 2.4 current weather and 48 full refresh calls per day unstretched
+        long expected = (long) (TimeUnit.MINUTES.toNanos(30) * 5.04);
+        assertEquals(expected, scheduler.getCurrentInterval("Oulu"), 1e6);
+    }
+
+    /**
+    * Tests that the budget is a share of the calls left today and that
+    * refreshes skip the response cache.
+    */
+    @Test
+    public void testBudgetAndCacheComeFromTheApi() throws Exception {
+        Path usageFile = Files.createTempDirectory("refresh").resolve("usage.json");
+        RateLimitedAPI limiter = new RateLimitedAPI(fake, 6000, 22, usageFile);
+        CityDatabase limited = new CityDatabase(new CachedWeatherAPI(limiter, 10,
+                Duration.ofMinutes(10), Duration.ofHours(3), Duration.ofMinutes(30)));
+        RefreshScheduler scheduler = new RefreshScheduler(limited, List::of);
+        limited.cityBuilder("Oulu");
+        assertEquals(18, limiter.getRemainingToday());
+        scheduler.viewed("Oulu");
+
+        // Half of the 18 calls left, so the same stretch as a budget of 9
+        double stretch = (2.4 + 48) / 9;
+        long expected = (long) (TimeUnit.MINUTES.toNanos(30) * stretch);
+        assertEquals(expected, scheduler.getCurrentInterval("Oulu"), 1e6);
+
+        // Refreshes fetch the weather the cache still has
+        scheduler.refresh(List.of("Oulu"), List.of("Oulu"));
+        assertEquals(3, fake.currentCalls.get());
+        assertEquals(2, fake.forecastCalls.get());
+        assertEquals(2, fake.hourlyCalls.get());
+    }
+}
@@ -0,0 +1,162 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for ResilientAPI class.
+ */
+public class ResilientAPITest {
+
+    private final AtomicInteger calls = new AtomicInteger();
+    // Status code of the failures, 0 for success
+    private volatile int failWith = 503;
+    private volatile boolean quotaExceeded;
+    private long now = 0;
+
+    private final FakeAPI fake = new FakeAPI() {
+        @Override
+        public CompletableFuture<CurrentWeather> getCurrentWeatherAsync(double lat, double lon) {
+            calls.incrementAndGet();
+            if (quotaExceeded) {
+                return CompletableFuture.failedFuture(new APIException(
+                        APIException.Reason.QUOTA_EXCEEDED, "Daily quota used"));
+            }
+            if (failWith != 0) {
+                return CompletableFuture.failedFuture(new APIException(
+                        APIException.Reason.HTTP_ERROR, "HTTP " + failWith,
+                        failWith, null));
+            }
+            return super.getCurrentWeatherAsync(lat, lon);
+        }
+    };
+
+    private ResilientAPI newApi(int maxAttempts, int failureThreshold) {
+        return new ResilientAPI(fake, maxAttempts, Duration.ofMillis(1),
+                Duration.ofMillis(5), failureThreshold, Duration.ofSeconds(30),
+                null, () -> now);
+    }
+
+    private APIException failure(CompletableFuture<?> future) {
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> future.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof APIException);
+        return (APIException) e.getCause();
+    }
+
+    /**
+    * Tests that a temporary failure is retried until it succeeds.
+    */
+    @Test
+    public void testRetryableFailureIsRetried() throws Exception {
+        ResilientAPI api = new ResilientAPI(new FakeAPI() {
+            @Override
+            public CompletableFuture<CurrentWeather> getCurrentWeatherAsync(double lat, double lon) {
+                if (calls.incrementAndGet() < 3) {
+                    return CompletableFuture.failedFuture(new java.io.IOException("reset"));
+                }
+                return super.getCurrentWeatherAsync(lat, lon);
+            }
+        }, 3, Duration.ofMillis(1), Duration.ofMillis(5), 5,
+                Duration.ofSeconds(30), null);
+        assertEquals(20, api.getCurrentWeatherAsync(1, 1).get(5, TimeUnit.SECONDS)
+                .getTemperature());
+        assertEquals(3, calls.get());
+    }
+
+    /**
+    * Tests that retries stop after the maximum number of attempts and the
+    * failure reason reaches the caller.
+    */
+    @Test
+    public void testAttemptsAreBounded() {
+        APIException e = failure(newApi(3, 10).getCurrentWeatherAsync(1, 1));
+        assertEquals(APIException.Reason.HTTP_ERROR, e.getReason());
+        assertEquals(503, e.getStatusCode());
+        assertEquals(3, calls.get());
+    }
+
+    /**
+    * Tests that a client error is not retried.
+    */
+    @Test
+    public void testClientErrorIsNotRetried() {
+        failWith = 404;
+        failure(newApi(3, 10).getCurrentWeatherAsync(1, 1));
+        assertEquals(1, calls.get());
+    }
+
+    /**
+    * Tests that the circuit opens after consecutive failures and lets a
+    * trial call through after the open time.
+    */
+    @Test
+    public void testCircuitOpensAndRecovers() throws Exception {
+        ResilientAPI api = newApi(1, 2);
+        failure(api.getCurrentWeatherAsync(1, 1));
+        failure(api.getCurrentWeatherAsync(1, 1));
+        assertTrue(api.isCircuitOpen("weather"));
+
+        APIException e = failure(api.getCurrentWeatherAsync(1, 1));
+        assertEquals(APIException.Reason.CIRCUIT_OPEN, e.getReason());
+        assertEquals(2, calls.get());
+        // Other endpoints are not affected
+        assertFalse(api.isCircuitOpen("daily"));
+
+        now += TimeUnit.SECONDS.toNanos(31);
+        failWith = 0;
+        api.getCurrentWeatherAsync(1, 1).get(5, TimeUnit.SECONDS);
+        assertFalse(api.isCircuitOpen("weather"));
+    }
+
+    /**
+    * Tests that a trial call which fails because the quota is used up does
+    * not keep the circuit open for good.
+    */
+    @Test
+    public void testQuotaFailureReleasesTrial() throws Exception {
+        ResilientAPI api = newApi(1, 2);
+        failure(api.getCurrentWeatherAsync(1, 1));
+        failure(api.getCurrentWeatherAsync(1, 1));
+        assertTrue(api.isCircuitOpen("weather"));
+
+        now += TimeUnit.SECONDS.toNanos(31);
+        quotaExceeded = true;
+        APIException e = failure(api.getCurrentWeatherAsync(1, 1));
+        assertEquals(APIException.Reason.QUOTA_EXCEEDED, e.getReason());
+        assertEquals(3, calls.get());
+
+        // The quota is back
+        quotaExceeded = false;
+        failWith = 0;
+        api.getCurrentWeatherAsync(1, 1).get(5, TimeUnit.SECONDS);
+        assertEquals(4, calls.get());
+        assertFalse(api.isCircuitOpen("weather"));
+    }
+
+    /**
+    * Tests that a slow request is hedged and the faster answer is used.
+    */
+    @Test
+    public void testSlowRequestIsHedged() throws Exception {
+        CompletableFuture<CurrentWeather> slow = new CompletableFuture<>();
+        ResilientAPI api = new ResilientAPI(new FakeAPI() {
+            @Override
+            public CompletableFuture<CurrentWeather> getCurrentWeatherAsync(double lat, double lon) {
+                if (calls.incrementAndGet() == 1) {
+                    return slow;
+                }
+                return super.getCurrentWeatherAsync(lat, lon);
+            }
+        }, 1, Duration.ofMillis(1), Duration.ofMillis(5), 5,
+                Duration.ofSeconds(30), Duration.ofMillis(20));
+        assertEquals(20, api.getCurrentWeatherAsync(1, 1).get(5, TimeUnit.SECONDS)
+                .getTemperature());
+        assertEquals(2, calls.get());
+    }
+}
@@ -0,0 +1,72 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for SingleFlightAPI class.
+ */
+public class SingleFlightAPITest {
+
+    private final AtomicInteger calls = new AtomicInteger();
+    private CompletableFuture<CurrentWeather> pending = new CompletableFuture<>();
+    private final SingleFlightAPI api = new SingleFlightAPI(new FakeAPI() {
+        @Override
+        public CompletableFuture<CurrentWeather> getCurrentWeatherAsync(double lat, double lon) {
+            calls.incrementAndGet();
+            return pending;
+        }
+    });
+
+    /**
+    * Tests that concurrent identical calls share one request.
+    */
+    @Test
+    public void testConcurrentCallsShareOneRequest() {
+        CompletableFuture<CurrentWeather> first = api.getCurrentWeatherAsync(61.5, 23.8);
+        CompletableFuture<CurrentWeather> second = api.getCurrentWeatherAsync(61.5, 23.8);
+        assertEquals(1, calls.get());
+        assertEquals(1, api.getCoalescedCount());
+
+        CurrentWeather weather = new CurrentWeather(20, 15, 25, 50, 5.0, 800);
+        pending.complete(weather);
+        assertSame(weather, first.join());
+        assertSame(weather, second.join());
+    }
+
+    /**
+    * Tests that a call made after the request completed starts a new one.
+    */
+    @Test
+    public void testCompletedRequestIsNotReused() {
+        api.getCurrentWeatherAsync(61.5, 23.8);
+        pending.complete(new CurrentWeather(20, 15, 25, 50, 5.0, 800));
+        pending = new CompletableFuture<>();
+        api.getCurrentWeatherAsync(61.5, 23.8);
+        assertEquals(2, calls.get());
+    }
+
+    /**
+    * Tests that different coordinates are not coalesced.
+    */
+    @Test
+    public void testDifferentCoordinatesAreNotShared() {
+        api.getCurrentWeatherAsync(61.5, 23.8);
+        api.getCurrentWeatherAsync(60.2, 24.9);
+        assertEquals(2, calls.get());
+    }
+
+    /**
+    * Tests that a cancelled copy does not cancel the shared request.
+    */
+    @Test
+    public void testCancellingOneCallerDoesNotAffectOthers() {
+        CompletableFuture<CurrentWeather> first = api.getCurrentWeatherAsync(61.5, 23.8);
+        CompletableFuture<CurrentWeather> second = api.getCurrentWeatherAsync(61.5, 23.8);
+        first.cancel(true);
+        pending.complete(new CurrentWeather(20, 15, 25, 50, 5.0, 800));
+        assertEquals(20, second.join().getTemperature());
+    }
+}
@@ -0,0 +1,141 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for SpatialIndex class and the spatial queries of
+ * CityDatabase class.
+ */
+public class SpatialIndexTest {
+
+    private static List<CityWeatherStatistics> sortedByDistance(
+            List<Location> places, double lat, double lon) {
+        List<CityWeatherStatistics> cities = new ArrayList<>();
+        for (Location place : places) {
+            CityWeatherStatistics city = new CityWeatherStatistics(place.getName());
+            city.setCoordinates(place.getLatitude(), place.getLongitude());
+            cities.add(city);
+        }
+        cities.sort(Comparator.comparingDouble(city -> SpatialIndex.distanceKm(
+                lat, lon, city.getLatitude(), city.getLongtitude())));
+        return cities;
+    }
+
+    private static List<String> names(List<Location> places) {
+        List<String> names = new ArrayList<>();
+        for (Location place : places) {
+            names.add(place.getName());
+        }
+        return names;
+    }
+
+    /**
+    * Tests the distance between two cities.
+    */
+    @Test
+    public void testDistance() {
+        assertEquals(161, SpatialIndex.distanceKm(60.1699, 24.9384, 61.4978, 23.7610), 2);
+        assertEquals(0, SpatialIndex.distanceKm(10, 20, 10, 20), 1e-9);
+        // Across the date line
+        assertEquals(111.2, SpatialIndex.distanceKm(0, 179.5, 0, -179.5), 0.1);
+    }
+
+    /**
+    * Tests that both queries find the same places as comparing every
+    * place, also around the poles and the date line.
+    */
+    @Test
+    public void testQueriesMatchBruteForce() {
+        Random random = new Random(23);
+        List<Location> places = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            double lat = Math.toDegrees(Math.asin(2 * random.nextDouble() - 1));
+            places.add(new Location("p" + i, lat, 360 * random.nextDouble() - 180, ""));
+        }
+        SpatialIndex<Location> index = SpatialIndex.of(places);
+        assertEquals(2000, index.size());
+
+        double[][] queries = {{61.5, 23.8}, {89.9, 0}, {-89.9, 45}, {0, 180}, {0, -179.9}};
+        for (double[] query : queries) {
+            List<CityWeatherStatistics> expected = sortedByDistance(places, query[0], query[1]);
+
+            List<Location> nearest = index.nearest(query[0], query[1], 7);
+            assertEquals(7, nearest.size());
+            for (int i = 0; i < 7; i++) {
+                assertEquals(expected.get(i).getName(), nearest.get(i).getName());
+            }
+
+            List<String> within = names(index.within(query[0], query[1], 800));
+            List<String> inRange = new ArrayList<>();
+            for (CityWeatherStatistics city : expected) {
+                if (SpatialIndex.distanceKm(query[0], query[1], city.getLatitude(),
+                        city.getLongtitude()) <= 800) {
+                    inRange.add(city.getName());
+                }
+            }
+            assertFalse(inRange.isEmpty());
+            assertEquals(inRange, within);
+        }
+        assertTrue(index.nearest(0, 0, 0).isEmpty());
+        assertEquals(2000, index.nearest(0, 0, 5000).size());
+        assertTrue(SpatialIndex.of(new ArrayList<>()).within(0, 0, 100).isEmpty());
+    }
+
+    /**
+    * Tests that typed coordinates are named after the nearest place
+    * without a lookup.
+    */
+    @Test
+    public void testReverseGeocoding() throws APIException {
+        assertArrayEquals(new double[] {61.5, -23.76},
+                CityNames.parseCoordinates(" 61.5, -23.76 "), 1e-9);
+        assertArrayEquals(new double[] {61.0, 23.0},
+                CityNames.parseCoordinates("61 23"), 1e-9);
+        assertNull(CityNames.parseCoordinates("91, 23"));
+        assertNull(CityNames.parseCoordinates("Tampere"));
+
+        FakeAPI fake = new FakeAPI();
+        CityDatabase database = new CityDatabase(fake);
+        assertEquals("Tampere", database.buildCity("61.49, 23.77"));
+        assertEquals("Helsinki", database.reverseGeocode(60.17, 24.94).getName());
+        // Far from every place the coordinates are the name
+        assertEquals("0.00, -140.00", database.buildCity("0, -140"));
+        assertEquals(0, fake.lookUps.get());
+        assertEquals(2, fake.currentCalls.get());
+    }
+
+    /**
+    * Tests that a new city next to a freshly fetched one takes its
+    * weather, and that cached cities are found by distance.
+    */
+    @Test
+    public void testNearbyWeatherIsReused() throws APIException {
+        FakeAPI fake = new FakeAPI();
+        CityDatabase database = new CityDatabase(fake);
+
+        // Every city of the fake api is at the same place
+        assertEquals("Tampere", database.buildCity("Tampere"));
+        assertEquals("Pirkkala", database.buildCity("Pirkkala"));
+        assertEquals(1, fake.currentCalls.get());
+        assertEquals(1, database.getReuseCount());
+        CityWeatherStatistics pirkkala = database.getCity("Pirkkala");
+        assertEquals(database.getCity("Tampere").getCurrentTemperature(),
+                pirkkala.getCurrentTemperature());
+        assertEquals("Pirkkala", pirkkala.getSnapshot().getName());
+
+        // A known city is refreshed, not reused
+        database.buildCity("Pirkkala");
+        assertEquals(2, fake.currentCalls.get());
+
+        assertEquals("Helsinki", database.buildCity("60.17, 24.94"));
+        assertEquals(3, fake.currentCalls.get());
+        assertEquals(2, database.citiesWithin(61.5, 23.8, 50).size());
+        assertEquals("Helsinki", database.nearestCities(60.2, 25.0, 1).get(0).getName());
+        assertEquals(3, database.nearestCities(60.2, 25.0, 5).size());
+    }
+}
@@ -0,0 +1,73 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for StartupWarmup class.
+ */
+public class StartupWarmupTest {
+
+    /**
+    * Tests that the saved state is loaded first and then the current place
+    * and the favourites are built.
+    */
+    @Test
+    public void testWarmsCurrentPlaceAndFavourites() throws Exception {
+        FakeAPI fake = new FakeAPI();
+        CityDatabase database = new CityDatabase(fake);
+        StartupWarmup warmup = new StartupWarmup(database);
+        AtomicInteger lookUpsWhenLoaded = new AtomicInteger(-1);
+        String[] currentPlace = {""};
+
+        CompletableFuture<String> first = warmup.start(() -> {
+            lookUpsWhenLoaded.set(fake.lookUps.get());
+            currentPlace[0] = "Tampere";
+        }, () -> currentPlace[0], () -> List.of("Oulu", "Tampere", "Turku"));
+
+        assertEquals("Tampere", first.get(5, TimeUnit.SECONDS));
+        warmup.getDone().get(5, TimeUnit.SECONDS);
+        assertEquals(0, lookUpsWhenLoaded.get());
+        assertEquals(3, fake.lookUps.get());
+        assertEquals(3, warmup.getWarmedCities());
+        assertTrue(database.contains("Oulu"));
+        assertTrue(database.contains("Turku"));
+        assertTrue(warmup.getTotalMillis() >= warmup.getCurrentPlaceMillis());
+        assertTrue(warmup.getCurrentPlaceMillis() >= warmup.getLoadMillis());
+
+        assertEquals(-1, warmup.getFirstScreenMillis());
+        warmup.firstScreenShown();
+        assertTrue(warmup.getFirstScreenMillis() >= warmup.getCurrentPlaceMillis());
+    }
+
+    /**
+    * Tests that cancelling stops builds which are waiting for the api.
+    */
+    @Test
+    public void testCancel() throws Exception {
+        FakeAPI fake = new FakeAPI();
+        CityDatabase database = new CityDatabase(new ForwardingAPI(fake) {
+            @Override
+            public CompletableFuture<Location> lookUpLocationAsync(String loc) {
+                delegate().lookUpLocationAsync(loc);
+                return new CompletableFuture<>();
+            }
+        });
+        StartupWarmup warmup = new StartupWarmup(database);
+        CompletableFuture<String> first = warmup.start(() -> { },
+                () -> "Tampere", () -> List.of("Oulu"));
+        while (fake.lookUps.get() < 2) {
+            Thread.sleep(1);
+        }
+
+        warmup.cancel();
+        assertTrue(first.isCancelled());
+        assertThrows(Exception.class, () -> warmup.getDone().get(2, TimeUnit.SECONDS));
+        assertTrue(warmup.getDone().isDone());
+        assertEquals(0, warmup.getWarmedCities());
+    }
+}
@@ -0,0 +1,271 @@
+package fi.tuni.prog3.weatherapp;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A local stand-in for the OpenWeatherMap endpoints the app uses. Serves
+ * the recorded responses in src/test/resources/stub with a configurable
+ * latency, jitter and error rate, so the fetch path can be tested and
+ * load-tested without using real API quota.
+ * Geocoding answers every query with a place named after the query, at
+ * coordinates derived from the name, so different queries resolve to
+ * different places, and current weather answers with a city ID derived
+ * from the coordinates. Failed requests answer with HTTP 503.
+ * Usage as a standalone server: run the main method with optional
+ * arguments [port] [latency in ms] [jitter in ms] [error rate], and set
+ * API_BASE_URL, PRO_API_BASE_URL and ONE_CALL_BASE_URL in .env to the
+ * printed address.
+ */
+public class StubWeatherServer implements AutoCloseable {
+    private static final String[][] ENDPOINTS = {
+        {"/geo/1.0/direct", "geo"},
+        {"/data/2.5/weather", "weather"},
+        {"/data/2.5/forecast/daily", "daily"},
+        {"/data/2.5/forecast/hourly", "hourly"},
+        {"/data/3.0/onecall", "onecall"},
+        {"/data/2.5/group", "group"},
+    };
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, byte[]> fixtures;
+    private final Map<String, AtomicInteger> requests;
+    private final JsonObject geoFixture;
+    private final JsonObject weatherFixture;
+    private final long latencyMillis;
+    private final long jitterMillis;
+    private volatile double errorRate;
+
+    /**
+     * Starts a stub server on a free port.
+     * @param latency Delay added to every response.
+     * @param jitter Maximum random delay added on top of the latency.
+     * @param errorRate Share of requests, from 0 to 1, answered with an error.
+     * @return The running server.
+     * @throws IOException if the server cannot be started.
+     */
+    public static StubWeatherServer start(Duration latency, Duration jitter,
+            double errorRate) throws IOException {
+        return new StubWeatherServer(0, latency, jitter, errorRate);
+    }
+
+    private StubWeatherServer(int port, Duration latency, Duration jitter,
+            double errorRate) throws IOException {
+        this.latencyMillis = latency.toMillis();
+        this.jitterMillis = jitter.toMillis();
+        this.errorRate = errorRate;
+        this.fixtures = new HashMap<>();
+        this.requests = new ConcurrentHashMap<>();
+        for (String[] endpoint : ENDPOINTS) {
+            requests.put(endpoint[1], new AtomicInteger());
+            if (!endpoint[1].equals("group")) {
+                fixtures.put(endpoint[1], readFixture(endpoint[1]));
+            }
+        }
+        this.geoFixture = JsonParser.parseString(new String(fixtures.get("geo"),
+                StandardCharsets.UTF_8)).getAsJsonArray().get(0).getAsJsonObject();
+        this.weatherFixture = JsonParser.parseString(new String(fixtures.get("weather"),
+                StandardCharsets.UTF_8)).getAsJsonObject();
+
+        // Without this the server adds a Nagle delay to every response
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        this.server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread th = new Thread(r, "stub-weather-server");
+            th.setDaemon(true);
+            return th;
+        });
+        for (String[] endpoint : ENDPOINTS) {
+            server.createContext(endpoint[0], exchange -> handle(exchange, endpoint[1]));
+        }
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Retrieves the base URL of the server, usable for every endpoint.
+     * @return The base URL, without a trailing slash.
+     */
+    public String getBaseUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Retrieves the number of requests the server has received.
+     * @param endpoint Name of the endpoint: geo, weather, daily, hourly,
+     * onecall or group.
+     * @return The number of requests to the endpoint.
+     */
+    public int getRequestCount(String endpoint) {
+        return requests.get(endpoint).get();
+    }
+
+    /**
+     * Changes the share of requests answered with an error.
+     * @param errorRate Share of requests, from 0 to 1.
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Stops the server.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange, String endpoint) throws IOException {
+        requests.get(endpoint).incrementAndGet();
+        try {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long delay = latencyMillis + (jitterMillis > 0 ? random.nextLong(jitterMillis + 1) : 0);
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            if (!query.containsKey("appid")) {
+                respond(exchange, 401, "{\"cod\":401,\"message\":\"Invalid API key\"}");
+            } else if (random.nextDouble() < errorRate) {
+                respond(exchange, 503, "{\"cod\":503,\"message\":\"Stub error\"}");
+            } else if (endpoint.equals("geo")) {
+                respond(exchange, 200, geocode(query.getOrDefault("q", "")));
+            } else if (endpoint.equals("weather")) {
+                respond(exchange, 200, currentWeather(query.getOrDefault("lat", ""),
+                        query.getOrDefault("lon", "")));
+            } else if (endpoint.equals("group")) {
+                respond(exchange, 200, group(query.getOrDefault("id", "")));
+            } else {
+                respond(exchange, 200, fixtures.get(endpoint));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Answers a geocoding query with the recorded place renamed after the
+     * query and moved to coordinates derived from the query.
+     */
+    private String geocode(String name) {
+        JsonObject place = geoFixture.deepCopy();
+        place.addProperty("name", name);
+        int hash = name.hashCode();
+        place.addProperty("lat", Math.floorMod(hash, 18000) / 100.0 - 90);
+        place.addProperty("lon", Math.floorMod(hash / 18000, 36000) / 100.0 - 180);
+        JsonArray places = new JsonArray();
+        places.add(place);
+        return places.toString();
+    }
+
+    /**
+     * Answers a current weather request with the recorded weather, but with
+     * a city ID derived from the coordinates, so different places have
+     * different IDs.
+     */
+    private String currentWeather(String lat, String lon) {
+        JsonObject weather = weatherFixture.deepCopy();
+        weather.addProperty("id", 1_000_000 + Math.floorMod(
+                (lat + "," + lon).hashCode(), 9_000_000));
+        return weather.toString();
+    }
+
+    /**
+     * Answers a group request with the recorded current weather for every
+     * requested city ID.
+     */
+    private String group(String ids) {
+        JsonArray list = new JsonArray();
+        for (String id : ids.split(",")) {
+            if (!id.isEmpty()) {
+                JsonObject weather = weatherFixture.deepCopy();
+                weather.addProperty("id", Integer.parseInt(id));
+                list.add(weather);
+            }
+        }
+        JsonObject response = new JsonObject();
+        response.addProperty("cnt", list.size());
+        response.add("list", list);
+        return response.toString();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body)
+            throws IOException {
+        respond(exchange, status, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void respond(HttpExchange exchange, int status, byte[] body)
+            throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                query.put(pair.substring(0, eq), URLDecoder.decode(
+                        pair.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return query;
+    }
+
+    private static byte[] readFixture(String name) {
+        try (InputStream in = StubWeatherServer.class.getResourceAsStream(
+                "/stub/" + name + ".json")) {
+            if (in == null) {
+                throw new IllegalStateException("Missing fixture " + name);
+            }
+            return in.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Runs the stub server until the process is stopped.
+     * @param args Port, latency in ms, jitter in ms and error rate.
+     * @throws IOException if the server cannot be started.
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8089;
+        long latency = args.length > 1 ? Long.parseLong(args[1]) : 50;
+        long jitter = args.length > 2 ? Long.parseLong(args[2]) : 20;
+        double errorRate = args.length > 3 ? Double.parseDouble(args[3]) : 0;
+        StubWeatherServer stub = new StubWeatherServer(port,
+                Duration.ofMillis(latency), Duration.ofMillis(jitter), errorRate);
+        System.out.println("Stub weather server at " + stub.getBaseUrl());
+    }
+}
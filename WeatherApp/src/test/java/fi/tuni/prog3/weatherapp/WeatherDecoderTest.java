@@ -0,0 +1,106 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Test class for WeatherDecoder class. Besides the decoded values, checks
+ * that decoding does not allocate much more than it did when it was
+ * tuned, so that per-element throwaway objects are caught.
+ */
+public class WeatherDecoderTest {
+
+    // Bytes allocated per decoded response when these were set, with
+    // about twice the room for JVM differences
+    private static final long DAILY_BYTES_LIMIT = 24_000;
+    private static final long HOURLY_BYTES_LIMIT = 36_000;
+
+    private static String fixture(String name) throws IOException {
+        try (InputStream in = WeatherDecoderTest.class.getResourceAsStream(
+                "/stub/" + name + ".json")) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+    * Tests that days and hours are formatted like with SimpleDateFormat.
+    */
+    @Test
+    public void testFormatsMatchSimpleDateFormat() throws Exception {
+        List<DailyWeather> days = WeatherDecoder.decodeDailyWeather(
+                new StringReader(fixture("daily")));
+        SimpleDateFormat dayFormat = new SimpleDateFormat("EEE MMM d", Locale.ENGLISH);
+        for (DailyWeather day : days) {
+            assertEquals(dayFormat.format(new Date(day.getEpochSecond() * 1000L)),
+                    day.getDate());
+        }
+
+        List<HourlyWeather> hours = WeatherDecoder.decodeHourlyWeather(
+                new StringReader(fixture("hourly")));
+        SimpleDateFormat hourFormat = new SimpleDateFormat("HH");
+        assertEquals(10, hours.size());
+        for (HourlyWeather hour : hours) {
+            assertEquals(hourFormat.format(new Date(hour.getEpochSecond() * 1000L)),
+                    hour.getHour());
+        }
+    }
+
+    /**
+    * Tests that decoding a daily forecast stays within its allocation budget.
+    */
+    @Test
+    public void testDailyAllocation() throws Exception {
+        String json = fixture("daily");
+        long bytes = allocatedPerCall(() -> WeatherDecoder.decodeDailyWeather(
+                new StringReader(json)));
+        assertTrue(bytes < DAILY_BYTES_LIMIT, "Allocated " + bytes + " bytes per call");
+    }
+
+    /**
+    * Tests that decoding a hourly forecast stays within its allocation budget.
+    */
+    @Test
+    public void testHourlyAllocation() throws Exception {
+        String json = fixture("hourly");
+        long bytes = allocatedPerCall(() -> WeatherDecoder.decodeHourlyWeather(
+                new StringReader(json)));
+        assertTrue(bytes < HOURLY_BYTES_LIMIT, "Allocated " + bytes + " bytes per call");
+    }
+
+    private interface Decode {
+        Object run() throws IOException;
+    }
+
+    /**
+     * Returns the average number of bytes the current thread allocates per
+     * call, measured after a warm-up.
+     */
+    private static long allocatedPerCall(Decode decode) throws IOException {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        long id = Thread.currentThread().getId();
+        for (int i = 0; i < 5_000; i++) {
+            decode.run();
+        }
+        int calls = 2_000;
+        long before = threads.getThreadAllocatedBytes(id);
+        for (int i = 0; i < calls; i++) {
+            decode.run();
+        }
+        return (threads.getThreadAllocatedBytes(id) - before) / calls;
+    }
+}
@@ -0,0 +1,153 @@
+package fi.tuni.prog3.weatherapp;
+
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for WeatherSnapshot class and how CityWeatherStatistics
+ * publishes snapshots.
+ */
+public class WeatherSnapshotTest {
+
+    private static List<HourlyWeather> hours(int temperature) {
+        List<HourlyWeather> hours = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            hours.add(new HourlyWeather(1618920000L + i * 3600L,
+                    ZoneId.systemDefault(), temperature, 1.0, 800));
+        }
+        return hours;
+    }
+
+    private static List<DailyWeather> days(int temperature) {
+        List<DailyWeather> days = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            days.add(new DailyWeather(1618916400L + i * 86400L,
+                    ZoneId.systemDefault(), temperature, temperature, 800));
+        }
+        return days;
+    }
+
+    /**
+    * Tests that the coordinates are part of the snapshot, and that a city
+    * taking the weather of another keeps its own coordinates.
+    */
+    @Test
+    public void testCoordinatesAreInTheSnapshot() {
+        CityWeatherStatistics city = new CityWeatherStatistics("TestCity");
+        city.setCoordinates(61.5, 23.8);
+        city.update(new CurrentWeather(10, 5, 15, 50, 2.0, 800), days(10), hours(10));
+        WeatherSnapshot before = city.getSnapshot();
+        assertEquals(61.5, before.getLatitude());
+        assertEquals(23.8, before.getLongitude());
+
+        city.setCoordinates(60.2, 24.9);
+        assertEquals(61.5, before.getLatitude());
+        assertEquals(60.2, city.getSnapshot().getLatitude());
+        assertEquals(10, city.getSnapshot().getCurrentTemperature());
+
+        CityWeatherStatistics near = new CityWeatherStatistics("NearCity");
+        near.setCoordinates(60.21, 24.95);
+        near.copyWeatherFrom(city);
+        assertEquals(60.21, near.getLatitude());
+        assertEquals(24.95, near.getLongtitude());
+        assertEquals(10, near.getCurrentTemperature());
+    }
+
+    /**
+    * Tests that a snapshot does not change when the city is refreshed.
+    */
+    @Test
+    public void testSnapshotIsImmutable() {
+        CityWeatherStatistics city = new CityWeatherStatistics("TestCity");
+        city.update(new CurrentWeather(10, 5, 15, 50, 2.0, 800, 42), days(10), hours(10));
+        WeatherSnapshot before = city.getSnapshot();
+
+        city.update(new CurrentWeather(20, 15, 25, 60, 3.0, 801), days(20), hours(20));
+
+        assertEquals(10, before.getCurrentTemperature());
+        assertEquals(10, before.getHourlyWeatherList().get(0).getTemperature());
+        assertEquals(10, before.getDailyWeatherList().get(0).getMaxTemp());
+        assertEquals(20, city.getSnapshot().getCurrentTemperature());
+        assertEquals(20, city.getSnapshot().getHourlyWeatherList().get(9).getTemperature());
+        // The city ID is kept when the new weather does not know it
+        assertEquals(42, city.getCityId());
+    }
+
+    /**
+    * Tests that the series hold the same forecasts as the lists, and that
+    * changing a series does not change the snapshot.
+    */
+    @Test
+    public void testSeries() {
+        CityWeatherStatistics city = new CityWeatherStatistics("TestCity");
+        city.update(new CurrentWeather(10, 5, 15, 50, 2.0, 800), days(10), hours(10));
+
+        ForecastSeries hourly = city.getHourlySeries();
+        ForecastSeries daily = city.getDailySeries();
+        assertEquals(city.getHouryWeatherList().size(), hourly.size());
+        assertEquals(city.getDailyWeatherList().size(), daily.size());
+        assertEquals(city.getDailyWeatherList().get(0).getMaxTemp(),
+                daily.getTemperature(0));
+        for (int i = 0; i < hourly.size(); i++) {
+            assertEquals(city.getHouryWeatherList().get(i).getTemperature(),
+                    hourly.getTemperature(i));
+        }
+
+        hourly.clear();
+        assertEquals(0, hourly.size());
+        assertFalse(city.getHouryWeatherList().isEmpty());
+    }
+
+    /**
+    * Tests that current weather measured before the shown weather is
+    * ignored, while the forecasts of the same refresh are still read.
+    */
+    @Test
+    public void testOlderCurrentWeatherIsIgnored() {
+        CityWeatherStatistics city = new CityWeatherStatistics("TestCity");
+        city.readCurrentWeather(new CurrentWeather(10, 5, 15, 50, 2.0, 800, 42, 200));
+
+        city.update(new CurrentWeather(20, 15, 25, 60, 3.0, 801, 42, 100),
+                days(20), hours(20));
+        assertEquals(10, city.getCurrentTemperature());
+        assertEquals(20, city.getHouryWeatherList().get(0).getTemperature());
+
+        // Weather without a time is always read
+        city.readCurrentWeather(new CurrentWeather(30, 25, 35, 70, 4.0, 802));
+        assertEquals(30, city.getCurrentTemperature());
+    }
+
+    /**
+    * Tests that readers never see data from two refreshes mixed while
+    * another thread keeps refreshing.
+    */
+    @Test
+    public void testReadersNeverSeeTornUpdates() throws Exception {
+        CityWeatherStatistics city = new CityWeatherStatistics("TestCity");
+        city.update(new CurrentWeather(0, 0, 0, 0, 0, 800), days(0), hours(0));
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread writer = new Thread(() -> {
+            for (int t = 1; running.get(); t = t % 100 + 1) {
+                city.update(new CurrentWeather(t, t, t, t, t, 800), days(t), hours(t));
+            }
+        });
+        writer.start();
+        try {
+            for (int i = 0; i < 20_000; i++) {
+                WeatherSnapshot weather = city.getSnapshot();
+                int t = weather.getCurrentTemperature();
+                assertEquals(t, weather.getMaxTemperature());
+                assertEquals(t, weather.getHourlyWeatherList().get(0).getTemperature());
+                assertEquals(t, weather.getHourlyWeatherList().get(9).getTemperature());
+                assertEquals(t, weather.getDailyWeatherList().get(3).getMinTemp());
+            }
+        } finally {
+            running.set(false);
+            writer.join();
+        }
+    }
+}